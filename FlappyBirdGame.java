@@ -1,299 +1,5819 @@
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
 import java.awt.geom.RoundRectangle2D;
-import java.util.Iterator;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
 
 public class FlappyBirdGame {
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--headless")) {
+            long ticks = args.length > 1 ? Long.parseLong(args[1]) : 10_000_000L;
+            runHeadless(ticks);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--batch")) {
+            int games = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+            long maxTicks = args.length > 2 ? Long.parseLong(args[2]) : BatchRunner.DEFAULT_MAX_TICKS;
+            int threads = args.length > 3 ? Integer.parseInt(args[3])
+                    : Runtime.getRuntime().availableProcessors();
+            System.out.println(BatchRunner.run(Policy.AUTOPILOT, games, 1, maxTicks, threads));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--runs")) {
+            printRuns(args.length > 1 ? Integer.parseInt(args[1]) : 10);
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--replay")) {
+            runReplay(Paths.get(args[1]));
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--verify")) {
+            long maxTicks = args.length > 2 ? Long.parseLong(args[2]) : ScoreVerifier.DEFAULT_MAX_TICKS;
+            int threads = args.length > 3 ? Integer.parseInt(args[3])
+                    : Runtime.getRuntime().availableProcessors();
+            runVerify(Paths.get(args[1]), maxTicks, threads);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--verify-bench")) {
+            int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+            int threads = args.length > 2 ? Integer.parseInt(args[2])
+                    : Runtime.getRuntime().availableProcessors();
+            runVerifyBench(runs, threads);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--ghost-server")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : GhostProtocol.DEFAULT_PORT;
+            long seed = args.length > 2 ? Long.parseUnsignedLong(args[2], 16) : GameRandom.mix(System.nanoTime());
+            runGhostServer(port, seed);
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--ghost-bots")) {
+            runGhostBots(Integer.parseInt(args[1]), GhostClient.parse(args.length > 2 ? args[2] : "localhost"));
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--record-clip")) {
+            runRecordClip(Paths.get(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : 10);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--audio-bench")) {
+            runAudioBench(args.length > 1 ? Integer.parseInt(args[1]) : 60);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--warmup")) {
+            runWarmup();
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--telemetry-bots")) {
+            int games = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+            int threads = args.length > 3 ? Integer.parseInt(args[3])
+                    : Runtime.getRuntime().availableProcessors();
+            runTelemetryBots(Paths.get(args[1]), games, threads);
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--telemetry-report")) {
+            runTelemetryReport(Paths.get(args[1]));
+            return;
+        }
+        boolean stress = args.length > 0 && args[0].equals("--stress");
         SwingUtilities.invokeLater(() -> {
-            JFrame frame = new JFrame("Flappy Bird");
+            JFrame frame = new JFrame(stress ? "Flappy Bird (stress)" : "Flappy Bird");
             frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
             frame.setSize(800, 600);
             frame.setResizable(false);
             frame.setLocationRelativeTo(null);
 
-            GamePanel panel = new GamePanel();
+            GamePanel panel = new GamePanel(stress);
             frame.add(panel);
+            // EXIT_ON_CLOSE exits without disposing the frame, so the panel is stopped here.
+            frame.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowClosing(WindowEvent e) {
+                    panel.stop();
+                }
+            });
 
             frame.setVisible(true);
+            panel.start();
             panel.requestFocusInWindow();
         });
     }
+
+    // Steps the engine flat out with a simple autopilot, restarting on every death.
+    private static void runHeadless(long ticks) {
+        GameWorld world = new GameWorld();
+        long games = 1;
+        long start = System.nanoTime();
+        for (long i = 0; i < ticks; i++) {
+            if (world.isGameOver()) {
+                world.reset();
+                games++;
+            }
+            world.step(world.autopilotWantsFlap());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d ticks, %d games in %.3f s (%.0f ticks/s), high score %d%n",
+                ticks, games, seconds, ticks / seconds, world.getHighScore());
+    }
+
+    private static void printRuns(int k) {
+        try (RunStore runs = RunStore.open(RunStore.defaultDir())) {
+            System.out.printf("%d runs in %s%n", runs.count(), RunStore.defaultDir());
+            int rank = 1;
+            for (RunStore.Run run : runs.top(k)) {
+                System.out.printf("%3d. score %d, coins %d, %d ticks, seed %s, %tF %<tT%n", rank++, run.score,
+                        run.coins, run.ticks, Long.toUnsignedString(run.seed, 16), run.timestamp);
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot read runs: " + e.getMessage());
+        }
+    }
+
+    // Checks every .fbs submission in dir and prints the verdicts.
+    private static void runVerify(Path dir, long maxTicks, int threads) {
+        List<Path> files = new ArrayList<>();
+        List<byte[]> submissions = new ArrayList<>();
+        try (java.nio.file.DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.fbs")) {
+            for (Path file : stream) {
+                files.add(file);
+                submissions.add(Files.readAllBytes(file));
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot read submissions in " + dir + ": " + e.getMessage());
+            return;
+        }
+        try (ScoreVerifier verifier = new ScoreVerifier(maxTicks, threads)) {
+            ScoreVerifier.Report report = verifier.verify(submissions);
+            for (int i = 0; i < files.size(); i++) {
+                if (report.verdicts[i] != ScoreVerifier.Verdict.ACCEPTED) {
+                    System.out.println(files.get(i).getFileName() + ": " + report.verdicts[i]);
+                }
+            }
+            System.out.println(report);
+        }
+    }
+
+    // Plays runs with an autopilot that now and then stops flapping for a moment, like a
+    // person would, forges every tenth claim, and times the verifier on the lot.
+    private static void runVerifyBench(int runs, int threads) {
+        GameWorld world = new GameWorld(0, 0);
+        GameRandom random = new GameRandom(1);
+        List<byte[]> submissions = new ArrayList<>(runs);
+        for (int i = 0; i < runs; i++) {
+            world.reset(GameRandom.mix(i));
+            int stall = 0;
+            while (!world.isGameOver() && world.getTick() < ScoreVerifier.DEFAULT_MAX_TICKS) {
+                if (stall == 0 && random.nextInt(1000) == 0) stall = 40;
+                if (stall > 0) {
+                    stall--;
+                    world.step(false);
+                } else {
+                    world.step(world.autopilotWantsFlap());
+                }
+            }
+            ScoreVerifier.Submission run = ScoreVerifier.Submission.of(world);
+            if (i % 10 == 9) {
+                run = new ScoreVerifier.Submission(run.recording, run.score + 1, run.coins);
+            }
+            submissions.add(run.toBytes());
+        }
+        try (ScoreVerifier verifier = new ScoreVerifier(ScoreVerifier.DEFAULT_MAX_TICKS, threads)) {
+            System.out.println(verifier.verify(submissions));
+        }
+    }
+
+    private static void runGhostServer(int port, long seed) {
+        DifficultyCurve curve = DifficultyCurve.DEFAULT;
+        try (GhostServer server = new GhostServer(new InetSocketAddress(port), seed, curve, new LossyLink(), true)) {
+            System.out.printf("Ghost server on UDP port %d, course seed %s, %s difficulty%n", server.port(),
+                    Long.toUnsignedString(seed, 16), curve.name);
+            server.run();
+        } catch (IOException e) {
+            System.err.println("Cannot start ghost server: " + e.getMessage());
+        }
+    }
+
+    // Load generator for a ghost server: count autopilot players, each on its own socket,
+    // stepped together on this thread at the game's tick rate. Each one misses a flap now
+    // and then so they don't all fly the same line. Runs until killed.
+    private static void runGhostBots(int count, InetSocketAddress server) {
+        GhostClient[] clients = new GhostClient[count];
+        GameWorld[] worlds = new GameWorld[count];
+        boolean[] racing = new boolean[count];
+        GameRandom random = new GameRandom(GameRandom.mix(System.nanoTime()));
+        float[] ticks = new float[GhostProtocol.MAX_PLAYERS];
+        float[] ys = new float[GhostProtocol.MAX_PLAYERS];
+        long tickNanos = (long) (1e9 / GamePanel.LOGIC_HZ);
+        try {
+            for (int i = 0; i < count; i++) {
+                clients[i] = new GhostClient(server, new LossyLink());
+                worlds[i] = new GameWorld(i);
+            }
+            long next = System.nanoTime();
+            long reportAt = next + 1_000_000_000L;
+            long lastBytes = 0;
+            for (;;) {
+                long now = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    GhostClient client = clients[i];
+                    GameWorld world = worlds[i];
+                    client.poll(now);
+                    if (!client.isJoined()) continue;
+                    if (!racing[i] || world.isGameOver()) {
+                        world.setCurve(client.getCurve());
+                        world.reset(client.getSeed());
+                        racing[i] = true;
+                    }
+                    world.step(world.autopilotWantsFlap() && random.nextInt(40) != 0);
+                    client.sendState(now, world.getDistance(), world.getBird().getY(), world.getScore(),
+                            !world.isGameOver());
+                }
+                if (now >= reportAt) {
+                    int joined = 0;
+                    long ghosts = 0, bytes = 0;
+                    for (GhostClient client : clients) {
+                        if (client.isJoined()) joined++;
+                        ghosts += client.sample(now, ticks, ys);
+                        bytes += client.getBytesIn();
+                    }
+                    System.out.printf("%d/%d bots joined, %.1f live ghosts each, %.0f B/s in each%n", joined, count,
+                            (double) ghosts / count, (double) (bytes - lastBytes) / count);
+                    lastBytes = bytes;
+                    reportAt = now + 1_000_000_000L;
+                }
+                next = Math.max(next + tickNanos, now);
+                LockSupport.parkNanos(next - System.nanoTime());
+            }
+        } catch (IOException e) {
+            System.err.println("Ghost bots stopped: " + e.getMessage());
+        }
+    }
+
+    // Mixes seconds of game-like sound offline, with a burst now and then that runs out of
+    // voices, and reports what each period cost and whether mixing allocated.
+    private static void runAudioBench(int seconds) {
+        AudioMixer mixer = new AudioMixer(AudioMixer.VOICES);
+        byte[] period = new byte[AudioMixer.PERIOD_FRAMES * AudioMixer.FRAME_BYTES];
+        GameRandom random = new GameRandom(1);
+        LatencyHistogram nanos = new LatencyHistogram();
+        com.sun.management.ThreadMXBean threads = Profiler.allocationCounter();
+        int periods = (int) (seconds * Sfx.RATE / AudioMixer.PERIOD_FRAMES);
+        int sounds = Sfx.PCM.length;
+        // Allocation is only counted after the first tenth, past class loading and warm-up.
+        int warmup = periods / 10;
+        long playing = 0;
+        long allocatedBefore = 0;
+        long start = System.nanoTime();
+        for (int p = 0; p < periods; p++) {
+            if (p == warmup && threads != null) allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+            if (p % 500 == 0) {
+                for (int i = 0; i < 2 * AudioMixer.VOICES; i++) mixer.play(i % sounds);
+            } else if (random.nextInt(8) == 0) {
+                mixer.play(random.nextInt(sounds));
+            }
+            long t = System.nanoTime();
+            playing += mixer.mix(period, AudioMixer.PERIOD_FRAMES);
+            nanos.record(System.nanoTime() - t);
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long allocated = threads != null ? threads.getCurrentThreadAllocatedBytes() - allocatedBefore : -1;
+        System.out.printf("%d periods of %d frames (%d s of audio) in %.3f s, %.0fx real time%n", periods,
+                AudioMixer.PERIOD_FRAMES, seconds, elapsed, seconds / elapsed);
+        System.out.printf("per period: mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us%n", nanos.mean() / 1e3,
+                nanos.percentile(0.50) / 1e3, nanos.percentile(0.99) / 1e3, nanos.max() / 1e3);
+        System.out.printf("%.2f of %d voices playing on average, %d stolen, %s allocated after warm-up%n",
+                (double) playing / periods, AudioMixer.VOICES, mixer.getStolen(),
+                allocated < 0 ? "unknown bytes" : allocated + " bytes");
+    }
+
+    // The warm-up in the foreground, plus loading the window's classes: the training run the
+    // cds profile archives classes from.
+    private static void runWarmup() {
+        Warmup.loadGuiClasses();
+        Warmup warmup = new Warmup();
+        warmup.run();
+        System.out.printf("warm-up: %d ticks, %d frames in %.0f ms, done %d ms after JVM start%n",
+                warmup.getTicks(), warmup.getFrames(), warmup.getElapsedNanos() / 1e6,
+                ManagementFactory.getRuntimeMXBean().getUptime());
+    }
+
+    // Autopilot games that now and then stop flapping for up to 40 ticks, logged to telemetry
+    // in dir: test data for --telemetry-report. Each thread plays its share on its own world
+    // and writer.
+    private static void runTelemetryBots(Path dir, int games, int threads) {
+        Thread[] workers = new Thread[threads];
+        long[] written = new long[threads];
+        long[] dropped = new long[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            workers[t] = new Thread(() -> {
+                GameWorld world = new GameWorld(0, 0);
+                GameRandom random = new GameRandom(GameRandom.mix(~id));
+                Telemetry telemetry;
+                try {
+                    telemetry = new Telemetry(dir);
+                } catch (IOException e) {
+                    System.err.println("Cannot write telemetry to " + dir + ": " + e.getMessage());
+                    return;
+                }
+                world.setTelemetry(telemetry);
+                for (int game = id; game < games; game += threads) {
+                    world.reset(GameRandom.mix(game));
+                    int stall = 0;
+                    while (!world.isGameOver() && world.getTick() < BatchRunner.DEFAULT_MAX_TICKS) {
+                        if (stall == 0 && random.nextInt(300) == 0) stall = 1 + random.nextInt(40);
+                        if (stall > 0) {
+                            stall--;
+                            world.step(false);
+                        } else {
+                            world.step(world.autopilotWantsFlap());
+                        }
+                    }
+                }
+                telemetry.flush();
+                try {
+                    telemetry.close();
+                } catch (IOException e) {
+                    System.err.println("Cannot close telemetry in " + dir + ": " + e.getMessage());
+                }
+                written[id] = telemetry.getWritten();
+                dropped[id] = telemetry.getDropped();
+            }, "telemetry-bots-" + t);
+            workers[t].start();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d games on %d threads in %.2f s, %d events written, %d dropped%n",
+                games, threads, seconds, Arrays.stream(written).sum(), Arrays.stream(dropped).sum());
+    }
+
+    // Aggregates every telemetry file in dir.
+    private static void runTelemetryReport(Path dir) {
+        List<Path> files = new ArrayList<>();
+        try (java.nio.file.DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + Telemetry.SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot read telemetry in " + dir + ": " + e.getMessage());
+            return;
+        }
+        try {
+            System.out.print(TelemetryReport.aggregate(files));
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Cannot read telemetry in " + dir + ": " + e.getMessage());
+        }
+    }
+
+    // The autopilot plays in real time into an offscreen image while a ClipRecorder takes
+    // the frames, as the game's render thread would.
+    private static void runRecordClip(Path dir, int seconds) {
+        GameWorld world = new GameWorld();
+        WorldRenderer renderer = new WorldRenderer();
+        BufferedImage target = new BufferedImage(GameWorld.WIDTH, GameWorld.HEIGHT, BufferedImage.TYPE_INT_RGB);
+        LatencyHistogram nanos = new LatencyHistogram();
+        long tickNanos = (long) (1e9 / GamePanel.LOGIC_HZ);
+        long ticks = (long) (seconds * GamePanel.LOGIC_HZ);
+        ClipRecorder clip;
+        try {
+            clip = new ClipRecorder(dir, ClipRecorder.FORMAT, GameWorld.WIDTH, GameWorld.HEIGHT,
+                    ClipRecorder.FPS, ClipRecorder.WORKERS);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Cannot record clip to " + dir + ": " + e.getMessage());
+            return;
+        }
+        long start = System.nanoTime();
+        for (long t = 0; t < ticks; t++) {
+            if (world.isGameOver()) world.reset();
+            world.step(world.autopilotWantsFlap());
+            Graphics2D g = target.createGraphics();
+            renderer.render(g, world, true, 1f);
+            g.dispose();
+            long now = System.nanoTime();
+            clip.capture(renderer.getFrame(), now);
+            nanos.record(System.nanoTime() - now);
+            LockSupport.parkNanos(start + (t + 1) * tickNanos - System.nanoTime());
+        }
+        long stop = System.nanoTime();
+        try {
+            clip.close();
+        } catch (IOException e) {
+            System.err.println("Cannot write clip " + dir + ": " + e.getMessage());
+        }
+        double drain = (System.nanoTime() - stop) / 1e9;
+        System.out.printf("%d frames captured at up to %.0f fps, %d dropped, %d encoded as %s on %d thread(s)%n",
+                clip.getCaptured(), ClipRecorder.FPS, clip.getDropped(), clip.getEncoded(), ClipRecorder.FORMAT,
+                ClipRecorder.FORMAT.equals("gif") ? 1 : ClipRecorder.WORKERS);
+        System.out.printf("capture per rendered frame: mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us%n",
+                nanos.mean() / 1e3, nanos.percentile(0.50) / 1e3, nanos.percentile(0.99) / 1e3, nanos.max() / 1e3);
+        System.out.printf("encoding: %.1f ms per frame, %.2f s to drain after the last frame%n",
+                clip.getEncoded() == 0 ? 0 : clip.getEncodeNanos() / 1e6 / clip.getEncoded(), drain);
+    }
+
+    private static void runReplay(Path file) {
+        try {
+            InputRecording recording = InputRecording.fromBytes(Files.readAllBytes(file));
+            long start = System.nanoTime();
+            ReplayPlayer.Result result = ReplayPlayer.play(recording, Long.MAX_VALUE);
+            double millis = (System.nanoTime() - start) / 1e6;
+            System.out.printf("seed %d: %d ticks, %d flaps, score %d, coins %d%s in %.3f ms (%d bytes)%n",
+                    recording.getSeed(), result.ticks, recording.getFlapCount(), result.score,
+                    result.coins, result.gameOver ? "" : " (still alive)", millis,
+                    recording.toBytes().length);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Cannot replay " + file + ": " + e.getMessage());
+        }
+    }
 }
 
-class GamePanel extends JPanel implements ActionListener, KeyListener, MouseListener {
-    public static final int WIDTH = 800;
-    public static final int HEIGHT = 600;
-    public static final int GROUND_HEIGHT = 100;
-    private final float GRAVITY = 0.5f;
-    private final float AIR_RESISTANCE = 0.98f;
-    private final int JUMP_STRENGTH = -10;
-    public static final int PIPE_WIDTH = 80;
-    private final int PIPE_GAP = 200;
-    private final int PIPE_SPEED = 5;
-    private final int PIPE_SPAWN_INTERVAL = 1500;
-    private final double COIN_SPAWN_CHANCE = 0.3; 
+// Owns the window-side game loop, split over two threads. The sim thread runs the world on
+// a fixed timestep, applies input and after each batch of ticks publishes a Frame, a copy
+// of what there is to draw, through a TripleBuffer. The render thread draws the newest
+// frame through a page-flipped BufferStrategy, interpolating between its last two ticks.
+// Neither waits for the other, so a slow paint never delays a tick or a press.
+// While nothing on screen moves (welcome, game over, paused) both threads go on demand: the
+// sim sleeps until a press and the render thread until a new frame, repainting at
+// KEEPALIVE_NANOS at most, so a static screen costs next to no CPU. Losing focus pauses.
+// Only the render rate can be changed. GameWorld's constants are per tick, tuned for the
+// old 16 ms timer, and recordings count ticks, so the logic rate is fixed at 62.5 Hz.
+class GamePanel extends Canvas implements Runnable, KeyListener, MouseListener, FocusListener {
+    public static final double LOGIC_HZ = 62.5;
+    // 0 means follow the display refresh rate.
+    public static final int RENDER_HZ = Integer.getInteger("flappy.renderHz", 0);
+    // When set, every finished run is written here as run-<seed>.fbr for --replay.
+    private static final String REPLAY_DIR = System.getProperty("flappy.replayDir");
+    // Shows the profiler overlay from the start and writes its histograms to
+    // flappy.profileCsv (default flappy-profile.csv) on exit. F3 toggles the overlay anyway.
+    private static final boolean PROFILE = Boolean.getBoolean("flappy.profile");
+    // host[:port] of a --ghost-server to race against; every game then runs its course.
+    private static final String GHOST_SERVER = System.getProperty("flappy.ghostServer");
+    // Prints the frame rate, scheduling mode and process CPU once a second.
+    private static final boolean CPU_REPORT = Boolean.getBoolean("flappy.cpuReport");
+    // Prints how long after JVM start the first frame was up, and the frame times of the
+    // first second of play.
+    private static final boolean STARTUP_REPORT = Boolean.getBoolean("flappy.startupReport");
+    // When set, the flaps, points, coins and death of every run are logged to files here.
+    private static final String TELEMETRY_DIR = System.getProperty("flappy.telemetryDir");
+    // F9 starts and stops recording a clip into a new directory under this one.
+    private static final String CLIP_DIR = System.getProperty("flappy.clipDir", "clips");
+    private static final boolean SOUND = Boolean.parseBoolean(System.getProperty("flappy.sound", "true"));
+    // Stress mode: the autopilot plays among thousands of pipes, clouds and particles.
+    private static final int STRESS_PIPES = 2000;
+    private static final int STRESS_COINS = 500;
+    private static final int STRESS_CLOUDS = 1500;
+    private static final int STRESS_PARTICLES = 8000;
+    // Longest stretch of wall time simulated in one go after a stall.
+    private static final long MAX_FRAME_NANOS = 250_000_000L;
+    // On demand, the screen is still repainted this often, which also repairs it after
+    // the window was covered; the sim wakes this often with nothing to do.
+    private static final long KEEPALIVE_NANOS = 250_000_000L;
+    private static final long IDLE_SIM_NANOS = 1_000_000_000L;
+    // How much of the run is kept for rewinding, and how far one press goes back.
+    private static final int REWIND_SECONDS = 10;
+    private static final int REWIND_STEP_SECONDS = 3;
 
-    private Bird bird;
-    private CopyOnWriteArrayList<Pipe> pipes;
-    private CopyOnWriteArrayList<Coin> coins;
-    private Timer gameTimer;
-    private Timer pipeTimer;
-    private int score;
-    private int coinsCollected;
-    private boolean gameOver;
+    private final GameWorld world;
+    private final WorldRenderer renderer;
+    private final InputQueue input = new InputQueue();
+    private final Profiler profiler = new Profiler();
+    private final QualityGovernor governor = new QualityGovernor();
+    private final ProfilerOverlay overlay = new ProfilerOverlay(profiler, governor);
+    private final boolean stress;
+    // Null when the store can't be opened; the game just doesn't remember runs then.
+    private final RunStore runs;
+    // Null unless racing; owned by the sim thread like the world.
+    private final GhostClient ghosts;
+    // Null when muted or there is no audio device; played from the sim thread.
+    private final AudioMixer audio;
+    // Null in stress mode; owned by the sim thread like the world.
+    private final RewindBuffer rewind;
+    // Null unless logging; the world records into it on the sim thread.
+    private final Telemetry telemetry;
+    private final TripleBuffer<Frame> frames;
+    private volatile boolean showProfiler;
+    private volatile boolean recordClip;
+    // The render thread's; null when not recording.
+    private ClipRecorder clip;
+    private long presentStart;
+    // The render thread's. Started once the first frame is up; null when off or in stress mode.
+    private Warmup warmup;
+    private boolean firstFrameShown;
+    // Presents over the first second of play, from playStart; -1 until play starts.
+    private final LatencyHistogram firstSecond = new LatencyHistogram();
+    private long playStart = -1;
+    private long lastPresent;
+    private long maxPaint;
+    private volatile boolean running;
+    private Thread simThread, renderThread;
+    // Set while the render thread sleeps on demand, so a publish knows to wake it.
+    private volatile boolean renderWaiting;
+    private BufferStrategy strategy;
+    // The sim thread's; the render thread sees them through frames.
     private boolean gameStarted;
-    private CopyOnWriteArrayList<Cloud> clouds;
-    private int highScore = 0;
-    private int flapCycle = 0;
-    private CopyOnWriteArrayList<Particle> particles;
-    private int cloudCounter = 0;
+    // After a rewind the world holds still until SPACE.
+    private boolean paused;
     private boolean showWelcomeScreen = true;
     private RoundRectangle2D playButton;
 
+    // What the render thread draws: a copy of the world as the last tick left it, and the
+    // rest of the sim's state that shows. Pooled, so publishing one allocates nothing.
+    private static final class Frame {
+        final GameWorld world;
+        boolean started, paused, welcome;
+        // End of the window the last tick stood for.
+        long at;
+        final float[] ghostDistances = new float[WorldRenderer.MAX_GHOSTS];
+        final float[] ghostYs = new float[WorldRenderer.MAX_GHOSTS];
+        int ghostCount;
+        // Stamps of the presses this frame is the first to show, for the input-to-present
+        // histogram. The render thread empties the list once the frame is on screen; a frame
+        // it never took keeps them and the sim adds the next presses to them.
+        final long[] presses = new long[InputQueue.CAPACITY];
+        int pressCount;
+
+        Frame(int maxParticles) {
+            world = new GameWorld(0, maxParticles);
+        }
+    }
+
     public GamePanel() {
-        setPreferredSize(new Dimension(WIDTH, HEIGHT));
+        this(false);
+    }
+
+    public GamePanel(boolean stress) {
+        setPreferredSize(new Dimension(GameWorld.WIDTH, GameWorld.HEIGHT));
+        setIgnoreRepaint(true);
         setFocusable(true);
         addKeyListener(this);
         addMouseListener(this);
+        addFocusListener(this);
+        this.stress = stress;
+        showProfiler = PROFILE || stress;
+        world = stress ? new GameWorld(System.nanoTime(), STRESS_PARTICLES) : new GameWorld();
+        world.setCoursePrefetch(true);
+        renderer = new WorldRenderer();
+        runs = stress ? null : openRuns();
+        if (runs != null) {
+            world.setHighScore(runs.bestScore());
+        }
+        ghosts = stress || GHOST_SERVER == null ? null : joinRace(GHOST_SERVER);
+        audio = stress || !SOUND ? null : openAudio();
+        rewind = stress ? null : new RewindBuffer((int) (REWIND_SECONDS * LOGIC_HZ));
+        telemetry = stress || TELEMETRY_DIR == null ? null : openTelemetry(Paths.get(TELEMETRY_DIR));
+        world.setTelemetry(telemetry);
+        world.setProfiler(profiler);
+        renderer.setProfiler(profiler);
+        int maxParticles = world.getParticles().capacity();
+        frames = new TripleBuffer<>(new Frame(maxParticles), new Frame(maxParticles), new Frame(maxParticles));
         resetGame();
         createPlayButton();
+        publishFrame(System.nanoTime());
+    }
+
+    // Call once the canvas is displayable.
+    public void start() {
+        try {
+            createBufferStrategy(2, new BufferCapabilities(new ImageCapabilities(true),
+                    new ImageCapabilities(true), BufferCapabilities.FlipContents.UNDEFINED));
+        } catch (AWTException e) {
+            createBufferStrategy(2);
+        }
+        strategy = getBufferStrategy();
+        if (PROFILE) {
+            Path csv = Paths.get(System.getProperty("flappy.profileCsv", "flappy-profile.csv"));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    profiler.writeCsv(csv);
+                } catch (IOException e) {
+                    System.err.println("Cannot write " + csv + ": " + e.getMessage());
+                }
+            }, "profile-dump"));
+        }
+        running = true;
+        simThread = new Thread(this::simulate, "game-sim");
+        simThread.setDaemon(true);
+        // Ahead of painting where the OS honours it; a tick is short and has a deadline.
+        simThread.setPriority(Thread.NORM_PRIORITY + 2);
+        renderThread = new Thread(this, "game-render");
+        renderThread.setDaemon(true);
+        input.wakeOnPress(simThread);
+        simThread.start();
+        renderThread.start();
+    }
+
+    // Stops both threads, then the mixer, which stops and releases its line. Safe to call
+    // more than once. A thread stuck presenting doesn't hold it up for long.
+    public void stop() {
+        running = false;
+        for (Thread t : new Thread[] {simThread, renderThread}) {
+            if (t == null) continue;
+            LockSupport.unpark(t);
+            try {
+                t.join(1_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (audio != null) {
+            audio.close();
+        }
+    }
+
+    @Override
+    public void removeNotify() {
+        stop();
+        super.removeNotify();
+    }
+
+    private static RunStore openRuns() {
+        Path dir = RunStore.defaultDir();
+        try {
+            RunStore store = RunStore.open(dir);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    System.err.println("Cannot close run store: " + e.getMessage());
+                }
+            }, "run-store-close"));
+            return store;
+        } catch (IOException e) {
+            System.err.println("Run history disabled, cannot open " + dir + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static GhostClient joinRace(String hostPort) {
+        try {
+            InetSocketAddress server = GhostClient.parse(hostPort);
+            if (server.isUnresolved()) throw new IOException("unknown host " + server.getHostString());
+            GhostClient client = new GhostClient(server, new LossyLink());
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    System.err.println("Cannot leave ghost race: " + e.getMessage());
+                }
+            }, "ghost-close"));
+            return client;
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Ghost race disabled, cannot reach " + hostPort + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // A run still going at exit isn't logged; its events are only handed over when it ends.
+    private static Telemetry openTelemetry(Path dir) {
+        try {
+            Telemetry telemetry = new Telemetry(dir);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    telemetry.close();
+                } catch (IOException e) {
+                    System.err.println("Cannot close telemetry: " + e.getMessage());
+                }
+            }, "telemetry-close"));
+            return telemetry;
+        } catch (IOException e) {
+            System.err.println("Telemetry disabled, cannot open " + dir + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static AudioMixer openAudio() {
+        AudioMixer mixer = new AudioMixer(AudioMixer.VOICES);
+        try {
+            mixer.start();
+            return mixer;
+        } catch (LineUnavailableException | IllegalArgumentException e) {
+            System.err.println("Sound disabled, no audio output: " + e.getMessage());
+            return null;
+        }
     }
 
     private void createPlayButton() {
         int buttonWidth = 200;
         int buttonHeight = 60;
-        int buttonX = (WIDTH - buttonWidth) / 2;
-        int buttonY = HEIGHT - 200;
+        int buttonX = (GameWorld.WIDTH - buttonWidth) / 2;
+        int buttonY = GameWorld.HEIGHT - 200;
         playButton = new RoundRectangle2D.Double(buttonX, buttonY, buttonWidth, buttonHeight, 30, 30);
     }
 
     private void resetGame() {
-        bird = new Bird(WIDTH / 4, HEIGHT / 2);
-        pipes = new CopyOnWriteArrayList<>();
-        coins = new CopyOnWriteArrayList<>();
-        clouds = new CopyOnWriteArrayList<>();
-        particles = new CopyOnWriteArrayList<>();
-        score = 0;
-        coinsCollected = 0;
-        gameOver = false;
+        world.reset();
         gameStarted = false;
-        cloudCounter = 0;
-
-        for (int i = 0; i < 5; i++) {
-            addCloud();
+        paused = false;
+        if (stress) {
+            world.populate(STRESS_PIPES, STRESS_COINS, 0);
+            world.addClouds(STRESS_CLOUDS);
+            showWelcomeScreen = false;
+            gameStarted = true;
         }
-        if (gameTimer != null) gameTimer.stop();
-        if (pipeTimer != null) pipeTimer.stop();
-    }
-    private void addCloud() {
-        clouds.add(new Cloud(
-                (int)(Math.random() * WIDTH),
-                (int)(Math.random() * (HEIGHT - GROUND_HEIGHT - 100)),
-                cloudCounter++
-        ));
     }
+
     private void startGame() {
+        if (ghosts != null && ghosts.isJoined()) {
+            world.setCurve(ghosts.getCurve());
+            world.reset(ghosts.getSeed());
+        }
         gameStarted = true;
         showWelcomeScreen = false;
-
-        gameTimer = new Timer(16, this);
-        gameTimer.start();
-
-        pipeTimer = new Timer(PIPE_SPAWN_INTERVAL, e -> spawnPipe());
-        pipeTimer.start();
+        if (rewind != null) {
+            rewind.clear();
+            rewind.record(world);
+        }
     }
 
-    private void spawnPipe() {
-        if (!gameOver) {
-            int gapY = (int) (Math.random() * (HEIGHT - GROUND_HEIGHT - PIPE_GAP - 100)) + 80;
-            Pipe newPipe = new Pipe(WIDTH, gapY);
-            pipes.add(newPipe);
-            if (Math.random() < COIN_SPAWN_CHANCE) {
-                int coinX = WIDTH + PIPE_WIDTH/2;
-                int coinY = gapY + PIPE_GAP/2;
-                coins.add(new Coin(coinX, coinY));
+    // The sim thread. Each tick stands for a window of tickNanos of wall time and runs once
+    // the window has passed; after a stall at most MAX_FRAME_NANOS of it is caught up.
+    private void simulate() {
+        final long tickNanos = (long) (1e9 / LOGIC_HZ);
+        long next = System.nanoTime();
+        while (running) {
+            long now = System.nanoTime();
+            if (idle()) {
+                // Only a press changes anything now; a press unparks this thread. The tick
+                // after it covers the last window, whenever that was.
+                if (!input.hasPending()) {
+                    LockSupport.parkNanos(IDLE_SIM_NANOS);
+                }
+                now = System.nanoTime();
+                next = now - tickNanos;
+            }
+            next = Math.max(next, now - MAX_FRAME_NANOS);
+            if (now - next >= tickNanos) {
+                do {
+                    tick(next, tickNanos);
+                    next += tickNanos;
+                } while (now - next >= tickNanos);
+                publishFrame(next);
+            }
+            long due = next + tickNanos;
+            long wait = due - System.nanoTime();
+            if (wait > 1_000_000L) {
+                LockSupport.parkNanos(wait - 1_000_000L);
+            }
+            while (System.nanoTime() < due) {
+                Thread.yield();
             }
         }
     }
 
-    private void createParticles(int x, int y, int count) {
-        for (int i = 0; i < count; i++) {
-            particles.add(new Particle(x, y));
+    // Sim thread: nothing on screen moves and only a press can change that.
+    private boolean idle() {
+        return !stress && ghosts == null && (!gameStarted || paused || world.isGameOver());
+    }
+
+    // Sim thread. Ghosts are sampled here, for the frame's time, because the client is
+    // the sim thread's too.
+    private void publishFrame(long at) {
+        Frame frame = frames.back();
+        frame.world.copyFrom(world);
+        frame.started = gameStarted;
+        frame.paused = paused;
+        frame.welcome = showWelcomeScreen;
+        frame.at = at;
+        frame.ghostCount = ghosts != null && gameStarted ? ghosts.sample(at, frame.ghostDistances, frame.ghostYs) : 0;
+        frames.publish();
+        if (renderWaiting) {
+            LockSupport.unpark(renderThread);
         }
     }
 
+    // The render thread.
     @Override
-    public void actionPerformed(ActionEvent e) {
-        if (gameStarted && !gameOver) {
-            bird.update(GRAVITY, AIR_RESISTANCE);
-            flapCycle = (flapCycle + 1) % 10;
-            Iterator<Particle> particleIter = particles.iterator();
-            while (particleIter.hasNext()) {
-                Particle p = particleIter.next();
-                p.update();
-                if (p.isDead()) {
-                    particles.remove(p);
-                }
+    public void run() {
+        final long tickNanos = (long) (1e9 / LOGIC_HZ);
+        final long renderNanos = (long) (1e9 / renderHz());
+        governor.setBudget(renderNanos);
+        long nextRender = System.nanoTime();
+        long keepAliveAt = nextRender;
+        long reportStart = nextRender;
+        long cpuAtReport = Profiler.processCpuNanos();
+        int framesSinceReport = 0;
+        boolean continuous = true;
+        Frame shown = null;
+        while (running) {
+            long now = System.nanoTime();
+            if ((stress || CPU_REPORT) && now - reportStart >= 1_000_000_000L) {
+                long cpu = Profiler.processCpuNanos();
+                double seconds = (now - reportStart) / 1e9;
+                String load = cpu < 0 ? "CPU unknown" : String.format("%.1f%% CPU", (cpu - cpuAtReport) / 1e7 / seconds);
+                System.out.printf("%d fps, %s, %s, quality %d (%s), %d particles%n",
+                        Math.round(framesSinceReport / seconds), continuous ? "continuous" : "on demand", load,
+                        governor.quality().index, governor.quality().name, shown == null ? 0
+                                : shown.world.getParticles().count());
+                reportStart = now;
+                cpuAtReport = cpu;
+                framesSinceReport = 0;
             }
-            Iterator<Cloud> cloudIter = clouds.iterator();
-            while (cloudIter.hasNext()) {
-                Cloud cloud = cloudIter.next();
-                cloud.update();
-                if (cloud.isOffScreen()) {
-                    clouds.remove(cloud);
-                    addCloud();
+            Frame frame = frames.acquire();
+            boolean moving = frame.started && !frame.paused && !frame.world.isGameOver();
+            continuous = moving || stress || frame.ghostCount > 0 || showProfiler || recordClip || clip != null;
+            if (!continuous && frame == shown && now < keepAliveAt) {
+                // On demand with nothing new. The flag goes up before the last look, so a
+                // frame published in between still gets a wake-up.
+                renderWaiting = true;
+                if (!frames.hasFresh()) {
+                    LockSupport.parkNanos(keepAliveAt - now);
                 }
+                renderWaiting = false;
+                continue;
             }
-            Iterator<Pipe> pipeIter = pipes.iterator();
-            while (pipeIter.hasNext()) {
-                Pipe pipe = pipeIter.next();
-                pipe.update(PIPE_SPEED);
+            shown = frame;
+            keepAliveAt = now + KEEPALIVE_NANOS;
+            // How far the clock is past the frame's tick; held at the tick rather than
+            // guessed ahead when the sim is late.
+            float alpha = moving ? (float) Math.min(1, Math.max(0, (double) (now - frame.at) / tickNanos)) : 1f;
+            renderer.setQuality(governor.quality());
+            render(frame, alpha);
+            // Present can block on vsync, so it doesn't count as work.
+            governor.frame(presentStart - now);
+            captureClip(frame, now);
+            startup(frame.welcome, moving, now);
+            framesSinceReport++;
 
-                if (pipe.getX() + PIPE_WIDTH < 0) {
-                    pipes.remove(pipe);
-                }
+            nextRender = Math.max(nextRender + renderNanos, now);
+            long wait = nextRender - System.nanoTime();
+            if (wait > 1_000_000L) {
+                LockSupport.parkNanos(wait - 1_000_000L);
+            }
+            while (System.nanoTime() < nextRender) {
+                Thread.yield();
+            }
+        }
+    }
 
-                if (!pipe.isPassed() && pipe.getX() + PIPE_WIDTH < bird.getX()) {
-                    score++;
-                    if (score > highScore) highScore = score;
-                    pipe.setPassed(true);
-                    createParticles(pipe.getX() + PIPE_WIDTH, pipe.getGapY() + PIPE_GAP / 2, 15);
+    // Runs on the sim thread only; the EDT just queues presses. The tick stands for the
+    // wall-clock window of tickNanos from start, and takes the presses stamped before its end.
+    private void tick(long start, long tickNanos) {
+        if (stress) {
+            while (input.poll(Long.MAX_VALUE) != InputQueue.NONE) {
+                // The autopilot is flying.
+            }
+            if (world.isGameOver()) {
+                resetGame();
+            }
+            world.fillParticles();
+            world.step(world.autopilotWantsFlap());
+            return;
+        }
+        int flapPhase = GameWorld.NO_FLAP;
+        long now = System.nanoTime();
+        for (int press; (press = input.poll(start + tickNanos)) != InputQueue.NONE; ) {
+            long at = input.pressedAt();
+            profiler.histogram(Profiler.INPUT_APPLIED).record(now - at);
+            Frame pending = frames.back();
+            if (pending.pressCount < pending.presses.length) {
+                pending.presses[pending.pressCount++] = at;
+            }
+            if (press == InputQueue.SPACE) {
+                if (showWelcomeScreen) {
+                    startGame();
+                } else if (!gameStarted) {
+                    startGame();
+                } else if (paused) {
+                    paused = false;
+                } else if (world.isGameOver()) {
+                    resetGame();
+                } else {
+                    // Only the last of several flaps in one tick counts; each resets the velocity.
+                    flapPhase = (int) Math.max(0, (at - start) * GameWorld.FLAP_PHASES / tickNanos);
                 }
-
-                if (pipe.collidesWith(bird)) {
-                    gameOver = true;
-                    createParticles((int)bird.getX(), (int)bird.getY(), 30);
+            } else if (press == InputQueue.PLAY && showWelcomeScreen) {
+                startGame();
+            } else if (press == InputQueue.PAUSE && gameStarted && !world.isGameOver()) {
+                paused = true;
+                flapPhase = GameWorld.NO_FLAP;
+            } else if (press == InputQueue.REWIND && gameStarted && rewind != null) {
+                // Practice: back a few seconds, then SPACE carries on from there.
+                if (rewind.rewind(world, (int) (REWIND_STEP_SECONDS * LOGIC_HZ)) >= 0) {
+                    paused = true;
+                    flapPhase = GameWorld.NO_FLAP;
                 }
             }
-            Iterator<Coin> coinIter = coins.iterator();
-            while (coinIter.hasNext()) {
-                Coin coin = coinIter.next();
-                coin.update(PIPE_SPEED);
+        }
+        if (gameStarted && !paused && !world.isGameOver()) {
+            int score = world.getScore();
+            int coins = world.getCoinsCollected();
+            world.step(flapPhase);
+            if (rewind != null) {
+                rewind.record(world);
+            }
+            if (audio != null) {
+                if (flapPhase != GameWorld.NO_FLAP) audio.play(Sfx.FLAP);
+                if (world.getScore() > score) audio.play(Sfx.SCORE);
+                if (world.getCoinsCollected() > coins) audio.play(Sfx.COIN);
+                if (world.isGameOver()) audio.play(Sfx.HIT);
+            }
+            // Rewound runs are practice and go on no record.
+            if (world.isGameOver() && !world.isPractice() && REPLAY_DIR != null) {
+                saveReplay(world.getRecording().toBytes(), world.getSeed());
+            }
+            if (world.isGameOver() && !world.isPractice() && runs != null) {
+                recordRun();
+            }
+            if (world.isGameOver() && telemetry != null) {
+                telemetry.flush();
+            }
+        }
+        if (ghosts != null) {
+            syncGhosts();
+        }
+    }
 
-               
-                if (coin.getX() + Coin.SIZE < 0) {
-                    coins.remove(coin);
-                }
+    private void syncGhosts() {
+        long now = System.nanoTime();
+        try {
+            ghosts.poll(now);
+            ghosts.sendState(now, world.getDistance(), world.getBird().getY(), world.getScore(),
+                    gameStarted && !world.isGameOver());
+        } catch (IOException e) {
+            System.err.println("Ghost race: " + e.getMessage());
+        }
+    }
 
-              
-                if (coin.collidesWith(bird)) {
-                    coinsCollected++;
-                    coins.remove(coin);
-                    createParticles((int)coin.getX(), (int)coin.getY(), 20);
-                }
-            }
+    private void recordRun() {
+        try {
+            runs.append(new RunStore.Run(world.getScore(), world.getCoinsCollected(), world.getTick(),
+                    world.getSeed(), System.currentTimeMillis()));
+        } catch (IOException e) {
+            System.err.println("Cannot record run: " + e.getMessage());
+        }
+    }
 
-            if (bird.getY() <= 0 || bird.getY() + Bird.SIZE >= HEIGHT - GROUND_HEIGHT) {
-                gameOver = true;
-                createParticles((int)bird.getX(), (int)bird.getY(), 30);
+    private static void saveReplay(byte[] data, long seed) {
+        CompletableFuture.runAsync(() -> {
+            Path file = Paths.get(REPLAY_DIR, "run-" + Long.toUnsignedString(seed, 16) + ".fbr");
+            try {
+                Files.createDirectories(file.getParent());
+                Files.write(file, data);
+            } catch (IOException e) {
+                System.err.println("Cannot save replay " + file + ": " + e.getMessage());
             }
-        }
-        repaint();
+        });
     }
 
-    @Override
-    protected void paintComponent(Graphics g) {
-        super.paintComponent(g);
-        Graphics2D g2d = (Graphics2D) g;
-        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    private void render(Frame frame, float alpha) {
+        profiler.beginPaint();
+        do {
+            do {
+                Graphics2D g2d = (Graphics2D) strategy.getDrawGraphics();
+                try {
+                    governor.quality().apply(g2d);
+                    if (frame.welcome) {
+                        renderer.drawWelcomeScreen(g2d, frame.world);
+                    } else {
+                        renderer.setGhosts(frame.ghostDistances, frame.ghostYs, frame.ghostCount);
+                        renderer.render(g2d, frame.world, frame.started, frame.paused, alpha);
+                    }
+                    if (showProfiler) {
+                        overlay.draw(g2d);
+                        profiler.lapPaint(Profiler.PAINT_OVERLAY);
+                    }
+                } finally {
+                    g2d.dispose();
+                }
+            } while (strategy.contentsRestored());
+            presentStart = System.nanoTime();
+            strategy.show();
+        } while (strategy.contentsLost());
+        Toolkit.getDefaultToolkit().sync();
+        long shown = System.nanoTime();
+        LatencyHistogram presented = profiler.histogram(Profiler.INPUT_PRESENTED);
+        for (int i = 0; i < frame.pressCount; i++) {
+            presented.record(shown - frame.presses[i]);
+        }
+        frame.pressCount = 0;
+        profiler.lapPaint(Profiler.PAINT_PRESENT);
+        profiler.endPaint();
+        profiler.endFrame();
+    }
 
-        if (showWelcomeScreen) {
-            drawWelcomeScreen(g2d);
-            return;
+    // Render thread: starts the warm-up once the welcome screen is up and stops it when play
+    // starts, and times the first frame and the first second of play for STARTUP_REPORT.
+    private void startup(boolean welcome, boolean moving, long now) {
+        if (!firstFrameShown) {
+            firstFrameShown = true;
+            if (STARTUP_REPORT) {
+                System.out.printf("first frame up %d ms after JVM start%n",
+                        ManagementFactory.getRuntimeMXBean().getUptime());
+            }
+            if (welcome && !stress && Warmup.ENABLED) {
+                warmup = Warmup.start();
+            }
         }
-        GradientPaint skyGradient = new GradientPaint(0, 0, new Color(135, 206, 250),
-                0, HEIGHT, new Color(100, 149, 237));
-        g2d.setPaint(skyGradient);
-        g2d.fillRect(0, 0, WIDTH, HEIGHT);
+        if (!moving || playStart == Long.MAX_VALUE) return;
+        if (warmup != null) {
+            warmup.cancel();
+        }
+        if (playStart < 0) {
+            playStart = presentStart;
+        } else {
+            firstSecond.record(presentStart - lastPresent);
+            maxPaint = Math.max(maxPaint, presentStart - now);
+        }
+        lastPresent = presentStart;
+        if (presentStart - playStart < 1_000_000_000L) return;
+        playStart = Long.MAX_VALUE;
+        if (STARTUP_REPORT) {
+            String warm = warmup == null ? "off" : warmup.getElapsedNanos() < 0 ? "still stopping"
+                    : String.format("%s after %.0f ms", warmup.isCancelled() ? "cancelled" : "finished",
+                    warmup.getElapsedNanos() / 1e6);
+            System.out.printf("first second of play: %d frames, between presents p50 %.1f ms, p99 %.1f ms, "
+                            + "max %.1f ms, longest paint %.1f ms, warm-up %s%n", firstSecond.count(),
+                    firstSecond.percentile(0.50) / 1e6, firstSecond.percentile(0.99) / 1e6,
+                    firstSecond.max() / 1e6, maxPaint / 1e6, warm);
+        }
+    }
 
-      
-        g2d.setColor(new Color(255, 255, 200, 150));
-        g2d.fillOval(WIDTH - 120, 40, 80, 80);
-        for (Cloud cloud : clouds) {
-            cloud.draw(g2d);
+    // Render thread: opens and finishes the clip F9 asks for, and hands it each frame. The
+    // scene image is left as render composed it, so copying it after present is safe.
+    private void captureClip(Frame frame, long now) {
+        if (recordClip && clip == null) {
+            Path dir = Paths.get(CLIP_DIR, "clip-" + System.currentTimeMillis());
+            try {
+                clip = new ClipRecorder(dir, ClipRecorder.FORMAT, GameWorld.WIDTH, GameWorld.HEIGHT,
+                        ClipRecorder.FPS, ClipRecorder.WORKERS);
+                System.out.println("Recording clip to " + dir);
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Cannot record clip to " + dir + ": " + e.getMessage());
+                recordClip = false;
+            }
+        } else if (!recordClip && clip != null) {
+            ClipRecorder done = clip;
+            clip = null;
+            CompletableFuture.runAsync(() -> closeClip(done));
         }
-        for (Pipe pipe : pipes) {
-            pipe.draw(g2d);
+        if (clip != null && clip.getFailure() != null) {
+            // No use filling a clip that can't be written.
+            ClipRecorder failed = clip;
+            clip = null;
+            recordClip = false;
+            CompletableFuture.runAsync(() -> closeClip(failed));
         }
-        for (Coin coin : coins) {
-            coin.draw(g2d);
+        if (clip != null && !frame.welcome) {
+            long start = System.nanoTime();
+            clip.capture(renderer.getFrame(), now);
+            profiler.histogram(Profiler.CAPTURE).record(System.nanoTime() - start);
         }
-        GradientPaint groundGradient = new GradientPaint(0, HEIGHT - GROUND_HEIGHT,
-                new Color(0, 155, 0), 0, HEIGHT, new Color(0, 100, 0));
-        g2d.setPaint(groundGradient);
-        g2d.fillRect(0, HEIGHT - GROUND_HEIGHT, WIDTH, GROUND_HEIGHT);
+    }
 
-        g2d.setColor(new Color(139, 69, 19)); 
-        g2d.fillRect(0, HEIGHT - 20, WIDTH, 20);
+    // Waits for the encoders off the render thread, so a failure on the last frames is
+    // reported too.
+    private static void closeClip(ClipRecorder clip) {
+        try {
+            clip.close();
+            System.out.printf("Clip %s: %d frames, %d dropped%n", clip.getDir(), clip.getCaptured(),
+                    clip.getDropped());
+        } catch (IOException e) {
+            System.err.println("Cannot write clip " + clip.getDir() + ": " + e.getMessage());
+        }
+    }
 
-        g2d.setColor(new Color(100, 80, 0));
-        for (int i = 0; i < WIDTH; i += 30) {
-            g2d.fillRect(i, HEIGHT - 20, 15, 5);
+    private int renderHz() {
+        if (RENDER_HZ > 0) return RENDER_HZ;
+        GraphicsConfiguration gc = getGraphicsConfiguration();
+        int refresh = gc == null ? DisplayMode.REFRESH_RATE_UNKNOWN
+                : gc.getDevice().getDisplayMode().getRefreshRate();
+        return refresh == DisplayMode.REFRESH_RATE_UNKNOWN ? 60 : refresh;
+    }
+
+    @Override
+    public void keyPressed(KeyEvent e) {
+        if (e.getKeyCode() == KeyEvent.VK_SPACE) {
+            input.press(InputQueue.SPACE, System.nanoTime());
+        } else if (e.getKeyCode() == KeyEvent.VK_BACK_SPACE) {
+            input.press(InputQueue.REWIND, System.nanoTime());
+        } else if (e.getKeyCode() == KeyEvent.VK_F3) {
+            showProfiler = !showProfiler;
+        } else if (e.getKeyCode() == KeyEvent.VK_F9) {
+            recordClip = !recordClip;
         }
-        for (Particle p : particles) {
-            p.draw(g2d);
+    }
+    @Override public void keyTyped(KeyEvent e) {}
+    @Override public void keyReleased(KeyEvent e) {}
+    // On press rather than click, which only comes once the button is released.
+    @Override
+    public void mousePressed(MouseEvent e) {
+        if (playButton.contains(e.getPoint())) {
+            input.press(InputQueue.PLAY, System.nanoTime());
         }
-        bird.draw(g2d, flapCycle);
-        g2d.setColor(new Color(0, 0, 0, 100));
-        g2d.fillRoundRect(10, 10, 200, 85, 15, 15);
+    }
+    // Covers minimizing and switching windows too, which take the focus with them.
+    @Override
+    public void focusLost(FocusEvent e) {
+        if (!stress) {
+            input.press(InputQueue.PAUSE, System.nanoTime());
+        }
+    }
+    @Override public void focusGained(FocusEvent e) {}
+    @Override public void mouseClicked(MouseEvent e) {}
+    @Override public void mouseReleased(MouseEvent e) {}
+    @Override public void mouseEntered(MouseEvent e) {}
+    @Override public void mouseExited(MouseEvent e) {}
+}
 
-        g2d.setColor(Color.WHITE);
-        g2d.setFont(new Font("Arial", Font.PLAIN, 18));
-        g2d.drawString("Score: " + score, 20, 40);
+// Gets the first played frame to steady-state speed while the welcome screen is up. A
+// background thread plays a throwaway world with the autopilot and paints it offscreen with
+// a throwaway renderer, so the tick, the copy handed to the render thread, the rewind record
+// and the paint paths are loaded and compiled, and the fonts and Java2D loops they draw with
+// are loaded, before play needs them. It shares nothing with the game but the course-gen
+// thread, and stops within a tick of cancel().
+final class Warmup implements Runnable {
+    // -Dflappy.warmup=false skips it, to compare.
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("flappy.warmup", "true"));
+    // Well past the invocation and loop counts at which the tick gets compiled.
+    static final int TICKS = 30_000;
+    static final int FRAMES = 150;
+    // What the window needs that a headless run never loads, for the CDS training run.
+    private static final String[] GUI_CLASSES = {
+            "GamePanel", "GamePanel$Frame", "AudioMixer", "RunStore", "GhostClient",
+            "javax.swing.JFrame", "javax.swing.JRootPane", "javax.swing.JLayeredPane", "javax.swing.JPanel",
+            "javax.swing.RepaintManager", "java.awt.EventQueue", "java.awt.EventDispatchThread",
+            "java.awt.BufferCapabilities", "java.awt.ImageCapabilities", "java.awt.DisplayMode",
+            "java.awt.Component$FlipBufferStrategy", "java.awt.Component$BltBufferStrategy",
+            "java.awt.event.KeyEvent", "java.awt.event.MouseEvent", "java.awt.event.FocusEvent",
+    };
 
-        g2d.setFont(new Font("Arial", Font.PLAIN, 18));
-        g2d.drawString("High: " + highScore, 20, 70);
+    private volatile boolean cancelled;
+    // -1 until run() returns.
+    private volatile long elapsedNanos = -1;
+    private int ticks, frames;
 
+    // On a daemon thread, below the game's.
+    static Warmup start() {
+        Warmup warmup = new Warmup();
+        Thread t = new Thread(warmup, "warmup");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+        return warmup;
+    }
 
-        g2d.setColor(new Color(255, 215, 0));
-        g2d.fillOval(20, 80, 15, 15);
-        g2d.setColor(Color.BLACK);
-        g2d.drawOval(20, 80, 15, 15);
-        g2d.setColor(Color.WHITE);
-        g2d.drawString(": " + coinsCollected, 40, 95);
+    // Loads without initializing, so nothing needs a display.
+    static void loadGuiClasses() {
+        for (String name : GUI_CLASSES) {
+            try {
+                Class.forName(name, false, Warmup.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                System.err.println("Cannot load " + name + ": " + e.getMessage());
+            }
+        }
+    }
 
-        if (!gameStarted && !showWelcomeScreen) {
-            drawCenteredMessage(g2d, "FLAPPY BIRD", 48, Color.YELLOW, -100);
-            drawCenteredMessage(g2d, "Press SPACE to Start", 24, Color.WHITE, 0);
-            drawCenteredMessage(g2d, "Press SPACE to Jump", 24, Color.WHITE, 40);
+    public void cancel() { cancelled = true; }
+    public boolean isCancelled() { return cancelled; }
+    public long getElapsedNanos() { return elapsedNanos; }
+    public int getTicks() { return ticks; }
+    public int getFrames() { return frames; }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        Profiler profiler = new Profiler();
+        GameWorld world = new GameWorld(1);
+        world.setCoursePrefetch(true);
+        world.setProfiler(profiler);
+        GameWorld copy = new GameWorld(0, world.getParticles().capacity());
+        RewindBuffer rewind = new RewindBuffer(64);
+        WorldRenderer renderer = new WorldRenderer();
+        renderer.setProfiler(profiler);
+        Graphics2D g2d = WorldRenderer.newOpaqueImage(GameWorld.WIDTH, GameWorld.HEIGHT).createGraphics();
+        try {
+            paint(renderer, g2d, world, false);
+            int every = TICKS / FRAMES;
+            for (; ticks < TICKS && !cancelled; ticks++) {
+                if (world.isGameOver()) {
+                    paint(renderer, g2d, world, true);
+                    world.reset();
+                }
+                world.step(world.autopilotWantsFlap() ? ticks % GameWorld.FLAP_PHASES : GameWorld.NO_FLAP);
+                rewind.record(world);
+                copy.copyFrom(world);
+                if (ticks % every == 0) {
+                    paint(renderer, g2d, copy, true);
+                }
+            }
+            // The game-over screen, in case the autopilot never died.
+            for (int i = 0; i < 1_000 && !world.isGameOver() && !cancelled; i++) {
+                world.step(GameWorld.NO_FLAP);
+            }
+            if (!cancelled) {
+                paint(renderer, g2d, world, true);
+            }
+        } finally {
+            g2d.dispose();
+            elapsedNanos = System.nanoTime() - start;
+        }
+    }
+
+    private void paint(WorldRenderer renderer, Graphics2D g2d, GameWorld world, boolean started) {
+        renderer.render(g2d, world, started, (frames % 8) / 8f);
+        frames++;
+    }
+}
+
+// Presses on their way from the EDT to the game loop. Each is stamped with nanoTime as the
+// listener sees it and waits in an SpscRing until the loop runs the tick whose window holds
+// the stamp, so presses are neither merged nor moved to another tick when the loop runs
+// late, and a flap lands where in its tick it was pressed.
+// press() is for the one producer thread, everything else for the sim thread.
+class InputQueue {
+    static final int NONE = 0, SPACE = 1, PLAY = 2, REWIND = 3, PAUSE = 4;
+    static final int CAPACITY = 64;
+
+    private static final class Press {
+        final int kind;
+        final long at;
+
+        Press(int kind, long at) {
+            this.kind = kind;
+            this.at = at;
+        }
+    }
+
+    private final SpscRing<Press> ring = new SpscRing<>(CAPACITY);
+    private long pressedAt;
+    private volatile Thread consumer;
+
+    // Unparks thread after every press, for a consumer that parks while idle.
+    public void wakeOnPress(Thread thread) {
+        consumer = thread;
+    }
+
+    // False if the loop has fallen so far behind that the queue is full.
+    public boolean press(int kind, long nanos) {
+        boolean queued = ring.offer(new Press(kind, nanos));
+        Thread thread = consumer;
+        if (thread != null) LockSupport.unpark(thread);
+        return queued;
+    }
+
+    public boolean hasPending() {
+        return ring.peek() != null;
+    }
+
+    // The oldest press stamped before the given time, or NONE; pressedAt() is its stamp.
+    public int poll(long before) {
+        Press press = ring.peek();
+        if (press == null || press.at >= before) return NONE;
+        ring.poll();
+        pressedAt = press.at;
+        return press.kind;
+    }
+
+    public long pressedAt() {
+        return pressedAt;
+    }
+}
+
+// The game's sound effects, synthesized into 16-bit mono PCM once when the class loads,
+// so starting one is just pointing a voice at an array.
+final class Sfx {
+    static final int FLAP = 0, SCORE = 1, COIN = 2, HIT = 3;
+    static final float RATE = 44_100;
+    static final short[][] PCM = {flap(), score(), coin(), hit()};
+
+    private Sfx() {}
+
+    private static short[] flap() {
+        return pcm(tone(0.09f, 380, 760, 0.35f, 30, false));
+    }
+
+    private static short[] score() {
+        return pcm(concat(tone(0.07f, 988, 988, 0.3f, 20, false), tone(0.16f, 1319, 1319, 0.3f, 14, false)));
+    }
+
+    private static short[] coin() {
+        return pcm(concat(tone(0.05f, 1568, 1568, 0.15f, 10, true), tone(0.18f, 2093, 2093, 0.15f, 16, true)));
+    }
+
+    private static short[] hit() {
+        float[] thump = tone(0.3f, 140, 50, 0.6f, 10, false);
+        float[] noise = noise(0.25f, 0.4f, 18);
+        for (int i = 0; i < noise.length; i++) thump[i] += noise[i];
+        return pcm(thump);
+    }
+
+    // A sine (or square) gliding from one pitch to another under an exponential decay.
+    private static float[] tone(float seconds, float fromHz, float toHz, float volume, float decay,
+                                boolean square) {
+        float[] out = new float[(int) (seconds * RATE)];
+        double phase = 0;
+        for (int i = 0; i < out.length; i++) {
+            float t = i / RATE;
+            phase += 2 * Math.PI * (fromHz + (toHz - fromHz) * i / out.length) / RATE;
+            double wave = Math.sin(phase);
+            if (square) wave = Math.signum(wave);
+            out[i] = (float) (wave * volume * Math.exp(-decay * t) * fade(t, seconds));
+        }
+        return out;
+    }
+
+    // White noise through a one-pole low-pass, so the crash thuds rather than hisses.
+    private static float[] noise(float seconds, float volume, float decay) {
+        GameRandom random = new GameRandom(0x5f);
+        float[] out = new float[(int) (seconds * RATE)];
+        float smooth = 0;
+        for (int i = 0; i < out.length; i++) {
+            smooth += 0.2f * ((random.nextFloat() * 2 - 1) - smooth);
+            out[i] = (float) (smooth * volume * Math.exp(-decay * i / RATE) * fade(i / RATE, seconds));
+        }
+        return out;
+    }
+
+    // 2 ms ramps at either end, so a sound doesn't click on or off.
+    private static float fade(float t, float seconds) {
+        return Math.min(1, Math.min(t, seconds - t) / 0.002f);
+    }
+
+    private static float[] concat(float[] a, float[] b) {
+        float[] out = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+
+    private static short[] pcm(float[] samples) {
+        short[] out = new short[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            out[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(samples[i] * 32767)));
+        }
+        return out;
+    }
+}
+
+// Mixes Sfx into one SourceDataLine on its own thread. The game loop only says which
+// effect to start, through an SpscRing; the mixer thread owns the voices. Up to `voices`
+// play at once, and a new one takes over the voice with the fewest frames left. Periods
+// are PERIOD_FRAMES long and the line holds LINE_PERIODS of them, which bounds the delay
+// from play() to the speaker at about 23 ms. Everything mix() touches is allocated up
+// front, so mixing allocates nothing.
+// Without start() there is no line and no thread: mix() renders into the caller's buffer,
+// for headless tests and benchmarks. Then the caller is the mixer thread.
+class AudioMixer implements Closeable {
+    public static final AudioFormat FORMAT = new AudioFormat(Sfx.RATE, 16, 1, true, false);
+    public static final int FRAME_BYTES = 2;
+    public static final int PERIOD_FRAMES = 256;
+    private static final int LINE_PERIODS = 4;
+    public static final int VOICES = Integer.getInteger("flappy.audioVoices", 8);
+
+    // Sfx ids are small enough to come from Integer's cache, so play() allocates nothing.
+    private final SpscRing<Integer> starts = new SpscRing<>(64);
+    private final int[] voiceSound;
+    private final int[] voicePos;
+    private final int[] sum = new int[PERIOD_FRAMES];
+    private final LatencyHistogram mixNanos = new LatencyHistogram();
+    private int stolen;
+    private volatile boolean running;
+    private Thread thread;
+
+    public AudioMixer(int voices) {
+        voiceSound = new int[voices];
+        voicePos = new int[voices];
+        Arrays.fill(voiceSound, -1);
+    }
+
+    // Safe from one thread besides the mixer. Dropped if the mixer is that far behind.
+    public void play(int sound) {
+        starts.offer(sound);
+    }
+
+    // Opens the default output line and starts mixing into it.
+    public void start() throws LineUnavailableException {
+        SourceDataLine line = AudioSystem.getSourceDataLine(FORMAT);
+        line.open(FORMAT, PERIOD_FRAMES * FRAME_BYTES * LINE_PERIODS);
+        line.start();
+        running = true;
+        thread = new Thread(() -> run(line), "audio-mixer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    private void run(SourceDataLine line) {
+        byte[] period = new byte[PERIOD_FRAMES * FRAME_BYTES];
+        try {
+            while (running) {
+                long start = System.nanoTime();
+                mix(period, PERIOD_FRAMES);
+                mixNanos.record(System.nanoTime() - start);
+                // Blocks while the line is full, which paces the loop.
+                line.write(period, 0, period.length);
+            }
+        } finally {
+            line.stop();
+            line.close();
+        }
+    }
+
+    // Mixes the next frames (at most PERIOD_FRAMES) as 16-bit little-endian samples into
+    // out; returns how many voices are still playing.
+    public int mix(byte[] out, int frames) {
+        for (Integer sound; (sound = starts.poll()) != null; ) {
+            startVoice(sound);
+        }
+        Arrays.fill(sum, 0, frames, 0);
+        int playing = 0;
+        for (int v = 0; v < voiceSound.length; v++) {
+            if (voiceSound[v] < 0) continue;
+            short[] pcm = Sfx.PCM[voiceSound[v]];
+            int pos = voicePos[v];
+            int n = Math.min(frames, pcm.length - pos);
+            for (int i = 0; i < n; i++) {
+                sum[i] += pcm[pos + i];
+            }
+            if (pos + n == pcm.length) {
+                voiceSound[v] = -1;
+            } else {
+                voicePos[v] = pos + n;
+                playing++;
+            }
+        }
+        for (int i = 0, b = 0; i < frames; i++) {
+            int s = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sum[i]));
+            out[b++] = (byte) s;
+            out[b++] = (byte) (s >> 8);
+        }
+        return playing;
+    }
+
+    private void startVoice(int sound) {
+        int pick = 0;
+        for (int v = 0; v < voiceSound.length; v++) {
+            if (voiceSound[v] < 0) {
+                pick = v;
+                break;
+            }
+            if (remaining(v) < remaining(pick)) pick = v;
+        }
+        if (voiceSound[pick] >= 0) stolen++;
+        voiceSound[pick] = sound;
+        voicePos[pick] = 0;
+    }
+
+    private int remaining(int v) {
+        return Sfx.PCM[voiceSound[v]].length - voicePos[v];
+    }
+
+    // Time per mixed period on the mixer thread, from start() on.
+    public LatencyHistogram getMixNanos() { return mixNanos; }
+    // Voices cut short to make room; read on the mixer thread.
+    public int getStolen() { return stolen; }
+
+    @Override
+    public void close() {
+        running = false;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
+
+// Records what the renderer draws as a clip for bug reports and highlights: a numbered
+// PNG sequence, or one looping animated GIF, in dir. capture() copies the frame's pixels
+// into one of POOL_FRAMES preallocated rasters and queues it for the encoder threads, and
+// never waits. When every raster is still queued the frame is dropped and the capture rate
+// halves, down to an eighth, climbing back once the encoders have caught up. PNG frames are
+// encoded in parallel by a pool of workers; a GIF is a single stream written in order, so
+// it gets one. capture() is for one thread, the one that renders.
+class ClipRecorder implements Closeable {
+    static final int POOL_FRAMES = 8;
+    // Pick with -Dflappy.clipFormat=png|gif, -Dflappy.clipFps=N and -Dflappy.clipWorkers=N.
+    static final String FORMAT = System.getProperty("flappy.clipFormat", "png");
+    static final double FPS = Double.parseDouble(System.getProperty("flappy.clipFps", "30"));
+    static final int WORKERS = Integer.getInteger("flappy.clipWorkers",
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    private static final int MAX_BACKOFF = 8;
+
+    private static final class Job {
+        final int[] pixels;
+        int index;
+        long at;
+
+        Job(int[] pixels) {
+            this.pixels = pixels;
+        }
+    }
+
+    private static final Job STOP = new Job(new int[0]);
+
+    private final Path dir;
+    private final boolean gif;
+    private final int width, height;
+    private final long baseInterval;
+    private final ArrayBlockingQueue<Job> free = new ArrayBlockingQueue<>(POOL_FRAMES);
+    private final ArrayBlockingQueue<Job> work;
+    private final Thread[] workers;
+    private final AtomicInteger encoded = new AtomicInteger();
+    private final AtomicLong encodeNanos = new AtomicLong();
+    private volatile IOException failure;
+    // The capturing thread's.
+    private long interval;
+    private long nextAt;
+    private int captured;
+    private int dropped;
+    private boolean finished;
+
+    public ClipRecorder(Path dir, String format, int width, int height, double fps, int workers)
+            throws IOException {
+        if (!format.equals("png") && !format.equals("gif")) {
+            throw new IllegalArgumentException("unknown clip format " + format);
+        }
+        Files.createDirectories(dir);
+        this.dir = dir;
+        this.gif = format.equals("gif");
+        this.width = width;
+        this.height = height;
+        baseInterval = interval = (long) (1e9 / fps);
+        for (int i = 0; i < POOL_FRAMES; i++) {
+            free.add(new Job(new int[width * height]));
+        }
+        this.workers = new Thread[gif ? 1 : Math.max(1, workers)];
+        work = new ArrayBlockingQueue<>(POOL_FRAMES + this.workers.length);
+        for (int i = 0; i < this.workers.length; i++) {
+            Thread t = new Thread(gif ? this::encodeGif : this::encodePngs, "clip-encoder-" + i);
+            t.setDaemon(true);
+            // Behind the game's threads where the OS honours it.
+            t.setPriority(Thread.MIN_PRIORITY);
+            this.workers[i] = t;
+            t.start();
+        }
+    }
+
+    public Path getDir() { return dir; }
+    public int getCaptured() { return captured; }
+    public int getDropped() { return dropped; }
+    public int getEncoded() { return encoded.get(); }
+    public long getEncodeNanos() { return encodeNanos.get(); }
+    // The first encoder failure; null while all is well.
+    public IOException getFailure() { return failure; }
+
+    // Returns whether frame was taken; now is the capture clock in nanoseconds. Skips
+    // frames to keep to the capture rate, and drops them when no raster is free.
+    public boolean capture(BufferedImage frame, long now) {
+        if (finished || now < nextAt) return false;
+        Job job = free.poll();
+        if (job == null) {
+            dropped++;
+            interval = Math.min(interval * 2, baseInterval * MAX_BACKOFF);
+            nextAt = now + interval;
+            return false;
+        }
+        int type = frame.getType();
+        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB
+                || type == BufferedImage.TYPE_INT_ARGB_PRE) {
+            frame.getRaster().getDataElements(0, 0, width, height, job.pixels);
+        } else {
+            frame.getRGB(0, 0, width, height, job.pixels, 0, width);
+        }
+        job.index = captured++;
+        job.at = now;
+        // Never full: it has room for every job and the stop marks.
+        work.offer(job);
+        if (interval > baseInterval && free.size() > POOL_FRAMES / 2) {
+            interval = Math.max(baseInterval, interval / 2);
+        }
+        nextAt = Math.max(nextAt + interval, now);
+        return true;
+    }
+
+    // Stops taking frames; the encoders finish what is queued and the file, then exit.
+    // Doesn't wait for them.
+    public void finish() {
+        if (finished) return;
+        finished = true;
+        for (int i = 0; i < workers.length; i++) {
+            work.offer(STOP);
+        }
+    }
+
+    // Finishes and waits for the encoders.
+    @Override
+    public void close() throws IOException {
+        finish();
+        try {
+            for (Thread t : workers) t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) throw failure;
+    }
+
+    private void encodePngs() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (Job job; (job = take()) != STOP; ) {
+            long start = System.nanoTime();
+            image.getRaster().setDataElements(0, 0, width, height, job.pixels);
+            Path file = dir.resolve(String.format("frame-%05d.png", job.index));
+            free.offer(job);
+            try {
+                ImageIO.write(image, "png", file.toFile());
+                encoded.incrementAndGet();
+            } catch (IOException e) {
+                failure = e;
+            }
+            encodeNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    // Each frame shows until the next one was captured, so a GIF frame is written once
+    // the one after it arrives.
+    private void encodeGif() {
+        Path file = dir.resolve("clip.gif");
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file.toFile())) {
+            if (out == null) throw new IOException("cannot open " + file);
+            writer.setOutput(out);
+            writer.prepareWriteSequence(null);
+            Job pending = null;
+            for (Job job; (job = take()) != STOP; ) {
+                if (pending != null) {
+                    writeGifFrame(writer, image, pending, job.at - pending.at);
+                }
+                pending = job;
+            }
+            if (pending != null) {
+                writeGifFrame(writer, image, pending, baseInterval);
+            }
+            writer.endWriteSequence();
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private void writeGifFrame(ImageWriter writer, BufferedImage image, Job job, long shownNanos)
+            throws IOException {
+        long start = System.nanoTime();
+        image.getRaster().setDataElements(0, 0, width, height, job.pixels);
+        boolean first = job.index == 0;
+        free.offer(job);
+        IIOMetadata meta = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), null);
+        String format = meta.getNativeMetadataFormatName();
+        IIOMetadataNode root = (IIOMetadataNode) meta.getAsTree(format);
+        IIOMetadataNode control = child(root, "GraphicControlExtension");
+        control.setAttribute("disposalMethod", "none");
+        control.setAttribute("userInputFlag", "FALSE");
+        control.setAttribute("transparentColorFlag", "FALSE");
+        control.setAttribute("delayTime", Long.toString(Math.max(1, Math.round(shownNanos / 1e7))));
+        control.setAttribute("transparentColorIndex", "0");
+        if (first) {
+            // Loop forever.
+            IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+            loop.setAttribute("applicationID", "NETSCAPE");
+            loop.setAttribute("authenticationCode", "2.0");
+            loop.setUserObject(new byte[] {1, 0, 0});
+            child(root, "ApplicationExtensions").appendChild(loop);
+        }
+        meta.setFromTree(format, root);
+        writer.writeToSequence(new IIOImage(image, null, meta), null);
+        encoded.incrementAndGet();
+        encodeNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    private static IIOMetadataNode child(IIOMetadataNode parent, String name) {
+        for (int i = 0; i < parent.getLength(); i++) {
+            if (parent.item(i).getNodeName().equals(name)) return (IIOMetadataNode) parent.item(i);
+        }
+        IIOMetadataNode node = new IIOMetadataNode(name);
+        parent.appendChild(node);
+        return node;
+    }
+
+    private Job take() {
+        try {
+            return work.take();
+        } catch (InterruptedException e) {
+            return STOP;
+        }
+    }
+}
+
+// Owns the whole game state and advances it one tick at a time. Nothing in here
+// touches AWT, so it runs the same under -Djava.awt.headless=true as in the window.
+// Everything random is drawn from the seed, and time is counted in ticks, so the seed
+// plus the ticks SPACE was pressed on, and where in them, reproduce a run exactly.
+class GameWorld {
+    public static final int WIDTH = 800;
+    public static final int HEIGHT = 600;
+    public static final int GROUND_HEIGHT = 100;
+    public static final float GRAVITY = 0.5f;
+    public static final float AIR_RESISTANCE = 0.98f;
+    public static final int JUMP_STRENGTH = -10;
+    public static final int PIPE_WIDTH = 80;
+    // The classic course's gap and scroll speed; a DifficultyCurve varies both.
+    public static final int PIPE_GAP = 200;
+    public static final int PIPE_SPEED = 5;
+    // The old 1500 ms spawn timer, expressed in 16 ms ticks.
+    public static final int PIPE_SPAWN_TICKS = 94;
+    public static final double COIN_SPAWN_CHANCE = 0.3;
+    public static final int COIN_SIZE = 20;
+    // Hard cap on live particles; override with -Dflappy.maxParticles=N.
+    public static final int MAX_PARTICLES = Integer.getInteger("flappy.maxParticles", 512);
+    // A flap lands on one of FLAP_PHASES points inside its tick, 0 being the start.
+    public static final int FLAP_PHASE_BITS = 2;
+    public static final int FLAP_PHASES = 1 << FLAP_PHASE_BITS;
+    public static final int NO_FLAP = -1;
+
+    // Pipes: x, y = gapY, vx, size = gap height, flags. Coins: x, y, vx, life = age in ticks.
+    // Clouds: x, y, vx, size = scale, variant = shape id.
+    // vx is the per-tick motion, which the renderer also uses to interpolate.
+    private final EntityStore pipes = new EntityStore(16);
+    private final EntityStore coins = new EntityStore(16);
+    private final EntityStore clouds = new EntityStore(16);
+    // Pipe and coin handles in left-to-right order; collision only looks at the few
+    // near the bird.
+    private final XOrderedDeque pipeOrder = new XOrderedDeque(pipes, 16);
+    private final XOrderedDeque coinOrder = new XOrderedDeque(coins, 16);
+    private final ParticlePool particles;
+    // The course (pipes, coins) and the effects (clouds, sparks) use separate streams
+    // off the same seed, so cosmetic changes such as the particle cap never move a pipe.
+    private final Course course = new Course();
+    private final GameRandom effectsRandom = new GameRandom(0);
+    private DifficultyCurve curve = DifficultyCurve.DEFAULT;
+    private long seed;
+    // Pixels scrolled since the run started, and the current scroll speed per tick.
+    private double distance;
+    private float speed;
+    private InputRecording recording;
+    // Null unless someone is watching; headless and batch runs skip the clock reads.
+    private Profiler profiler;
+    // Null unless logging. Practice after a rewind isn't logged.
+    private Telemetry telemetry;
+    private Bird bird;
+    private int score;
+    private int coinsCollected;
+    private int highScore = 0;
+    private int highScoreBeforeRun;
+    // Set once the run has been rewound; from then on it can't raise the high score.
+    private boolean practice;
+    private boolean gameOver;
+    private int flapCycle = 0;
+    private int cloudCounter = 0;
+    private long tick;
+
+    public GameWorld() {
+        particles = new ParticlePool(MAX_PARTICLES);
+        reset();
+    }
+
+    public GameWorld(long seed) {
+        this(seed, MAX_PARTICLES);
+    }
+
+    public GameWorld(long seed, int maxParticles) {
+        particles = new ParticlePool(maxParticles);
+        reset(seed);
+    }
+
+    // Starts a new run on a fresh seed.
+    public void reset() {
+        reset(GameRandom.mix(System.nanoTime() ^ seed));
+    }
+
+    public void reset(long seed) {
+        this.seed = seed;
+        course.reset(seed, curve);
+        effectsRandom.setSeed(~seed);
+        particles.setSeed(effectsRandom.nextLong());
+        recording = new InputRecording(seed, curve.id);
+        bird = new Bird(WIDTH / 4, HEIGHT / 2);
+        pipes.clear();
+        coins.clear();
+        pipeOrder.clear();
+        coinOrder.clear();
+        clouds.clear();
+        particles.clear();
+        score = 0;
+        coinsCollected = 0;
+        highScoreBeforeRun = highScore;
+        practice = false;
+        gameOver = false;
+        cloudCounter = 0;
+        tick = 0;
+        distance = 0;
+        speed = curve.speed(0);
+
+        for (int i = 0; i < 5; i++) {
+            addCloud();
+        }
+    }
+
+    private void addCloud() {
+        int i = clouds.indexOf(clouds.add());
+        clouds.x[i] = (int)(effectsRandom.nextDouble() * WIDTH);
+        clouds.y[i] = (int)(effectsRandom.nextDouble() * (HEIGHT - GROUND_HEIGHT - 100));
+        clouds.vx[i] = -((int)(effectsRandom.nextDouble() * 2) + 1);
+        clouds.size[i] = (float)(effectsRandom.nextDouble() * 0.5 + 0.8);
+        clouds.variant[i] = cloudCounter++;
+    }
+
+    // Pipes enter once their place on the course scrolls in, slightly left of the edge
+    // when the speed doesn't divide the spacing.
+    private void spawnPipes() {
+        while (distance >= course.nextAt()) {
+            float x = (float) (WIDTH - (distance - course.nextAt()));
+            int gapY = course.nextGapY();
+            float gap = course.nextGap();
+            addPipe(x, gapY, gap);
+            if (course.nextHasCoin()) {
+                addCoin(x + PIPE_WIDTH/2, gapY + gap/2);
+            }
+            course.advance();
+        }
+    }
+
+    private void addPipe(float x, int gapY, float gap) {
+        int handle = pipes.add();
+        int p = pipes.indexOf(handle);
+        pipes.x[p] = x;
+        pipes.y[p] = gapY;
+        pipes.size[p] = gap;
+        pipes.vx[p] = -speed;
+        pipeOrder.insert(handle);
+        SpawnEvent.emit("pipe", (int) x, gapY);
+    }
+
+    private void addCoin(float x, float y) {
+        int handle = coins.add();
+        int c = coins.indexOf(handle);
+        coins.x[c] = x;
+        coins.y[c] = y;
+        coins.vx[c] = -speed;
+        coinOrder.insert(handle);
+        SpawnEvent.emit("coin", (int) x, (int) y);
+    }
+
+    // Adds extra entities for benchmarks and stress runs. Pipes queue up to the right of
+    // the screen at the normal spawn spacing, each of the first coinCount pipes gets a coin
+    // in its gap, and the particles burst from the middle of the screen. The extras are
+    // drawn from the effects stream and never move a pipe of the real course.
+    public void populate(int pipeCount, int coinCount, int particleCount) {
+        int spacing = Course.PIPE_SPACING;
+        for (int i = 0; i < pipeCount; i++) {
+            int x = WIDTH + i * spacing;
+            int gapY = (int) (effectsRandom.nextDouble() * (HEIGHT - GROUND_HEIGHT - PIPE_GAP - 100)) + 80;
+            addPipe(x, gapY, PIPE_GAP);
+            if (i < coinCount) {
+                addCoin(x + PIPE_WIDTH/2, gapY + PIPE_GAP/2);
+            }
+        }
+        for (int i = pipeCount; i < coinCount; i++) {
+            addCoin(WIDTH + i * spacing + PIPE_WIDTH/2, HEIGHT / 2);
+        }
+        createParticles(WIDTH / 2, HEIGHT / 2, particleCount);
+    }
+
+    // Extra clouds for stress runs; like the usual five, they respawn as they leave.
+    public void addClouds(int count) {
+        for (int i = 0; i < count; i++) {
+            addCloud();
+        }
+    }
+
+    // Tops the particle pool up with bursts all over the sky, for stress runs.
+    public void fillParticles() {
+        while (particles.count() < particles.capacity()) {
+            int x = (int) (effectsRandom.nextDouble() * WIDTH);
+            int y = (int) (effectsRandom.nextDouble() * (HEIGHT - GROUND_HEIGHT));
+            createParticles(x, y, Math.min(20, particles.capacity() - particles.count()));
+        }
+    }
+
+    private void createParticles(int x, int y, int count) {
+        particles.emit(x, y, count);
+    }
+
+    // Advances the world by one tick. flap is whether SPACE was pressed since the last tick.
+    // Each store is walked back to front so swap-removes only ever pull in entities that
+    // were already updated, and anything spawned mid-loop waits for the next tick.
+    public void step(boolean flap) {
+        step(flap ? 0 : NO_FLAP);
+    }
+
+    // flapPhase is NO_FLAP, or where in the tick SPACE went down, in FLAP_PHASES.
+    public void step(int flapPhase) {
+        if (gameOver) return;
+        TickEvent event = new TickEvent();
+        if (event.isEnabled()) event.begin();
+        Profiler profiler = this.profiler;
+        if (profiler != null) profiler.beginTick();
+        tick++;
+        recording.setTicks(tick);
+        if (flapPhase != NO_FLAP) {
+            recording.flap(tick, flapPhase);
+            log(Telemetry.JUMP, nextPipe());
+            bird.jump(JUMP_STRENGTH, (float) flapPhase / FLAP_PHASES);
+            createParticles((int)bird.getX(), (int)(bird.getY() + Bird.SIZE/2), 10);
+        }
+        bird.update(GRAVITY, AIR_RESISTANCE);
+        flapCycle = (flapCycle + 1) % 10;
+        int birdX = (int) bird.getX();
+        int birdY = (int) bird.getY();
+        if (profiler != null) profiler.lapTick(Profiler.TICK_BIRD);
+
+        particles.update();
+        if (profiler != null) profiler.lapTick(Profiler.TICK_PARTICLES);
+        for (int i = clouds.count() - 1; i >= 0; i--) {
+            clouds.x[i] += clouds.vx[i];
+            if (clouds.x[i] < -200) {
+                clouds.removeAt(i);
+                addCloud();
+            }
+        }
+        if (profiler != null) profiler.lapTick(Profiler.TICK_CLOUDS);
+        speed = curve.speed(curve.level(distance));
+        distance += speed;
+        spawnPipes();
+        float vx = -speed;
+        for (int i = pipes.count() - 1; i >= 0; i--) {
+            pipes.vx[i] = vx;
+            float x = pipes.x[i] += vx;
+            if (x + PIPE_WIDTH < birdX && (pipes.flags[i] & EntityStore.FLAG_PASSED) == 0) {
+                score++;
+                if (score > highScore && !practice) highScore = score;
+                pipes.flags[i] |= EntityStore.FLAG_PASSED;
+                log(Telemetry.SCORE, i);
+                createParticles((int) x + PIPE_WIDTH, (int) (pipes.y[i] + pipes.size[i] / 2), 15);
+            }
+        }
+        if (profiler != null) profiler.lapTick(Profiler.TICK_PIPES);
+        for (int i = coins.count() - 1; i >= 0; i--) {
+            coins.vx[i] = vx;
+            coins.x[i] += vx;
+            coins.life[i]++;
+        }
+        if (profiler != null) profiler.lapTick(Profiler.TICK_COINS);
+
+        collidePipes();
+        collideCoins();
+
+        while (pipeOrder.size() > 0 && pipes.x[pipes.indexOf(pipeOrder.first())] + PIPE_WIDTH < 0) {
+            pipes.remove(pipeOrder.pollFirst());
+        }
+        while (coinOrder.size() > 0 && coins.x[coins.indexOf(coinOrder.first())] + COIN_SIZE < 0) {
+            coins.remove(coinOrder.pollFirst());
+        }
+
+        if (bird.getY() <= 0 || bird.getY() + Bird.SIZE >= HEIGHT - GROUND_HEIGHT) {
+            if (!gameOver) log(Telemetry.DEATH, nextPipe());
+            gameOver = true;
+            createParticles(birdX, birdY, 30);
+            CollisionEvent.emit("ground", tick);
+        }
+        if (profiler != null) {
+            profiler.lapTick(Profiler.TICK_COLLISION);
+            profiler.endTick();
+        }
+        if (event.shouldCommit()) {
+            event.tick = tick;
+            event.pipes = pipes.count();
+            event.coins = coins.count();
+            event.particles = particles.count();
+            event.commit();
+        }
+    }
+
+    // Pipes and coins are tested over the whole tick, not just where they ended up, so
+    // nothing slips through between two ticks however fast it moves.
+    private void collidePipes() {
+        float birdLeft = bird.getX();
+        float birdRight = birdLeft + Bird.SIZE;
+        for (int k = 0; k < pipeOrder.size(); k++) {
+            int i = pipes.indexOf(pipeOrder.get(k));
+            float x = pipes.x[i];
+            float vx = pipes.vx[i];
+            if (Math.min(x, x - vx) >= birdRight) break;
+            if (Math.max(x, x - vx) + PIPE_WIDTH <= birdLeft) continue;
+            if (pipeHitTime(x, pipes.y[i], pipes.size[i], vx, birdLeft, bird.getPrevY(), bird.getY()) <= 1) {
+                if (!gameOver) log(Telemetry.DEATH, i);
+                gameOver = true;
+                createParticles((int) birdLeft, (int) bird.getY(), 30);
+                CollisionEvent.emit("pipe", tick);
+            }
+        }
+    }
+
+    private void collideCoins() {
+        float birdLeft = bird.getX();
+        float birdRight = birdLeft + Bird.SIZE;
+        float reach = COIN_SIZE / 2f;
+        for (int k = 0; k < coinOrder.size(); k++) {
+            int handle = coinOrder.get(k);
+            int i = coins.indexOf(handle);
+            float x = coins.x[i];
+            float vx = coins.vx[i];
+            if (Math.min(x, x - vx) - reach >= birdRight) break;
+            if (Math.max(x, x - vx) + reach <= birdLeft) continue;
+            if (coinHitTime(x, coins.y[i], vx, birdLeft, bird.getPrevY(), bird.getY()) <= 1) {
+                coinsCollected++;
+                log(Telemetry.COIN, nextPipe());
+                createParticles((int) x, (int) coins.y[i], 20);
+                CollisionEvent.emit("coin", tick);
+                coinOrder.removeAt(k--);
+                coins.remove(handle);
+            }
+        }
+    }
+
+    // The pipe the bird is in or flying at: the leftmost it hasn't passed. -1 before the first.
+    // Only pipes already behind the bird come before it in x-order.
+    private int nextPipe() {
+        float birdX = bird.getX();
+        for (int k = 0; k < pipeOrder.size(); k++) {
+            int i = pipes.indexOf(pipeOrder.get(k));
+            if (pipes.x[i] + PIPE_WIDTH >= birdX) return i;
+        }
+        return -1;
+    }
+
+    // The bird as it is now, against pipe p.
+    private void log(byte kind, int p) {
+        if (telemetry == null || practice) return;
+        if (p < 0) {
+            telemetry.record(kind, tick, bird.getY(), bird.getVelocity(), -1, 0, 0);
+        } else {
+            telemetry.record(kind, tick, bird.getY(), bird.getVelocity(), (int) pipes.y[p], pipes.size[p],
+                    bird.getX() - pipes.x[p]);
+        }
+    }
+
+    // Flaps when the bird has sunk below the middle of the next gap.
+    public boolean autopilotWantsFlap() {
+        int next = nextPipe();
+        float targetY = next < 0 ? HEIGHT / 2f : pipes.y[next] + pipes.size[next] / 2f;
+        return bird.getVelocity() > 0 && bird.getY() + Bird.SIZE / 2f > targetY + 20;
+    }
+
+    public Bird getBird() { return bird; }
+    public EntityStore getPipes() { return pipes; }
+    public EntityStore getCoins() { return coins; }
+    public EntityStore getClouds() { return clouds; }
+    public ParticlePool getParticles() { return particles; }
+    public int getScore() { return score; }
+    public int getCoinsCollected() { return coinsCollected; }
+    public int getHighScore() { return highScore; }
+    public boolean isGameOver() { return gameOver; }
+    public int getFlapCycle() { return flapCycle; }
+    public long getTick() { return tick; }
+    public long getSeed() { return seed; }
+    public double getDistance() { return distance; }
+    public float getSpeed() { return speed; }
+    public DifficultyCurve getCurve() { return curve; }
+    public Course getCourse() { return course; }
+    public InputRecording getRecording() { return recording; }
+
+    // Takes effect on the next reset.
+    public void setCurve(DifficultyCurve curve) {
+        this.curve = curve;
+    }
+
+    // Builds the course ahead on a background thread; for interactive play, where a tick
+    // has a deadline. Batch and headless runs build it inline, which costs less overall.
+    public void setCoursePrefetch(boolean prefetch) {
+        course.setPrefetch(prefetch);
+    }
+
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    // Events go to it from the thread that steps this world; null stops logging.
+    public void setTelemetry(Telemetry telemetry) {
+        this.telemetry = telemetry;
+    }
+
+    // Carries a best score over from earlier sessions; it survives reset like any other.
+    public void setHighScore(int highScore) {
+        this.highScore = Math.max(this.highScore, highScore);
+        highScoreBeforeRun = Math.max(highScoreBeforeRun, highScore);
+    }
+
+    // Everything that decides how the run goes on: the counters, the bird, where the
+    // course and the recording stand, and the pipes, coins and clouds in slot order with
+    // the left-to-right queues as slot numbers. Particles are only for show and left out.
+    // False, with nothing written, when it doesn't fit in what is left of out.
+    public boolean writeSnapshot(ByteBuffer out) {
+        if (snapshotBytes() > out.remaining()) return false;
+        out.putLong(tick).putDouble(distance).putLong(effectsRandom.getState()).putFloat(speed)
+                .putInt(score).putInt(coinsCollected).putInt(flapCycle).putInt(cloudCounter)
+                .put((byte) (gameOver ? 1 : 0));
+        bird.writeSnapshot(out);
+        course.writeSnapshot(out);
+        recording.writeSnapshot(out);
+        out.putInt(pipes.count());
+        for (int i = 0; i < pipes.count(); i++) {
+            out.putFloat(pipes.x[i]).putFloat(pipes.y[i]).putFloat(pipes.vx[i]).putFloat(pipes.size[i])
+                    .putInt(pipes.flags[i]);
+        }
+        writeOrder(out, pipes, pipeOrder);
+        out.putInt(coins.count());
+        for (int i = 0; i < coins.count(); i++) {
+            out.putFloat(coins.x[i]).putFloat(coins.y[i]).putFloat(coins.vx[i]).putInt(coins.life[i]);
+        }
+        writeOrder(out, coins, coinOrder);
+        out.putInt(clouds.count());
+        for (int i = 0; i < clouds.count(); i++) {
+            out.putFloat(clouds.x[i]).putFloat(clouds.y[i]).putFloat(clouds.vx[i]).putFloat(clouds.size[i])
+                    .putInt(clouds.variant[i]);
+        }
+        return true;
+    }
+
+    // Puts the run back where a snapshot of it was taken and marks it practice. The
+    // entities come back in the same slots and order, so the run goes on exactly as it
+    // did from there, but with new handles.
+    public void readSnapshot(ByteBuffer in) {
+        tick = in.getLong();
+        distance = in.getDouble();
+        effectsRandom.setSeed(in.getLong());
+        speed = in.getFloat();
+        score = in.getInt();
+        coinsCollected = in.getInt();
+        flapCycle = in.getInt();
+        cloudCounter = in.getInt();
+        gameOver = in.get() != 0;
+        bird.readSnapshot(in);
+        course.readSnapshot(in);
+        recording.readSnapshot(in);
+        pipes.clear();
+        for (int i = 0, n = in.getInt(); i < n; i++) {
+            int p = pipes.indexOf(pipes.add());
+            pipes.x[p] = in.getFloat();
+            pipes.y[p] = in.getFloat();
+            pipes.vx[p] = in.getFloat();
+            pipes.size[p] = in.getFloat();
+            pipes.flags[p] = in.getInt();
+        }
+        readOrder(in, pipes, pipeOrder);
+        coins.clear();
+        for (int i = 0, n = in.getInt(); i < n; i++) {
+            int c = coins.indexOf(coins.add());
+            coins.x[c] = in.getFloat();
+            coins.y[c] = in.getFloat();
+            coins.vx[c] = in.getFloat();
+            coins.life[c] = in.getInt();
+        }
+        readOrder(in, coins, coinOrder);
+        clouds.clear();
+        for (int i = 0, n = in.getInt(); i < n; i++) {
+            int c = clouds.indexOf(clouds.add());
+            clouds.x[c] = in.getFloat();
+            clouds.y[c] = in.getFloat();
+            clouds.vx[c] = in.getFloat();
+            clouds.size[c] = in.getFloat();
+            clouds.variant[c] = in.getInt();
+        }
+        particles.clear();
+        practice = true;
+        highScore = highScoreBeforeRun;
+    }
+
+    public boolean isPractice() { return practice; }
+
+    // Makes this world look like src, for another thread to draw: the entities, particles,
+    // bird and counters. The course and the recording stay behind, so a copy is for drawing
+    // only and is never stepped.
+    public void copyFrom(GameWorld src) {
+        pipes.copyFrom(src.pipes);
+        coins.copyFrom(src.coins);
+        clouds.copyFrom(src.clouds);
+        particles.copyFrom(src.particles);
+        bird.copyFrom(src.bird);
+        curve = src.curve;
+        seed = src.seed;
+        distance = src.distance;
+        speed = src.speed;
+        score = src.score;
+        coinsCollected = src.coinsCollected;
+        highScore = src.highScore;
+        practice = src.practice;
+        gameOver = src.gameOver;
+        flapCycle = src.flapCycle;
+        cloudCounter = src.cloudCounter;
+        tick = src.tick;
+    }
+
+    private int snapshotBytes() {
+        return 8 + 8 + 8 + 4 + 4 * 4 + 1 + Bird.SNAPSHOT_BYTES + Course.SNAPSHOT_BYTES
+                + InputRecording.SNAPSHOT_BYTES + 5 * 4 + pipes.count() * 20 + coins.count() * 16
+                + clouds.count() * 20 + (pipeOrder.size() + coinOrder.size()) * 4;
+    }
+
+    private static void writeOrder(ByteBuffer out, EntityStore store, XOrderedDeque order) {
+        out.putInt(order.size());
+        for (int k = 0; k < order.size(); k++) {
+            out.putInt(store.indexOf(order.get(k)));
+        }
+    }
+
+    // The slots come in left-to-right order, so each insert lands at the tail.
+    private static void readOrder(ByteBuffer in, EntityStore store, XOrderedDeque order) {
+        order.clear();
+        for (int k = 0, n = in.getInt(); k < n; k++) {
+            order.insert(store.handleAt(in.getInt()));
+        }
+    }
+
+    // Coin rotation and bounce are pure functions of the coin's age and the world tick,
+    // so the store keeps no per-coin animation state. 16 ms per tick over the 200 ms period.
+    public static float coinRotation(float age) {
+        return age * 3;
+    }
+    public static float coinBounce(double tick) {
+        return (float)Math.sin(tick * 16 / 200.0) * 5;
+    }
+
+    // When during the last tick the bird first touched the pipe, as a fraction of the tick,
+    // or Collision.NO_HIT. Positions are the current ones; the pipe moved by pipeVx and
+    // the bird from birdPrevY to birdY, so the test runs in the pipe's old frame.
+    static float pipeHitTime(float pipeX, float gapY, float gap, float pipeVx,
+                             float birdX, float birdPrevY, float birdY) {
+        float x0 = pipeX - pipeVx;
+        float dx = -pipeVx;
+        float dy = birdY - birdPrevY;
+        float top = Collision.sweptBoxes(birdX, birdPrevY, Bird.SIZE, Bird.SIZE, dx, dy,
+                x0, 0, PIPE_WIDTH, gapY);
+        float bottom = Collision.sweptBoxes(birdX, birdPrevY, Bird.SIZE, Bird.SIZE, dx, dy,
+                x0, gapY + gap, PIPE_WIDTH, HEIGHT - gapY - gap);
+        return Math.min(top, bottom);
+    }
+
+    // Same for a coin, which is a circle of diameter COIN_SIZE centred on (coinX, coinY).
+    static float coinHitTime(float coinX, float coinY, float coinVx,
+                             float birdX, float birdPrevY, float birdY) {
+        return Collision.sweptCircleBox(coinX - coinVx, coinY, COIN_SIZE / 2f,
+                coinVx, birdPrevY - birdY, birdX, birdPrevY, Bird.SIZE, Bird.SIZE);
+    }
+}
+
+// The last few seconds of a run, one GameWorld snapshot per tick, for rewinding. The
+// slots sit in one direct buffer allocated up front and tick t always goes to slot
+// t % capacity, so keeping a tick copies a few hundred bytes and allocates nothing, and
+// going back to any kept tick is a lookup. A world too big for a slot (thousands of
+// stress-mode entities) isn't kept; getOverflows counts those ticks.
+// Not thread-safe; the sim thread owns it with the world.
+class RewindBuffer {
+    static final int SLOT_BYTES = 1024;
+
+    private final ByteBuffer slots;
+    private final long[] slotTick;
+    private long newest = -1;
+    private int overflows;
+
+    public RewindBuffer(int capacity) {
+        slots = ByteBuffer.allocateDirect(capacity * SLOT_BYTES).order(ByteOrder.nativeOrder());
+        slotTick = new long[capacity];
+        clear();
+    }
+
+    public int capacity() { return slotTick.length; }
+    public int getOverflows() { return overflows; }
+
+    // Forgets every kept tick, for a new run.
+    public void clear() {
+        Arrays.fill(slotTick, -1);
+        newest = -1;
+    }
+
+    // Keeps the world as it is now. Ticks after it that were kept before a rewind are
+    // from the abandoned timeline and stop counting.
+    public boolean record(GameWorld world) {
+        long tick = world.getTick();
+        int slot = select(tick);
+        newest = tick;
+        if (!world.writeSnapshot(slots)) {
+            slotTick[slot] = -1;
+            overflows++;
+            return false;
+        }
+        slotTick[slot] = tick;
+        return true;
+    }
+
+    public boolean has(long tick) {
+        return tick >= 0 && tick <= newest && newest - tick < slotTick.length
+                && slotTick[(int) (tick % slotTick.length)] == tick;
+    }
+
+    // Puts the world back to tick, which becomes the newest one kept.
+    public boolean restore(GameWorld world, long tick) {
+        if (!has(tick)) return false;
+        select(tick);
+        world.readSnapshot(slots);
+        newest = tick;
+        return true;
+    }
+
+    // Goes back up to ticks ticks, or to the oldest tick kept if that is nearer, and
+    // returns the tick it went back to, or -1 if nothing older than the newest is kept.
+    public long rewind(GameWorld world, int ticks) {
+        for (long t = Math.max(0, Math.max(newest - ticks, newest - slotTick.length + 1)); t < newest; t++) {
+            if (restore(world, t)) return t;
+        }
+        return -1;
+    }
+
+    private int select(long tick) {
+        int slot = (int) (tick % slotTick.length);
+        slots.clear().position(slot * SLOT_BYTES).limit((slot + 1) * SLOT_BYTES);
+        return slot;
+    }
+}
+
+// How the course tightens with distance. Gap height, scroll speed and the largest step
+// between neighbouring gaps ease from their start to their end values over rampDistance
+// pixels of course. Presets are numbered because recordings store the number; classic is
+// the original flat course and draws the same pipes from a seed as it always did.
+final class DifficultyCurve {
+    static final DifficultyCurve CLASSIC = new DifficultyCurve(0, "classic", 200, 200, 5, 5,
+            Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, 1);
+    static final DifficultyCurve NORMAL = new DifficultyCurve(1, "normal", 200, 150, 5, 7, 140, 260, 60_000);
+    static final DifficultyCurve HARD = new DifficultyCurve(2, "hard", 180, 130, 6, 9, 200, 320, 30_000);
+    static final DifficultyCurve[] PRESETS = {CLASSIC, NORMAL, HARD};
+    // Classic unless -Dflappy.difficulty=normal|hard opts in to a ramp.
+    static final DifficultyCurve DEFAULT = byName(System.getProperty("flappy.difficulty", "classic"));
+
+    final int id;
+    final String name;
+    final float startGap, endGap;
+    final float startSpeed, endSpeed;
+    final float startStep, endStep;
+    final float rampDistance;
+
+    DifficultyCurve(int id, String name, float startGap, float endGap, float startSpeed, float endSpeed,
+                    float startStep, float endStep, float rampDistance) {
+        this.id = id;
+        this.name = name;
+        this.startGap = startGap;
+        this.endGap = endGap;
+        this.startSpeed = startSpeed;
+        this.endSpeed = endSpeed;
+        this.startStep = startStep;
+        this.endStep = endStep;
+        this.rampDistance = rampDistance;
+    }
+
+    static DifficultyCurve of(int id) {
+        if (id < 0 || id >= PRESETS.length) throw new IllegalArgumentException("unknown difficulty " + id);
+        return PRESETS[id];
+    }
+
+    static DifficultyCurve byName(String name) {
+        for (DifficultyCurve curve : PRESETS) {
+            if (curve.name.equalsIgnoreCase(name)) return curve;
+        }
+        throw new IllegalArgumentException("unknown difficulty " + name);
+    }
+
+    // 0 at the start of the course, 1 from rampDistance on, smoothstepped in between.
+    float level(double distance) {
+        float t = (float) Math.min(1, distance / rampDistance);
+        return t * t * (3 - 2 * t);
+    }
+
+    float gap(float level) { return lerp(startGap, endGap, level); }
+    float speed(float level) { return lerp(startSpeed, endSpeed, level); }
+    float step(float level) { return lerp(startStep, endStep, level); }
+
+    // Flat ends stay exact, infinite ones included.
+    private static float lerp(float start, float end, float level) {
+        return start == end ? start : start + (end - start) * level;
+    }
+}
+
+// Single-producer single-consumer ring. Each side only writes its own index, publishing
+// it with a release store (lazySet) that the other side reads with a volatile load, so
+// neither ever blocks or takes a lock.
+final class SpscRing<T> {
+    private final Object[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // capacity must be a power of two.
+    SpscRing(int capacity) {
+        slots = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    // Producer side; false when full.
+    boolean offer(T value) {
+        long t = tail.get();
+        if (t - head.get() == slots.length) return false;
+        slots[(int) t & mask] = value;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    // Consumer side; the oldest value without taking it, null when empty.
+    @SuppressWarnings("unchecked")
+    T peek() {
+        long h = head.get();
+        return h == tail.get() ? null : (T) slots[(int) h & mask];
+    }
+
+    // Consumer side; null when empty.
+    @SuppressWarnings("unchecked")
+    T poll() {
+        long h = head.get();
+        if (h == tail.get()) return null;
+        int i = (int) h & mask;
+        T value = (T) slots[i];
+        slots[i] = null;
+        head.lazySet(h + 1);
+        return value;
+    }
+}
+
+// Hands the newest of a stream of values from one producer thread to one consumer thread
+// over three preallocated buffers. The producer fills back() and publishes it; the
+// consumer's acquire() swaps in the newest published buffer if there is one. Each swap is
+// a single atomic exchange of the middle buffer's index, so neither side ever blocks, the
+// consumer never sees a buffer the producer is still filling, and a buffer the consumer
+// never got to goes back to the producer to be filled again.
+final class TripleBuffer<T> {
+    // Set on the middle index until the consumer takes it.
+    private static final int FRESH = 4;
+    private static final int INDEX = 3;
+
+    private final Object[] buffers;
+    private final AtomicInteger middle = new AtomicInteger(1);
+    private int back = 0;
+    private int front = 2;
+
+    TripleBuffer(T first, T second, T third) {
+        buffers = new Object[] {first, second, third};
+    }
+
+    // Producer side: the buffer to fill next.
+    @SuppressWarnings("unchecked")
+    T back() {
+        return (T) buffers[back];
+    }
+
+    // Producer side.
+    void publish() {
+        back = middle.getAndSet(back | FRESH) & INDEX;
+    }
+
+    // Consumer side: whether acquire would return a newer buffer.
+    boolean hasFresh() {
+        return (middle.get() & FRESH) != 0;
+    }
+
+    // Consumer side: the newest published buffer, or the last one again if nothing new
+    // has come. Valid until the next acquire.
+    @SuppressWarnings("unchecked")
+    T acquire() {
+        if ((middle.get() & FRESH) != 0) {
+            front = middle.getAndSet(front) & INDEX;
+        }
+        return (T) buffers[front];
+    }
+}
+
+// The pipes ahead of the bird, generated CHUNK_PIPES at a time from the seed and a
+// DifficultyCurve. Pipe n enters the screen once the world has scrolled (n + 1) *
+// PIPE_SPACING pixels, however fast it scrolled there, so spacing never drifts.
+//
+// Chunk k is a pure function of the state chunk k-1 ended in (position in the seed's
+// random stream and the last gap), so it comes out the same wherever it is built. With
+// prefetch on, a shared background thread builds chunks LOOKAHEAD ahead and hands them
+// over through an SpscRing. If the next chunk isn't there when a pipe is due, the tick
+// builds it itself instead of waiting, and the late copy is dropped when it turns up.
+//
+// Every gap is reachable from the one before: gaps never shrink below what the bird fits
+// through at the current speed, and never climb more than it can climb in time.
+// The tick side is not thread-safe.
+class Course {
+    static final int CHUNK_PIPES = 16;
+    static final int LOOKAHEAD = 2;
+    // The old 94-tick spawn timer at the old speed.
+    static final int PIPE_SPACING = GameWorld.PIPE_SPAWN_TICKS * GameWorld.PIPE_SPEED;
+    static final int MIN_GAP_Y = 80;
+    // Least room between the lowest gap's bottom edge and the ground.
+    static final int GROUND_SLACK = 20;
+    // Spare height over the tightest gap the physics allows, for human timing.
+    static final float GAP_MARGIN = 40;
+    static final int SNAPSHOT_BYTES = 4 + 8 + 4;
+
+    static final class Chunk {
+        final int index;
+        final int epoch;
+        final int[] gapY = new int[CHUNK_PIPES];
+        final float[] gap = new float[CHUNK_PIPES];
+        final boolean[] coin = new boolean[CHUNK_PIPES];
+        long startRandom, endRandom;
+        float startCenter, endCenter;
+
+        Chunk(int index, int epoch) {
+            this.index = index;
+            this.epoch = epoch;
+        }
+    }
+
+    // Where generation stands: the random stream and the centre of the last gap.
+    private static final class State {
+        final GameRandom random = new GameRandom(0);
+        float center = Float.NaN;
+
+        void start(long seed) {
+            set(seed, Float.NaN);
+        }
+
+        void continueFrom(Chunk chunk) {
+            set(chunk.endRandom, chunk.endCenter);
+        }
+
+        void set(long randomState, float center) {
+            random.setSeed(randomState);
+            this.center = center;
+        }
+    }
+
+    private static final class Worker {
+        static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "course-gen");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private final SpscRing<Chunk> ready = new SpscRing<>(4);
+    private final State tickState = new State();
+    // Touched only by tasks on the worker thread.
+    private final State workerState = new State();
+    private volatile int epoch;
+    private boolean prefetch;
+    private DifficultyCurve curve = DifficultyCurve.CLASSIC;
+    private long seed;
+    private Chunk current;
+    private int next;
+    private int fallbacks;
+
+    public void setPrefetch(boolean prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    public void reset(long seed, DifficultyCurve curve) {
+        this.seed = seed;
+        this.curve = curve;
+        int e = restartPrefetch();
+        tickState.start(seed);
+        current = null;
+        next = 0;
+        if (prefetch) {
+            request(0, e, true, seed, Float.NaN);
+            for (int k = 1; k <= LOOKAHEAD; k++) {
+                request(k, e, false, 0, 0);
+            }
+        }
+    }
+
+    // The next pipe and where generation stood at the start of its chunk; enough for
+    // readSnapshot to put the course back here without replaying it from the seed.
+    public void writeSnapshot(ByteBuffer out) {
+        int k = next / CHUNK_PIPES;
+        out.putInt(next);
+        if (current != null && current.index == k) {
+            out.putLong(current.startRandom).putFloat(current.startCenter);
+        } else if (current != null && current.index == k - 1) {
+            out.putLong(current.endRandom).putFloat(current.endCenter);
+        } else {
+            // Nothing built yet, so this is chunk 0.
+            out.putLong(seed).putFloat(Float.NaN);
+        }
+    }
+
+    // Rebuilds the chunk unless it is the current one. Whatever the worker has queued or
+    // is building follows on from somewhere else, so prefetch starts over from here.
+    public void readSnapshot(ByteBuffer in) {
+        next = in.getInt();
+        long startRandom = in.getLong();
+        float startCenter = in.getFloat();
+        int k = next / CHUNK_PIPES;
+        int e = restartPrefetch();
+        if (current == null || current.index != k) {
+            tickState.set(startRandom, startCenter);
+            current = build(k, e, curve, tickState);
+        } else {
+            tickState.continueFrom(current);
+        }
+        if (prefetch) {
+            request(k + 1, e, true, current.endRandom, current.endCenter);
+            for (int j = k + 2; j <= k + LOOKAHEAD; j++) {
+                request(j, e, false, 0, 0);
+            }
+        }
+    }
+
+    private int restartPrefetch() {
+        int e = ++epoch;
+        while (ready.poll() != null) {
+            // Chunks that follow on from somewhere else.
+        }
+        return e;
+    }
+
+    // Scroll distance at which the next pipe enters at the right edge.
+    public double nextAt() {
+        return (double) (next + 1) * PIPE_SPACING;
+    }
+
+    public int nextGapY() { return chunk().gapY[next % CHUNK_PIPES]; }
+    public float nextGap() { return chunk().gap[next % CHUNK_PIPES]; }
+    public boolean nextHasCoin() { return chunk().coin[next % CHUNK_PIPES]; }
+
+    public void advance() {
+        next++;
+    }
+
+    // Chunks the tick had to build because the background copy wasn't ready.
+    public int getFallbacks() { return fallbacks; }
+
+    private Chunk chunk() {
+        int k = next / CHUNK_PIPES;
+        if (current != null && current.index == k) return current;
+        Chunk c = ready.poll();
+        while (c != null && (c.epoch != epoch || c.index < k)) {
+            c = ready.poll();
+        }
+        if (c == null || c.index != k) {
+            // Past a skipped chunk the worker's queue is out of step; it catches up from
+            // the requests below.
+            c = build(k, epoch, curve, tickState);
+            if (prefetch) fallbacks++;
+        } else {
+            tickState.continueFrom(c);
+        }
+        current = c;
+        if (prefetch) {
+            request(k + LOOKAHEAD + 1, epoch, false, 0, 0);
+        }
+        return c;
+    }
+
+    // With restart the worker starts from the given state, otherwise from where its last
+    // chunk ended.
+    private void request(int k, int e, boolean restart, long randomState, float center) {
+        DifficultyCurve curve = this.curve;
+        Worker.EXECUTOR.execute(() -> {
+            if (e != epoch) return;
+            if (restart) workerState.set(randomState, center);
+            ready.offer(build(k, e, curve, workerState));
+        });
+    }
+
+    private static Chunk build(int k, int epoch, DifficultyCurve curve, State state) {
+        Chunk chunk = new Chunk(k, epoch);
+        GameRandom random = state.random;
+        chunk.startRandom = random.getState();
+        chunk.startCenter = state.center;
+        for (int j = 0; j < CHUNK_PIPES; j++) {
+            double at = (double) (k * CHUNK_PIPES + j + 1) * PIPE_SPACING;
+            float level = curve.level(at);
+            // The course only speeds up, so the speed where this pipe enters bounds the
+            // speed while the bird flies up to it.
+            float speed = curve.speed(level);
+            float gap = Math.max(curve.gap(level), minGap(speed));
+            float lo = MIN_GAP_Y;
+            float hi = GameWorld.HEIGHT - GameWorld.GROUND_HEIGHT - gap - GROUND_SLACK;
+            if (!Float.isNaN(state.center)) {
+                float step = curve.step(level);
+                float up = Math.min(step, maxRise(speed));
+                float stepLo = Math.max(lo, state.center - up - gap / 2);
+                float stepHi = Math.min(hi, state.center + step - gap / 2);
+                if (stepLo <= stepHi) {
+                    lo = stepLo;
+                    hi = stepHi;
+                } else {
+                    lo = hi = Math.max(lo, Math.min(hi, state.center - gap / 2));
+                }
+            }
+            int gapY = (int) (random.nextDouble() * (hi - lo)) + (int) lo;
+            chunk.gapY[j] = gapY;
+            chunk.gap[j] = gap;
+            chunk.coin[j] = random.nextDouble() < GameWorld.COIN_SPAWN_CHANCE;
+            state.center = gapY + gap / 2;
+        }
+        chunk.endRandom = random.getState();
+        chunk.endCenter = state.center;
+        return chunk;
+    }
+
+    // How far the bird can climb between clearing one pipe and reaching the next while
+    // flapping every tick, less the height it keeps rising once it stops.
+    static float maxRise(float speed) {
+        float climb = -(GameWorld.JUMP_STRENGTH + GameWorld.GRAVITY) * GameWorld.AIR_RESISTANCE;
+        float ticks = (PIPE_SPACING - GameWorld.PIPE_WIDTH - Bird.SIZE) / speed;
+        return climb * ticks - climb * climb / (2 * GameWorld.GRAVITY);
+    }
+
+    // The tightest gap the bird gets through at this speed: its own height plus the drop
+    // over the top of a flap's arc during the ticks it spends inside the pipe.
+    static float minGap(float speed) {
+        float ticks = (GameWorld.PIPE_WIDTH + Bird.SIZE) / speed;
+        return Bird.SIZE + GameWorld.GRAVITY * ticks * ticks / 8 + GAP_MARGIN;
+    }
+}
+
+// Primitive collision tests. Boxes are a top-left corner plus width and height; edges that
+// only touch do not count, as with java.awt.Rectangle.intersects. The swept tests move
+// the first shape by (dx, dy) over one tick against the second held still (pass relative
+// motion when both move) and return the fraction of the tick at which they first touch,
+// 0 if they already overlap, or NO_HIT. Nothing here allocates.
+final class Collision {
+    public static final float NO_HIT = Float.POSITIVE_INFINITY;
+
+    private Collision() {}
+
+    public static boolean boxes(float ax, float ay, float aw, float ah,
+                                float bx, float by, float bw, float bh) {
+        return ax < bx + bw && bx < ax + aw && ay < by + bh && by < ay + ah;
+    }
+
+    public static boolean circleBox(float cx, float cy, float r,
+                                    float bx, float by, float bw, float bh) {
+        float dx = cx - Math.max(bx, Math.min(cx, bx + bw));
+        float dy = cy - Math.max(by, Math.min(cy, by + bh));
+        return dx * dx + dy * dy < r * r;
+    }
+
+    // Slab test on the two boxes' Minkowski sum.
+    public static float sweptBoxes(float ax, float ay, float aw, float ah, float dx, float dy,
+                                   float bx, float by, float bw, float bh) {
+        float enter = 0;
+        float exit = 1;
+        if (dx == 0) {
+            if (ax + aw <= bx || bx + bw <= ax) return NO_HIT;
+        } else {
+            float t0 = (bx - ax - aw) / dx;
+            float t1 = (bx + bw - ax) / dx;
+            enter = Math.max(enter, Math.min(t0, t1));
+            exit = Math.min(exit, Math.max(t0, t1));
+        }
+        if (dy == 0) {
+            if (ay + ah <= by || by + bh <= ay) return NO_HIT;
+        } else {
+            float t0 = (by - ay - ah) / dy;
+            float t1 = (by + bh - ay) / dy;
+            enter = Math.max(enter, Math.min(t0, t1));
+            exit = Math.min(exit, Math.max(t0, t1));
+        }
+        return enter < exit ? enter : NO_HIT;
+    }
+
+    // The circle's centre against the box grown by r, whose corners are quarter circles:
+    // two crossed boxes plus a circle at each corner.
+    public static float sweptCircleBox(float cx, float cy, float r, float dx, float dy,
+                                       float bx, float by, float bw, float bh) {
+        if (circleBox(cx, cy, r, bx, by, bw, bh)) return 0;
+        float t = Math.min(sweptBoxes(cx, cy, 0, 0, dx, dy, bx - r, by, bw + 2 * r, bh),
+                sweptBoxes(cx, cy, 0, 0, dx, dy, bx, by - r, bw, bh + 2 * r));
+        t = Math.min(t, sweptPointCircle(cx, cy, dx, dy, bx, by, r));
+        t = Math.min(t, sweptPointCircle(cx, cy, dx, dy, bx + bw, by, r));
+        t = Math.min(t, sweptPointCircle(cx, cy, dx, dy, bx, by + bh, r));
+        return Math.min(t, sweptPointCircle(cx, cy, dx, dy, bx + bw, by + bh, r));
+    }
+
+    public static float sweptPointCircle(float px, float py, float dx, float dy,
+                                         float cx, float cy, float r) {
+        float mx = px - cx;
+        float my = py - cy;
+        float c = mx * mx + my * my - r * r;
+        if (c < 0) return 0;
+        float a = dx * dx + dy * dy;
+        if (a == 0) return NO_HIT;
+        float b = mx * dx + my * dy;
+        float disc = b * b - a * c;
+        if (b >= 0 || disc < 0) return NO_HIT;
+        float t = (-b - (float) Math.sqrt(disc)) / a;
+        return t <= 1 ? t : NO_HIT;
+    }
+}
+
+// EntityStore handles kept in ascending x. Entities of one store all move at the same
+// speed, so the order set on insert holds for their whole life: spawns go in at the
+// back, anything that leaves the screen comes off the front, and a scan can stop at the
+// first entry past the point of interest. A ring buffer, so none of that allocates once
+// it has grown to the working set.
+class XOrderedDeque {
+    private final EntityStore store;
+    private int[] handles;
+    private int head;
+    private int size;
+
+    public XOrderedDeque(EntityStore store, int capacity) {
+        this.store = store;
+        handles = new int[Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1];
+    }
+
+    public int size() { return size; }
+
+    public int get(int k) {
+        return handles[(head + k) & (handles.length - 1)];
+    }
+
+    public int first() {
+        return handles[head];
+    }
+
+    public int pollFirst() {
+        int handle = handles[head];
+        head = (head + 1) & (handles.length - 1);
+        size--;
+        return handle;
+    }
+
+    // Walks back from the tail, which is where new spawns land.
+    public void insert(int handle) {
+        if (size == handles.length) grow();
+        int mask = handles.length - 1;
+        float x = store.x[store.indexOf(handle)];
+        int k = size;
+        while (k > 0 && store.x[store.indexOf(handles[(head + k - 1) & mask])] > x) {
+            handles[(head + k) & mask] = handles[(head + k - 1) & mask];
+            k--;
+        }
+        handles[(head + k) & mask] = handle;
+        size++;
+    }
+
+    public void removeAt(int k) {
+        int mask = handles.length - 1;
+        for (int j = k; j < size - 1; j++) {
+            handles[(head + j) & mask] = handles[(head + j + 1) & mask];
+        }
+        size--;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    private void grow() {
+        int[] bigger = new int[handles.length * 2];
+        for (int k = 0; k < size; k++) {
+            bigger[k] = get(k);
+        }
+        handles = bigger;
+        head = 0;
+    }
+}
+
+// Struct-of-arrays storage for one kind of entity. Live entities are packed at the front
+// of every column, so loops walk plain primitive arrays; removing one moves the last entity
+// into its slot instead of shifting or copying the rest. A handle from add() keeps pointing
+// at the same entity across those moves until it is removed. Not thread-safe: the world
+// tick is the only writer.
+class EntityStore {
+    public static final int FLAG_PASSED = 1;
+    private static final int INDEX_BITS = 20;
+    private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+
+    float[] x, y, vx, vy, size;
+    int[] flags, variant, rgb, life;
+    private int[] slotOfHandle;     // handle index -> dense slot, or -1 when free
+    private int[] generation;       // bumped whenever a handle index is recycled
+    private int[] handleOfSlot;     // dense slot -> handle index
+    private int[] freeHandles;
+    private int freeCount;
+    private int handleCount;
+    private int count;
+
+    public EntityStore(int capacity) {
+        x = new float[capacity];
+        y = new float[capacity];
+        vx = new float[capacity];
+        vy = new float[capacity];
+        size = new float[capacity];
+        flags = new int[capacity];
+        variant = new int[capacity];
+        rgb = new int[capacity];
+        life = new int[capacity];
+        slotOfHandle = new int[capacity];
+        generation = new int[capacity];
+        handleOfSlot = new int[capacity];
+        freeHandles = new int[capacity];
+    }
+
+    public int count() { return count; }
+
+    // Appends a zeroed entity and returns its handle.
+    public int add() {
+        if (count == x.length) grow();
+        int slot = count++;
+        int h = freeCount > 0 ? freeHandles[--freeCount] : handleCount++;
+        slotOfHandle[h] = slot;
+        handleOfSlot[slot] = h;
+        x[slot] = 0; y[slot] = 0; vx[slot] = 0; vy[slot] = 0; size[slot] = 0;
+        flags[slot] = 0; variant[slot] = 0; rgb[slot] = 0; life[slot] = 0;
+        return (generation[h] << INDEX_BITS) | h;
+    }
+
+    // Current slot of the entity behind handle, or -1 if it has been removed.
+    public int indexOf(int handle) {
+        int h = handle & INDEX_MASK;
+        if (h >= handleCount || generation[h] != handle >>> INDEX_BITS) return -1;
+        return slotOfHandle[h];
+    }
+
+    // Handle of the entity now at slot.
+    public int handleAt(int slot) {
+        int h = handleOfSlot[slot];
+        return (generation[h] << INDEX_BITS) | h;
+    }
+
+    public void remove(int handle) {
+        int slot = indexOf(handle);
+        if (slot >= 0) removeAt(slot);
+    }
+
+    // Removes the entity at slot by moving the last live entity into it.
+    public void removeAt(int slot) {
+        int last = --count;
+        int h = handleOfSlot[slot];
+        if (slot != last) {
+            x[slot] = x[last]; y[slot] = y[last];
+            vx[slot] = vx[last]; vy[slot] = vy[last];
+            size[slot] = size[last];
+            flags[slot] = flags[last];
+            variant[slot] = variant[last];
+            rgb[slot] = rgb[last];
+            life[slot] = life[last];
+            int moved = handleOfSlot[last];
+            handleOfSlot[slot] = moved;
+            slotOfHandle[moved] = slot;
+        }
+        slotOfHandle[h] = -1;
+        generation[h] = (generation[h] + 1) & (-1 >>> INDEX_BITS);
+        freeHandles[freeCount++] = h;
+    }
+
+    public void clear() {
+        while (count > 0) removeAt(count - 1);
+    }
+
+    // Makes this a slot-for-slot copy of src. Handles don't carry over; slot i gets handle i.
+    public void copyFrom(EntityStore src) {
+        int n = src.count;
+        while (x.length < n) grow();
+        System.arraycopy(src.x, 0, x, 0, n);
+        System.arraycopy(src.y, 0, y, 0, n);
+        System.arraycopy(src.vx, 0, vx, 0, n);
+        System.arraycopy(src.vy, 0, vy, 0, n);
+        System.arraycopy(src.size, 0, size, 0, n);
+        System.arraycopy(src.flags, 0, flags, 0, n);
+        System.arraycopy(src.variant, 0, variant, 0, n);
+        System.arraycopy(src.rgb, 0, rgb, 0, n);
+        System.arraycopy(src.life, 0, life, 0, n);
+        for (int i = 0; i < n; i++) {
+            slotOfHandle[i] = i;
+            handleOfSlot[i] = i;
+        }
+        for (int h = n; h < handleCount; h++) {
+            slotOfHandle[h] = -1;
+        }
+        handleCount = n;
+        freeCount = 0;
+        count = n;
+    }
+
+    private void grow() {
+        int n = x.length * 2;
+        x = Arrays.copyOf(x, n);
+        y = Arrays.copyOf(y, n);
+        vx = Arrays.copyOf(vx, n);
+        vy = Arrays.copyOf(vy, n);
+        size = Arrays.copyOf(size, n);
+        flags = Arrays.copyOf(flags, n);
+        variant = Arrays.copyOf(variant, n);
+        rgb = Arrays.copyOf(rgb, n);
+        life = Arrays.copyOf(life, n);
+        slotOfHandle = Arrays.copyOf(slotOfHandle, n);
+        generation = Arrays.copyOf(generation, n);
+        handleOfSlot = Arrays.copyOf(handleOfSlot, n);
+        freeHandles = Arrays.copyOf(freeHandles, n);
+    }
+}
+
+// Fixed-capacity particle storage in primitive arrays. Nothing is allocated after
+// construction: once the pool is full, new sparks overwrite live ones round-robin, so
+// SPACE spam can never push it past its cap. Randomness comes from a GameRandom the
+// world seeds on reset instead of five Math.random() calls per spark.
+class ParticlePool {
+    public static final int MAX_LIFE = 49;
+    // Draw alpha for each remaining life value, the old life / 50 * 255 fade.
+    private static final int[] ALPHA = new int[MAX_LIFE + 1];
+    static {
+        for (int life = 0; life <= MAX_LIFE; life++) {
+            ALPHA[life] = (int) (life / 50.0f * 255);
+        }
+    }
+
+    final float[] x, y, vx, vy, size;
+    final int[] rgb, life;
+    private final int capacity;
+    private int count;
+    private int evictCursor;
+    private final GameRandom random = new GameRandom(System.nanoTime());
+
+    public ParticlePool(int capacity) {
+        this.capacity = capacity;
+        x = new float[capacity];
+        y = new float[capacity];
+        vx = new float[capacity];
+        vy = new float[capacity];
+        size = new float[capacity];
+        rgb = new int[capacity];
+        life = new int[capacity];
+    }
+
+    public void setSeed(long seed) {
+        random.setSeed(seed);
+    }
+
+    public int count() { return count; }
+    public int capacity() { return capacity; }
+
+    public void emit(float px, float py, int n) {
+        if (capacity == 0) return;
+        for (int k = 0; k < n; k++) {
+            int i;
+            if (count < capacity) {
+                i = count++;
+            } else {
+                i = evictCursor;
+                evictCursor = (evictCursor + 1) % capacity;
+            }
+            x[i] = px;
+            y[i] = py;
+            vx[i] = random.nextFloat() * 6 - 3;
+            vy[i] = random.nextFloat() * 6 - 3;
+            size[i] = random.nextFloat() * 8 + 2;
+            rgb[i] = (100 + random.nextInt(156)) << 16 | (100 + random.nextInt(156)) << 8
+                    | (100 + random.nextInt(156));
+            life[i] = 20 + random.nextInt(30);
+        }
+    }
+
+    public void update() {
+        for (int i = count - 1; i >= 0; i--) {
+            x[i] += vx[i];
+            y[i] += vy[i];
+            vy[i] += 0.1f;
+            size[i] *= 0.95f;
+            if (--life[i] <= 0) {
+                int last = --count;
+                x[i] = x[last]; y[i] = y[last];
+                vx[i] = vx[last]; vy[i] = vy[last];
+                size[i] = size[last];
+                rgb[i] = rgb[last];
+                life[i] = life[last];
+            }
+        }
+    }
+
+    public void clear() {
+        count = 0;
+        evictCursor = 0;
+    }
+
+    // Up to this pool's capacity, which is normally the same as src's.
+    public void copyFrom(ParticlePool src) {
+        int n = Math.min(src.count, capacity);
+        System.arraycopy(src.x, 0, x, 0, n);
+        System.arraycopy(src.y, 0, y, 0, n);
+        System.arraycopy(src.vx, 0, vx, 0, n);
+        System.arraycopy(src.vy, 0, vy, 0, n);
+        System.arraycopy(src.size, 0, size, 0, n);
+        System.arraycopy(src.rgb, 0, rgb, 0, n);
+        System.arraycopy(src.life, 0, life, 0, n);
+        count = n;
+        evictCursor = src.evictCursor % Math.max(1, capacity);
+    }
+
+    public static int alphaFor(int life) {
+        return ALPHA[Math.max(0, Math.min(MAX_LIFE, life))];
+    }
+}
+
+// Where the time goes. Tick and paint phases are timed as laps: begin starts the clock
+// and each lap charges the time since the previous mark to one phase. Frames add their
+// interval and the bytes the render thread allocated since the last one. Everything lands
+// in lock-free histograms, so another thread can read or dump them at any time.
+class Profiler {
+    public static final int TICK_BIRD = 0, TICK_PARTICLES = 1, TICK_CLOUDS = 2, TICK_PIPES = 3,
+            TICK_COINS = 4, TICK_COLLISION = 5, TICK = 6,
+            PAINT_PREPARE = 7, PAINT_SKY = 8, PAINT_CLOUDS = 9, PAINT_PIPES = 10, PAINT_COINS = 11,
+            PAINT_GROUND = 12, PAINT_PARTICLES = 13, PAINT_BIRD = 14, PAINT_HUD = 15,
+            PAINT_MESSAGES = 16, PAINT_BLIT = 17, PAINT_OVERLAY = 18, PAINT_PRESENT = 19,
+            PAINT = 20, FRAME = 21, ALLOCATED = 22, INPUT_APPLIED = 23, INPUT_PRESENTED = 24,
+            CAPTURE = 25;
+    static final String[] NAMES = {
+            "tick.bird", "tick.particles", "tick.clouds", "tick.pipes", "tick.coins", "tick.collision",
+            "tick", "paint.prepare", "paint.sky", "paint.clouds", "paint.pipes", "paint.coins",
+            "paint.ground", "paint.particles", "paint.bird", "paint.hud", "paint.messages",
+            "paint.blit", "paint.overlay", "paint.present", "paint", "frame", "allocated",
+            "input.applied", "input.presented", "capture"};
+    // Frames kept for the overlay graph.
+    public static final int HISTORY = 240;
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[NAMES.length];
+    private final com.sun.management.ThreadMXBean threads = allocationCounter();
+    private final long[] frameHistory = new long[HISTORY];
+    private int frames;
+    private long tickStart, tickMark, paintStart, paintMark;
+    private long lastFrame, lastAllocated = -1, allocatedLastFrame = -1;
+
+    public Profiler() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    // Null if this JVM can't count allocated bytes per thread.
+    static com.sun.management.ThreadMXBean allocationCounter() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads;
+            }
+        }
+        return null;
+    }
+
+    // CPU time the whole process has used so far, or -1 if this JVM can't tell.
+    static long processCpuNanos() {
+        java.lang.management.OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        return bean instanceof com.sun.management.OperatingSystemMXBean
+                ? ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime() : -1;
+    }
+
+    public void beginTick() {
+        tickStart = tickMark = System.nanoTime();
+    }
+    public void lapTick(int phase) {
+        long now = System.nanoTime();
+        histograms[phase].record(now - tickMark);
+        tickMark = now;
+    }
+    public void endTick() {
+        histograms[TICK].record(tickMark - tickStart);
+    }
+
+    public void beginPaint() {
+        paintStart = paintMark = System.nanoTime();
+    }
+    public void lapPaint(int phase) {
+        long now = System.nanoTime();
+        histograms[phase].record(now - paintMark);
+        paintMark = now;
+    }
+    public void endPaint() {
+        histograms[PAINT].record(paintMark - paintStart);
+    }
+
+    // Call once per presented frame, from the render thread.
+    public void endFrame() {
+        long now = System.nanoTime();
+        if (lastFrame != 0) {
+            histograms[FRAME].record(now - lastFrame);
+            frameHistory[frames++ % HISTORY] = now - lastFrame;
+        }
+        lastFrame = now;
+        if (threads != null) {
+            long allocated = threads.getCurrentThreadAllocatedBytes();
+            if (lastAllocated >= 0) {
+                allocatedLastFrame = allocated - lastAllocated;
+                histograms[ALLOCATED].record(allocatedLastFrame);
+            }
+            lastAllocated = allocated;
+        }
+    }
+
+    public LatencyHistogram histogram(int phase) { return histograms[phase]; }
+    // Bytes the render thread allocated over the last frame, or -1 if the JVM can't tell.
+    public long allocatedLastFrame() { return allocatedLastFrame; }
+
+    // Frame interval from k frames ago, 0 for the newest; 0 before there is one.
+    public long frameNanos(int k) {
+        return k < Math.min(frames, HISTORY) ? frameHistory[Math.floorMod(frames - 1 - k, HISTORY)] : 0;
+    }
+
+    public void writeCsv(Path file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("phase,unit,count,mean,p50,p99,p99.9,max");
+            for (int i = 0; i < histograms.length; i++) {
+                LatencyHistogram h = histograms[i];
+                out.printf("%s,%s,%d,%.0f,%d,%d,%d,%d%n", NAMES[i], i == ALLOCATED ? "bytes" : "ns",
+                        h.count(), h.mean(), h.percentile(0.50), h.percentile(0.99),
+                        h.percentile(0.999), h.max());
+            }
+        }
+    }
+}
+
+// Log-linear histogram of non-negative longs: 32 linear buckets per power of two, so a
+// percentile is within about 3% of the true value over the whole long range. Counts are
+// atomics, so recording and reading need no lock.
+class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            // lost a race with a bigger value or another writer; re-check
+        }
+    }
+
+    public long count() { return count.get(); }
+    public long max() { return max.get(); }
+    public double mean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    // Upper edge of the bucket holding the q-th value, capped at the largest seen.
+    public long percentile(double q) {
+        long n = count.get();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upperEdge(i), max.get());
+        }
+        return max.get();
+    }
+
+    static int index(long value) {
+        if (value < SUB) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) - SUB);
+    }
+
+    static long upperEdge(int index) {
+        if (index < SUB) return index;
+        int shift = (index >> SUB_BITS) - 1;
+        return ((SUB + (long) (index & (SUB - 1)) + 1) << shift) - 1;
+    }
+}
+
+// Live frame-time graph and per-phase percentiles, drawn over the finished frame. Like
+// the HUD, the text panel is an image re-rasterized a few times a second; only the graph
+// bars are drawn every frame.
+class ProfilerOverlay {
+    private static final int[] ROWS = {
+            Profiler.FRAME, Profiler.PAINT, Profiler.TICK, Profiler.INPUT_APPLIED, Profiler.INPUT_PRESENTED,
+            Profiler.TICK_BIRD, Profiler.TICK_PARTICLES, Profiler.TICK_CLOUDS, Profiler.TICK_PIPES,
+            Profiler.TICK_COINS, Profiler.TICK_COLLISION,
+            Profiler.PAINT_PREPARE, Profiler.PAINT_SKY, Profiler.PAINT_CLOUDS, Profiler.PAINT_PIPES,
+            Profiler.PAINT_COINS, Profiler.PAINT_GROUND, Profiler.PAINT_PARTICLES, Profiler.PAINT_BIRD,
+            Profiler.PAINT_HUD, Profiler.PAINT_MESSAGES, Profiler.PAINT_BLIT, Profiler.PAINT_PRESENT,
+            Profiler.CAPTURE};
+    private static final int GRAPH_H = 60;
+    private static final int LINE_H = 12;
+    private static final int W = 300;
+    private static final int H = GRAPH_H + 16 + (ROWS.length + 3) * LINE_H;
+    private static final int X = GameWorld.WIDTH - W - 10, Y = 10;
+    // Graph scale: 33 ms reaches the top; the guide line marks 60 Hz.
+    private static final double GRAPH_NANOS = 33_333_333;
+    private static final long SLOW_NANOS = 17_000_000L;
+    private static final long REFRESH_NANOS = 250_000_000L;
+    private static final Font FONT = new Font("Monospaced", Font.PLAIN, 11);
+    private static final Color BACKGROUND = new Color(0, 0, 0, 170);
+    private static final Color BAR = new Color(120, 230, 120);
+    private static final Color SLOW_BAR = new Color(240, 90, 90);
+
+    private final Profiler profiler;
+    private final QualityGovernor governor;
+    private final BufferedImage panel = SpriteAtlas.newImage(W, H);
+    private long refreshedAt;
+    private boolean painted;
+
+    ProfilerOverlay(Profiler profiler, QualityGovernor governor) {
+        this.profiler = profiler;
+        this.governor = governor;
+    }
+
+    public void draw(Graphics2D g2d) {
+        long now = System.nanoTime();
+        if (!painted || now - refreshedAt > REFRESH_NANOS) {
+            repaintPanel();
+            refreshedAt = now;
+            painted = true;
+        }
+        g2d.drawImage(panel, X, Y, null);
+
+        int base = Y + 8 + GRAPH_H;
+        int bars = Math.min(Profiler.HISTORY, W - 20);
+        g2d.setColor(BAR);
+        for (int k = 0; k < bars; k++) {
+            long nanos = profiler.frameNanos(k);
+            if (nanos <= SLOW_NANOS) {
+                int h = (int) (nanos / GRAPH_NANOS * GRAPH_H);
+                g2d.fillRect(X + W - 10 - k, base - h, 1, h);
+            }
+        }
+        g2d.setColor(SLOW_BAR);
+        for (int k = 0; k < bars; k++) {
+            long nanos = profiler.frameNanos(k);
+            if (nanos > SLOW_NANOS) {
+                int h = (int) Math.min(GRAPH_H, nanos / GRAPH_NANOS * GRAPH_H);
+                g2d.fillRect(X + W - 10 - k, base - h, 1, h);
+            }
+        }
+        g2d.setColor(Color.YELLOW);
+        int guide = base - (int) (16_666_667 / GRAPH_NANOS * GRAPH_H);
+        g2d.drawLine(X + 10, guide, X + W - 10, guide);
+    }
+
+    private void repaintPanel() {
+        Graphics2D g = panel.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.setColor(BACKGROUND);
+        g.fillRect(0, 0, W, H);
+        g.setComposite(AlphaComposite.SrcOver);
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setFont(FONT);
+        g.setColor(Color.WHITE);
+        int y = 8 + GRAPH_H + 16;
+        g.drawString(String.format("%-16s %7s %7s %7s", "us", "p50", "p99", "p99.9"), 10, y);
+        for (int row : ROWS) {
+            LatencyHistogram h = profiler.histogram(row);
+            y += LINE_H;
+            g.drawString(String.format("%-16s %7.1f %7.1f %7.1f", Profiler.NAMES[row],
+                    h.percentile(0.50) / 1e3, h.percentile(0.99) / 1e3, h.percentile(0.999) / 1e3), 10, y);
+        }
+        long bytes = profiler.allocatedLastFrame();
+        y += LINE_H;
+        g.drawString(bytes < 0 ? "alloc/frame      n/a"
+                : String.format("alloc/frame %,8d B  p99 %,d B", bytes,
+                        profiler.histogram(Profiler.ALLOCATED).percentile(0.99)), 10, y);
+        RenderQuality quality = governor.quality();
+        y += LINE_H;
+        g.drawString(String.format("quality %d/%d %s%s", quality.index, RenderQuality.LEVELS.length - 1,
+                quality.name, governor.isAutomatic() ? "" : " (fixed)"), 10, y);
+        g.dispose();
+    }
+}
+
+// One rung of the quality ladder. Level 0 is the full look; each later level gives up
+// something more to keep frames inside the budget when the machine can't keep up.
+class RenderQuality {
+    static final RenderQuality[] LEVELS = {
+            new RenderQuality(0, "full", true, false, Integer.MAX_VALUE, Integer.MAX_VALUE, false),
+            new RenderQuality(1, "speed hints", true, true, Integer.MAX_VALUE, Integer.MAX_VALUE, false),
+            new RenderQuality(2, "no antialiasing", false, true, 2048, Integer.MAX_VALUE, false),
+            new RenderQuality(3, "fewer effects", false, true, 512, 12, false),
+            new RenderQuality(4, "flat fills", false, true, 128, 5, true),
+            new RenderQuality(5, "minimal", false, true, 0, 0, true)};
+
+    final int index;
+    final String name;
+    final boolean antialias;
+    final boolean speedHints;
+    final int particleBudget;
+    final int cloudBudget;
+    final boolean flatFills;
+
+    private RenderQuality(int index, String name, boolean antialias, boolean speedHints,
+                          int particleBudget, int cloudBudget, boolean flatFills) {
+        this.index = index;
+        this.name = name;
+        this.antialias = antialias;
+        this.speedHints = speedHints;
+        this.particleBudget = particleBudget;
+        this.cloudBudget = cloudBudget;
+        this.flatFills = flatFills;
+    }
+
+    public void apply(Graphics2D g2d) {
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialias
+                ? RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF);
+        g2d.setRenderingHint(RenderingHints.KEY_RENDERING, speedHints
+                ? RenderingHints.VALUE_RENDER_SPEED : RenderingHints.VALUE_RENDER_QUALITY);
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, speedHints
+                ? RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR : RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.setRenderingHint(RenderingHints.KEY_ALPHA_INTERPOLATION, speedHints
+                ? RenderingHints.VALUE_ALPHA_INTERPOLATION_SPEED : RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY);
+        g2d.setRenderingHint(RenderingHints.KEY_COLOR_RENDERING, speedHints
+                ? RenderingHints.VALUE_COLOR_RENDER_SPEED : RenderingHints.VALUE_COLOR_RENDER_QUALITY);
+    }
+}
+
+// Picks a RenderQuality from recent frame costs. Paint time per frame on the render
+// thread (not the present, nor the wait for the next frame) is averaged over windows of
+// WINDOW frames; ticks run on their own thread and no quality level makes them cheaper. A window
+// above DROP_AT of the budget steps quality down one level; RAISE_WINDOWS windows in a
+// row below RAISE_AT step it back up. Each time a level has to be left, climbing back to
+// it takes twice as many good windows as before, so a level that only just doesn't fit
+// is not retried every couple of seconds. -Dflappy.quality=N pins a level instead.
+class QualityGovernor {
+    private static final int WINDOW = 30;
+    private static final double DROP_AT = 0.85;
+    private static final double RAISE_AT = 0.5;
+    private static final int RAISE_WINDOWS = 4;
+    private static final int MAX_BACKOFF = 5;
+    private static final String FIXED = System.getProperty("flappy.quality", "auto");
+
+    private final boolean automatic;
+    private final int[] backoff = new int[RenderQuality.LEVELS.length];
+    private volatile int level;
+    private long budgetNanos = 16_666_667L;
+    private long windowBusy;
+    private int windowFrames;
+    private int goodWindows;
+
+    public QualityGovernor() {
+        automatic = FIXED.equals("auto");
+        level = automatic ? 0 : Math.max(0, Math.min(RenderQuality.LEVELS.length - 1, Integer.parseInt(FIXED)));
+    }
+
+    public void setBudget(long frameNanos) {
+        budgetNanos = frameNanos;
+    }
+
+    public RenderQuality quality() {
+        return RenderQuality.LEVELS[level];
+    }
+
+    public boolean isAutomatic() {
+        return automatic;
+    }
+
+    public void frame(long busyNanos) {
+        if (!automatic) return;
+        windowBusy += busyNanos;
+        if (++windowFrames < WINDOW) return;
+        double load = (double) windowBusy / windowFrames / budgetNanos;
+        windowBusy = 0;
+        windowFrames = 0;
+
+        if (load > DROP_AT) {
+            goodWindows = 0;
+            if (level < RenderQuality.LEVELS.length - 1) {
+                backoff[level] = Math.min(MAX_BACKOFF, backoff[level] + 1);
+                level++;
+            }
+        } else if (load < RAISE_AT && level > 0) {
+            if (++goodWindows >= RAISE_WINDOWS << backoff[level - 1]) {
+                goodWindows = 0;
+                level--;
+            }
+        } else {
+            goodWindows = 0;
+        }
+    }
+}
+
+// Flight Recorder events. They cost a flag check unless a recording enables them, e.g.
+// java -XX:StartFlightRecording=filename=flappy.jfr FlappyBirdGame
+@Name("flappybird.Tick")
+@Label("Tick")
+@Category("Flappy Bird")
+@StackTrace(false)
+class TickEvent extends Event {
+    @Label("Tick") long tick;
+    @Label("Pipes") int pipes;
+    @Label("Coins") int coins;
+    @Label("Particles") int particles;
+}
+
+@Name("flappybird.Spawn")
+@Label("Spawn")
+@Category("Flappy Bird")
+@StackTrace(false)
+class SpawnEvent extends Event {
+    @Label("Kind") String kind;
+    @Label("X") int x;
+    @Label("Y") int y;
+
+    static void emit(String kind, int x, int y) {
+        SpawnEvent event = new SpawnEvent();
+        if (event.shouldCommit()) {
+            event.kind = kind;
+            event.x = x;
+            event.y = y;
+            event.commit();
+        }
+    }
+}
+
+@Name("flappybird.Collision")
+@Label("Collision")
+@Category("Flappy Bird")
+@StackTrace(false)
+class CollisionEvent extends Event {
+    @Label("Kind") String kind;
+    @Label("Tick") long tick;
+
+    static void emit(String kind, long tick) {
+        CollisionEvent event = new CollisionEvent();
+        if (event.shouldCommit()) {
+            event.kind = kind;
+            event.tick = tick;
+            event.commit();
+        }
+    }
+}
+
+// Decides each tick whether to flap, looking at the world as it stands before the tick.
+// A batch shares one instance across all its games and threads, so implementations must
+// not keep per-game state.
+interface Policy {
+    Policy AUTOPILOT = GameWorld::autopilotWantsFlap;
+
+    boolean wantsFlap(GameWorld world);
+}
+
+// Plays many independent games on a ForkJoinPool and collects how they ended. Each task
+// owns one GameWorld and runs plain GameWorld.step, the same tick the window runs, so
+// results carry over to the real game. Game i is seeded with GameRandom.mix(firstSeed + i),
+// which makes a batch reproducible and lets any one game be replayed on its own.
+class BatchRunner {
+    // Ten minutes at the default 62.5 Hz; a good policy may otherwise never die.
+    public static final long DEFAULT_MAX_TICKS = 37_500;
+    private static final int GAMES_PER_TASK = 8;
+
+    // Summary of one outcome over all games in a batch.
+    static class Stats {
+        final double mean;
+        final long min, p50, p90, p99, max;
+
+        Stats(long[] values) {
+            long[] sorted = values.clone();
+            Arrays.sort(sorted);
+            long sum = 0;
+            for (long v : sorted) sum += v;
+            int n = sorted.length;
+            mean = n == 0 ? 0 : (double) sum / n;
+            min = n == 0 ? 0 : sorted[0];
+            p50 = percentile(sorted, 0.50);
+            p90 = percentile(sorted, 0.90);
+            p99 = percentile(sorted, 0.99);
+            max = n == 0 ? 0 : sorted[n - 1];
+        }
+
+        private static long percentile(long[] sorted, double q) {
+            if (sorted.length == 0) return 0;
+            return sorted[(int) Math.min(sorted.length - 1, Math.ceil(q * sorted.length) - 1)];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("mean %.1f, min %d, p50 %d, p90 %d, p99 %d, max %d",
+                    mean, min, p50, p90, p99, max);
+        }
+    }
+
+    static class Report {
+        final int games;
+        final int threads;
+        final long totalTicks;
+        final double seconds;
+        final Stats score, coins, ticks;
+
+        Report(int games, int threads, double seconds, long[] score, long[] coins, long[] ticks) {
+            this.games = games;
+            this.threads = threads;
+            this.seconds = seconds;
+            this.score = new Stats(score);
+            this.coins = new Stats(coins);
+            this.ticks = new Stats(ticks);
+            long total = 0;
+            for (long t : ticks) total += t;
+            totalTicks = total;
+        }
+
+        public double gamesPerSecond() { return games / seconds; }
+        public double ticksPerSecond() { return totalTicks / seconds; }
+
+        @Override
+        public String toString() {
+            return String.format("%d games on %d threads in %.3f s (%.0f games/s, %.0f ticks/s)%n"
+                            + "score:    %s%ncoins:    %s%nsurvival: %s ticks",
+                    games, threads, seconds, gamesPerSecond(), ticksPerSecond(), score, coins, ticks);
+        }
+    }
+
+    public static Report run(Policy policy, int games, long firstSeed, long maxTicks, int threads) {
+        long[] score = new long[games];
+        long[] coins = new long[games];
+        long[] ticks = new long[games];
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long start = System.nanoTime();
+        try {
+            pool.invoke(new Games(policy, firstSeed, maxTicks, 0, games, score, coins, ticks));
+        } finally {
+            pool.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return new Report(games, threads, seconds, score, coins, ticks);
+    }
+
+    // Splits the game range in halves down to GAMES_PER_TASK, then plays that slice on one world.
+    private static class Games extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Policy policy;
+        private final long firstSeed, maxTicks;
+        private final int from, to;
+        private final long[] score, coins, ticks;
+
+        Games(Policy policy, long firstSeed, long maxTicks, int from, int to,
+              long[] score, long[] coins, long[] ticks) {
+            this.policy = policy;
+            this.firstSeed = firstSeed;
+            this.maxTicks = maxTicks;
+            this.from = from;
+            this.to = to;
+            this.score = score;
+            this.coins = coins;
+            this.ticks = ticks;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > GAMES_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Games(policy, firstSeed, maxTicks, from, mid, score, coins, ticks),
+                        new Games(policy, firstSeed, maxTicks, mid, to, score, coins, ticks));
+                return;
+            }
+            GameWorld world = new GameWorld(0);
+            for (int game = from; game < to; game++) {
+                world.reset(GameRandom.mix(firstSeed + game));
+                while (!world.isGameOver() && world.getTick() < maxTicks) {
+                    world.step(policy.wantsFlap(world));
+                }
+                score[game] = world.getScore();
+                coins[game] = world.getCoinsCollected();
+                ticks[game] = world.getTick();
+            }
+        }
+    }
+}
+
+// SplitMix64. Spelled out here rather than borrowed from java.util so a seed produces
+// the same course on every JDK, which recorded runs depend on.
+class GameRandom {
+    private long state;
+
+    public GameRandom(long seed) {
+        state = seed;
+    }
+
+    public void setSeed(long seed) {
+        state = seed;
+    }
+
+    // Where the stream stands; setSeed with it continues from here.
+    public long getState() {
+        return state;
+    }
+
+    public long nextLong() {
+        return mix(state += 0x9E3779B97F4A7C15L);
+    }
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1p-53;
+    }
+    public float nextFloat() {
+        return (nextLong() >>> 40) * 0x1p-24f;
+    }
+    public int nextInt(int bound) {
+        return (int) (((nextLong() >>> 32) * bound) >>> 32);
+    }
+
+    public static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
+
+// The inputs of one run: its seed and difficulty, how many ticks it lasted, and the ticks
+// SPACE was pressed on. Each flap is stored as an LEB128 varint of the gap since the
+// previous flap, shifted left to make room for its phase within the tick, so a press
+// less than 32 ticks after the last costs one byte.
+//   bytes 0-3  "FBR3"
+//   bytes 4-11 seed, big-endian
+//   byte 12    DifficultyCurve id
+//   varint     ticks
+//   varint     flap count
+//   varint...  tick delta << FLAP_PHASE_BITS | phase
+// FBR2 stores plain tick deltas, every flap at phase 0, and FBR1 is FBR2 without the
+// difficulty byte, from before there was more than the classic course.
+class InputRecording {
+    private static final int MAGIC_V1 = 0x46425231;
+    private static final int MAGIC_V2 = 0x46425232;
+    private static final int MAGIC = 0x46425233;
+    static final int SNAPSHOT_BYTES = 2 * 8 + 2 * 4;
+
+    private final long seed;
+    private final int curve;
+    private long ticks;
+    private int flapCount;
+    private long lastFlap;
+    private byte[] deltas = new byte[64];
+    private int length;
+
+    public InputRecording(long seed, int curve) {
+        this.seed = seed;
+        this.curve = curve;
+    }
+
+    public long getSeed() { return seed; }
+    public int getCurve() { return curve; }
+    public long getTicks() { return ticks; }
+    public int getFlapCount() { return flapCount; }
+
+    public void setTicks(long ticks) {
+        this.ticks = ticks;
+    }
+
+    // Ticks must be strictly increasing.
+    public void flap(long tick, int phase) {
+        if (length + 10 > deltas.length) {
+            deltas = Arrays.copyOf(deltas, deltas.length * 2);
+        }
+        length = writeVarint(deltas, length, (tick - lastFlap) << GameWorld.FLAP_PHASE_BITS | phase);
+        lastFlap = tick;
+        flapCount++;
+    }
+
+    // How far the recording has got. Reading it back truncates the recording to that
+    // point, dropping the flaps after it; the bytes before it are never rewritten.
+    public void writeSnapshot(ByteBuffer out) {
+        out.putLong(ticks).putLong(lastFlap).putInt(flapCount).putInt(length);
+    }
+
+    public void readSnapshot(ByteBuffer in) {
+        ticks = in.getLong();
+        lastFlap = in.getLong();
+        flapCount = in.getInt();
+        length = in.getInt();
+    }
+
+    public byte[] toBytes() {
+        byte[] out = new byte[13 + 10 + 5 + length];
+        int pos = 0;
+        for (int shift = 24; shift >= 0; shift -= 8) out[pos++] = (byte) (MAGIC >>> shift);
+        for (int shift = 56; shift >= 0; shift -= 8) out[pos++] = (byte) (seed >>> shift);
+        out[pos++] = (byte) curve;
+        pos = writeVarint(out, pos, ticks);
+        pos = writeVarint(out, pos, flapCount);
+        System.arraycopy(deltas, 0, out, pos, length);
+        return Arrays.copyOf(out, pos + length);
+    }
+
+    public static InputRecording fromBytes(byte[] data) {
+        if (data.length < 12) throw new IllegalArgumentException("truncated header");
+        int magic = 0;
+        for (int i = 0; i < 4; i++) magic = magic << 8 | (data[i] & 0xFF);
+        if (magic != MAGIC && magic != MAGIC_V2 && magic != MAGIC_V1) {
+            throw new IllegalArgumentException("not a recording");
+        }
+        long seed = 0;
+        for (int i = 4; i < 12; i++) seed = seed << 8 | (data[i] & 0xFF);
+        int start = 12;
+        int curve = DifficultyCurve.CLASSIC.id;
+        if (magic != MAGIC_V1) {
+            if (data.length < 13) throw new IllegalArgumentException("truncated header");
+            curve = data[start++];
+            DifficultyCurve.of(curve);
+        }
+        InputRecording recording = new InputRecording(seed, curve);
+        Cursor in = new Cursor(data, start, data.length);
+        long ticks = in.nextVarint();
+        long flaps = in.nextVarint();
+        // Replays look for each flap on the tick after the last, so a repeated tick would
+        // hide every flap after it; such files are rejected rather than replayed differently.
+        for (long k = 0; k < flaps; k++) {
+            long delta;
+            int phase = 0;
+            if (magic == MAGIC) {
+                long entry = in.nextVarint();
+                delta = entry >>> GameWorld.FLAP_PHASE_BITS;
+                phase = (int) entry & (GameWorld.FLAP_PHASES - 1);
+            } else {
+                delta = in.nextVarint();
+            }
+            if (delta <= 0) throw new IllegalArgumentException("flap ticks not increasing");
+            if (delta > ticks - recording.lastFlap) throw new IllegalArgumentException("flap past the last tick");
+            recording.flap(recording.lastFlap + delta, phase);
+        }
+        if (in.hasNext()) throw new IllegalArgumentException("trailing bytes");
+        recording.setTicks(ticks);
+        return recording;
+    }
+
+    // Walks the flaps in order without decoding them up front.
+    public Cursor flaps() {
+        return new Cursor(deltas, 0, length);
+    }
+
+    static int writeVarint(byte[] out, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    static class Cursor {
+        private final byte[] data;
+        private final int end;
+        private int pos;
+        private long tick;
+        private int phase;
+
+        Cursor(byte[] data, int start, int end) {
+            this.data = data;
+            this.pos = start;
+            this.end = end;
+        }
+
+        public boolean hasNext() {
+            return pos < end;
+        }
+
+        // The next flap tick, for cursors over the delta stream; phase() is its phase.
+        public long next() {
+            long entry = nextVarint();
+            phase = (int) entry & (GameWorld.FLAP_PHASES - 1);
+            return tick += entry >>> GameWorld.FLAP_PHASE_BITS;
+        }
+
+        public int phase() {
+            return phase;
+        }
+
+        long nextVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= end) throw new IllegalArgumentException("truncated varint");
+                byte b = data[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+            throw new IllegalArgumentException("malformed varint");
+        }
+    }
+}
+
+// Re-runs a recording on a fresh world as fast as the simulation allows. No renderer is
+// involved, so it works headless.
+class ReplayPlayer {
+    static class Result {
+        final long ticks;
+        final int score;
+        final int coins;
+        final boolean gameOver;
+
+        Result(long ticks, int score, int coins, boolean gameOver) {
+            this.ticks = ticks;
+            this.score = score;
+            this.coins = coins;
+            this.gameOver = gameOver;
+        }
+    }
+
+    // Stops at the recorded length, at game over, or after maxTicks, whichever is first.
+    public static Result play(InputRecording recording, long maxTicks) {
+        return play(recording, new GameWorld(recording.getSeed()), maxTicks);
+    }
+
+    public static Result play(InputRecording recording, GameWorld world, long maxTicks) {
+        world.setCurve(DifficultyCurve.of(recording.getCurve()));
+        world.reset(recording.getSeed());
+        InputRecording.Cursor flaps = recording.flaps();
+        long nextFlap = flaps.hasNext() ? flaps.next() : Long.MAX_VALUE;
+        long limit = Math.min(recording.getTicks(), maxTicks);
+        while (world.getTick() < limit && !world.isGameOver()) {
+            int phase = GameWorld.NO_FLAP;
+            if (world.getTick() + 1 == nextFlap) {
+                phase = flaps.phase();
+                nextFlap = flaps.hasNext() ? flaps.next() : Long.MAX_VALUE;
+            }
+            world.step(phase);
+        }
+        return new Result(world.getTick(), world.getScore(), world.getCoinsCollected(), world.isGameOver());
+    }
+}
+
+// Decides whether claimed scores are real by re-simulating the runs behind them. A
+// submission is the run's inputs plus what the client says they scored; it is accepted
+// only if replaying the inputs on the seed dies on exactly the recorded tick with exactly
+// the claimed score and coins. Since the world is deterministic, there is nothing to forge
+// but the inputs themselves. maxTicks caps what one submission can cost: a run recorded
+// as longer is rejected before any of it is simulated.
+//
+// A verifier owns a ForkJoinPool; batches are split across it like BatchRunner's games,
+// with one reused world per slice. Thread-safe.
+class ScoreVerifier implements Closeable {
+    public static final long DEFAULT_MAX_TICKS = BatchRunner.DEFAULT_MAX_TICKS;
+    private static final int RUNS_PER_TASK = 16;
+
+    enum Verdict {
+        ACCEPTED,
+        // The inputs are fine but the claim isn't what they score.
+        WRONG_SCORE,
+        WRONG_COINS,
+        // The bird dies on a different tick than the recording says.
+        WRONG_LENGTH,
+        // The recording ends with the bird still flying.
+        STILL_ALIVE,
+        TOO_LONG,
+        MALFORMED
+    }
+
+    // What a client uploads.
+    //   bytes 0-3  "FBS1"
+    //   varint     claimed score
+    //   varint     claimed coins
+    //   rest       the run's InputRecording bytes
+    static class Submission {
+        private static final int MAGIC = 0x46425331;
+
+        final InputRecording recording;
+        final int score;
+        final int coins;
+
+        Submission(InputRecording recording, int score, int coins) {
+            this.recording = recording;
+            this.score = score;
+            this.coins = coins;
+        }
+
+        // The claim for the run world just finished.
+        static Submission of(GameWorld world) {
+            return new Submission(world.getRecording(), world.getScore(), world.getCoinsCollected());
+        }
+
+        public byte[] toBytes() {
+            byte[] run = recording.toBytes();
+            byte[] out = new byte[4 + 10 + run.length];
+            int pos = 0;
+            for (int shift = 24; shift >= 0; shift -= 8) out[pos++] = (byte) (MAGIC >>> shift);
+            pos = InputRecording.writeVarint(out, pos, score);
+            pos = InputRecording.writeVarint(out, pos, coins);
+            System.arraycopy(run, 0, out, pos, run.length);
+            return Arrays.copyOf(out, pos + run.length);
+        }
+
+        public static Submission fromBytes(byte[] data) {
+            if (data.length < 4) throw new IllegalArgumentException("truncated header");
+            int magic = 0;
+            for (int i = 0; i < 4; i++) magic = magic << 8 | (data[i] & 0xFF);
+            if (magic != MAGIC) throw new IllegalArgumentException("not a submission");
+            InputRecording.Cursor in = new InputRecording.Cursor(data, 4, data.length);
+            long score = in.nextVarint();
+            long coins = in.nextVarint();
+            if (score > Integer.MAX_VALUE || coins > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("claim out of range");
+            }
+            int pos = 4 + varintLength(score) + varintLength(coins);
+            return new Submission(InputRecording.fromBytes(Arrays.copyOfRange(data, pos, data.length)),
+                    (int) score, (int) coins);
+        }
+
+        private static int varintLength(long value) {
+            int n = 1;
+            while ((value >>>= 7) != 0) n++;
+            return n;
+        }
+    }
+
+    static class Report {
+        final Verdict[] verdicts;
+        final double seconds;
+        final long ticks;
+
+        Report(Verdict[] verdicts, double seconds, long ticks) {
+            this.verdicts = verdicts;
+            this.seconds = seconds;
+            this.ticks = ticks;
+        }
+
+        public int count(Verdict verdict) {
+            int n = 0;
+            for (Verdict v : verdicts) if (v == verdict) n++;
+            return n;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(String.format("%d runs in %.3f s (%.0f runs/s, %.0f ticks/s)",
+                    verdicts.length, seconds, verdicts.length / seconds, ticks / seconds));
+            for (Verdict v : Verdict.values()) {
+                int n = count(v);
+                if (n > 0) sb.append(String.format("%n%-13s %d", v.name().toLowerCase(), n));
+            }
+            return sb.toString();
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final long maxTicks;
+
+    public ScoreVerifier(long maxTicks, int threads) {
+        this.maxTicks = maxTicks;
+        pool = new ForkJoinPool(threads);
+    }
+
+    // Parsing happens on the pool too, so a junk upload costs the caller nothing.
+    public Report verify(List<byte[]> submissions) {
+        Verdict[] verdicts = new Verdict[submissions.size()];
+        long[] ticks = new long[submissions.size()];
+        long start = System.nanoTime();
+        pool.invoke(new Runs(submissions, maxTicks, 0, verdicts.length, verdicts, ticks));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long total = 0;
+        for (long t : ticks) total += t;
+        return new Report(verdicts, seconds, total);
+    }
+
+    // Leaves world on the submission's last simulated tick.
+    static Verdict verify(Submission submission, GameWorld world, long maxTicks) {
+        InputRecording recording = submission.recording;
+        if (recording.getTicks() > maxTicks) return Verdict.TOO_LONG;
+        ReplayPlayer.Result result = ReplayPlayer.play(recording, world, maxTicks);
+        if (!result.gameOver) return Verdict.STILL_ALIVE;
+        if (result.ticks != recording.getTicks()) return Verdict.WRONG_LENGTH;
+        if (result.score != submission.score) return Verdict.WRONG_SCORE;
+        if (result.coins != submission.coins) return Verdict.WRONG_COINS;
+        return Verdict.ACCEPTED;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    // Splits the batch in halves down to RUNS_PER_TASK, then checks that slice on one world.
+    private static class Runs extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<byte[]> submissions;
+        private final long maxTicks;
+        private final int from, to;
+        private final Verdict[] verdicts;
+        private final long[] ticks;
+
+        Runs(List<byte[]> submissions, long maxTicks, int from, int to, Verdict[] verdicts, long[] ticks) {
+            this.submissions = submissions;
+            this.maxTicks = maxTicks;
+            this.from = from;
+            this.to = to;
+            this.verdicts = verdicts;
+            this.ticks = ticks;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > RUNS_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Runs(submissions, maxTicks, from, mid, verdicts, ticks),
+                        new Runs(submissions, maxTicks, mid, to, verdicts, ticks));
+                return;
+            }
+            // Sparks don't touch the score, so the verifier doesn't simulate any.
+            GameWorld world = new GameWorld(0, 0);
+            for (int i = from; i < to; i++) {
+                Submission submission;
+                try {
+                    submission = Submission.fromBytes(submissions.get(i));
+                } catch (IllegalArgumentException e) {
+                    verdicts[i] = Verdict.MALFORMED;
+                    continue;
+                }
+                verdicts[i] = verify(submission, world, maxTicks);
+                ticks[i] = verdicts[i] == Verdict.TOO_LONG ? 0 : world.getTick();
+            }
+        }
+    }
+}
+
+// Every finished run, kept on disk. Two memory-mapped files live in one directory:
+//
+// runs.log is append-only, 40 bytes per run: magic, score, coins, ticks, seed, timestamp
+// and a CRC32C over the rest. It grows a chunk at a time; the zeroed tail of the last
+// chunk is where the next record goes.
+//
+// runs.idx holds how many log records it covers, the top TOP_K runs, and a Fenwick tree
+// of run counts per score, so rank and score-at-rank are O(log n) over any number of runs.
+// Scores above MAX_SCORE share its bucket.
+//
+// Opening reads the header and only folds in records written after the index last caught
+// up, checking each CRC, so startup doesn't replay the log. A record is appended before
+// the index is touched, and the index is flagged dirty while it is being updated: a crash
+// mid-append leaves a torn record the CRC rejects and the next append overwrites, and a
+// crash mid-update makes the next open rebuild the index from the log once.
+class RunStore implements Closeable {
+    public static final int TOP_K = 100;
+    public static final int MAX_SCORE = (1 << 20) - 1;
+
+    private static final int RECORD_MAGIC = 0x52554E31;   // "RUN1"
+    private static final int RECORD_SIZE = 40;
+    private static final int CHUNK_RECORDS = 1 << 16;
+    private static final long CHUNK_BYTES = (long) CHUNK_RECORDS * RECORD_SIZE;
+
+    private static final int INDEX_MAGIC = 0x46424958;    // "FBIX"
+    private static final int INDEX_VERSION = 1;
+    private static final int COMMITTED_AT = 8;
+    private static final int DIRTY_AT = 16;
+    private static final int TOP_COUNT_AT = 20;
+    private static final int TOP_AT = 24;
+    private static final int TOP_ENTRY = 16;               // score, pad, record number
+    private static final int TREE_AT = 4096;
+    private static final int TREE_SIZE = MAX_SCORE + 1;    // 1-based, one slot per score
+
+    static class Run {
+        final int score;
+        final int coins;
+        final long ticks;
+        final long seed;
+        final long timestamp;
+
+        Run(int score, int coins, long ticks, long seed, long timestamp) {
+            this.score = score;
+            this.coins = coins;
+            this.ticks = ticks;
+            this.seed = seed;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final FileChannel logChannel;
+    private final FileChannel indexChannel;
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+    private final MappedByteBuffer index;
+    private final CRC32C crc = new CRC32C();
+    private final byte[] scratch = new byte[RECORD_SIZE - 4];
+    private long count;
+
+    private RunStore(FileChannel logChannel, FileChannel indexChannel) throws IOException {
+        this.logChannel = logChannel;
+        this.indexChannel = indexChannel;
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, TREE_AT + 4L * (TREE_SIZE + 1));
+    }
+
+    public static Path defaultDir() {
+        String dir = System.getProperty("flappy.dataDir");
+        return dir != null ? Paths.get(dir) : Paths.get(System.getProperty("user.home"), ".flappybird");
+    }
+
+    public static RunStore open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        FileChannel log = FileChannel.open(dir.resolve("runs.log"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel idx = null;
+        try {
+            idx = FileChannel.open(dir.resolve("runs.idx"), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            RunStore store = new RunStore(log, idx);
+            store.recover();
+            return store;
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            if (idx != null) idx.close();
+            throw e;
+        }
+    }
+
+    private void recover() throws IOException {
+        long committed = index.getLong(COMMITTED_AT);
+        boolean usable = index.getInt(0) == INDEX_MAGIC && index.getInt(4) == INDEX_VERSION
+                && index.getInt(DIRTY_AT) == 0 && committed >= 0
+                && (committed == 0 || valid(committed - 1));
+        if (!usable) {
+            index.put(0, new byte[TREE_AT]);
+            for (int i = 1; i <= TREE_SIZE; i++) {
+                index.putInt(TREE_AT + 4 * i, 0);
+            }
+            index.putInt(0, INDEX_MAGIC);
+            index.putInt(4, INDEX_VERSION);
+            committed = 0;
+        }
+        count = committed;
+        while (valid(count)) {
+            fold(count, chunkFor(count).getInt(offset(count) + 4));
+            count++;
+        }
+    }
+
+    public synchronized long count() {
+        return count;
+    }
+
+    // Returns the new run's record number.
+    public synchronized long append(Run run) throws IOException {
+        long n = count;
+        MappedByteBuffer chunk = chunkFor(n);
+        int at = offset(n);
+        chunk.putInt(at, RECORD_MAGIC);
+        chunk.putInt(at + 4, run.score);
+        chunk.putInt(at + 8, run.coins);
+        chunk.putLong(at + 12, run.ticks);
+        chunk.putLong(at + 20, run.seed);
+        chunk.putLong(at + 28, run.timestamp);
+        chunk.putInt(at + 36, checksum(chunk, at));
+        fold(n, run.score);
+        count = n + 1;
+        return n;
+    }
+
+    public synchronized Run get(long n) throws IOException {
+        if (n < 0 || n >= count) throw new IndexOutOfBoundsException("run " + n + " of " + count);
+        MappedByteBuffer chunk = chunkFor(n);
+        int at = offset(n);
+        return new Run(chunk.getInt(at + 4), chunk.getInt(at + 8), chunk.getLong(at + 12),
+                chunk.getLong(at + 20), chunk.getLong(at + 28));
+    }
+
+    public synchronized int bestScore() {
+        return index.getInt(TOP_COUNT_AT) == 0 ? 0 : index.getInt(TOP_AT);
+    }
+
+    // 1 + the number of runs that scored strictly more.
+    public synchronized long rankOf(int score) {
+        return count - prefix(Math.min(Math.max(score, 0), MAX_SCORE) + 1) + 1;
+    }
+
+    // The score of the run at rank (1 = best), or -1 past the last run.
+    public synchronized int scoreAtRank(long rank) {
+        if (rank < 1 || rank > count) return -1;
+        long target = count - rank + 1;   // position counting from the lowest score
+        int pos = 0;
+        for (int step = Integer.highestOneBit(TREE_SIZE); step > 0; step >>= 1) {
+            int next = pos + step;
+            if (next <= TREE_SIZE && tree(next) < target) {
+                pos = next;
+                target -= tree(next);
+            }
+        }
+        return pos;   // slot pos + 1 holds score pos
+    }
+
+    // Best runs first, at most TOP_K; equal scores keep the order they were played in.
+    public synchronized List<Run> top(int k) throws IOException {
+        int n = Math.min(k, index.getInt(TOP_COUNT_AT));
+        List<Run> top = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            top.add(get(index.getLong(TOP_AT + i * TOP_ENTRY + 8)));
+        }
+        return top;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+        index.force();
+        logChannel.close();
+        indexChannel.close();
+    }
+
+    // Adds record n to the index. The committed count moves inside the dirty window, so an
+    // interrupted fold is always rebuilt and a finished one is never folded twice.
+    private void fold(long n, int score) {
+        index.putInt(DIRTY_AT, 1);
+        for (int i = Math.min(Math.max(score, 0), MAX_SCORE) + 1; i <= TREE_SIZE; i += i & -i) {
+            index.putInt(TREE_AT + 4 * i, tree(i) + 1);
+        }
+        int topCount = index.getInt(TOP_COUNT_AT);
+        int slot = topCount;
+        while (slot > 0 && index.getInt(TOP_AT + (slot - 1) * TOP_ENTRY) < score) {
+            slot--;
+        }
+        if (slot < TOP_K) {
+            int last = Math.min(topCount, TOP_K - 1);
+            for (int i = last; i > slot; i--) {
+                index.putInt(TOP_AT + i * TOP_ENTRY, index.getInt(TOP_AT + (i - 1) * TOP_ENTRY));
+                index.putLong(TOP_AT + i * TOP_ENTRY + 8, index.getLong(TOP_AT + (i - 1) * TOP_ENTRY + 8));
+            }
+            index.putInt(TOP_AT + slot * TOP_ENTRY, score);
+            index.putLong(TOP_AT + slot * TOP_ENTRY + 8, n);
+            index.putInt(TOP_COUNT_AT, Math.min(topCount + 1, TOP_K));
+        }
+        index.putLong(COMMITTED_AT, n + 1);
+        index.putInt(DIRTY_AT, 0);
+    }
+
+    // Runs with a score below bound.
+    private long prefix(int bound) {
+        long sum = 0;
+        for (int i = bound; i > 0; i -= i & -i) {
+            sum += tree(i);
+        }
+        return sum;
+    }
+
+    private int tree(int i) {
+        return index.getInt(TREE_AT + 4 * i);
+    }
+
+    private boolean valid(long n) throws IOException {
+        if (n >= logChannel.size() / RECORD_SIZE) return false;
+        MappedByteBuffer chunk = chunkFor(n);
+        int at = offset(n);
+        return chunk.getInt(at) == RECORD_MAGIC && chunk.getInt(at + 36) == checksum(chunk, at);
+    }
+
+    private int checksum(MappedByteBuffer chunk, int at) {
+        chunk.get(at, scratch);
+        crc.reset();
+        crc.update(scratch);
+        return (int) crc.getValue();
+    }
+
+    private MappedByteBuffer chunkFor(long n) throws IOException {
+        int c = (int) (n / CHUNK_RECORDS);
+        while (chunks.size() <= c) {
+            chunks.add(logChannel.map(FileChannel.MapMode.READ_WRITE, chunks.size() * CHUNK_BYTES, CHUNK_BYTES));
+        }
+        return chunks.get(c);
+    }
+
+    private static int offset(long n) {
+        return (int) (n % CHUNK_RECORDS) * RECORD_SIZE;
+    }
+}
+
+// Gameplay events for tuning the course: every flap, point, coin and death, with the
+// tick, the bird's y and velocity, and the gap and x of the pipe it was facing. The
+// producer fills a block of columns it owns; a full block goes to a writer thread through
+// an SpscRing and comes back empty through another, so record() never locks, waits or
+// allocates. When all BLOCKS are waiting to be written, the block is dropped instead and
+// counted.
+//
+// Files are append-only runs of blocks: magic, event count, a CRC32C of the columns, and
+// then one column after another (ticks, ys, velocities, gap tops, gap heights, x offsets,
+// kinds), so a reader only touches the columns it needs and a torn tail fails its CRC.
+// A new file is started before one passes MAX_FILE_BYTES, so every file maps whole.
+// record() and flush() are for one producer thread.
+class Telemetry implements Closeable {
+    static final byte JUMP = 0;
+    static final byte SCORE = 1;
+    static final byte COIN = 2;
+    static final byte DEATH = 3;
+    static final String SUFFIX = ".fbt";
+    static final int MAGIC = 0x46425431;          // "FBT1"
+    static final int HEADER_BYTES = 12;
+    // i32 tick, f32 y, f32 velocity, i16 gap top, i16 gap height, i16 x offset, u8 kind.
+    static final int EVENT_BYTES = 19;
+    static final int BLOCK_EVENTS = 4096;
+    static final int BLOCKS = 8;
+    static final long MAX_FILE_BYTES = 1L << 30;
+    private static final long IDLE_NANOS = 100_000_000L;
+    private static final AtomicInteger FILES = new AtomicInteger();
+
+    private static final class Block {
+        final int[] tick = new int[BLOCK_EVENTS];
+        final float[] y = new float[BLOCK_EVENTS];
+        final float[] vy = new float[BLOCK_EVENTS];
+        final short[] gapY = new short[BLOCK_EVENTS];
+        final short[] gap = new short[BLOCK_EVENTS];
+        final short[] dx = new short[BLOCK_EVENTS];
+        final byte[] kind = new byte[BLOCK_EVENTS];
+        int count;
+    }
+
+    private final Path dir;
+    private final SpscRing<Block> full = new SpscRing<>(BLOCKS);
+    private final SpscRing<Block> free = new SpscRing<>(BLOCKS);
+    private final Thread writer;
+    private volatile boolean closing;
+    private volatile long written;
+    // The producer's.
+    private Block current = new Block();
+    private long recorded, dropped;
+    // The writer's; channel is null once a write has failed.
+    private final ByteBuffer out = ByteBuffer.allocateDirect(HEADER_BYTES + BLOCK_EVENTS * EVENT_BYTES);
+    private final CRC32C crc = new CRC32C();
+    private FileChannel channel;
+    private long fileBytes;
+
+    Telemetry(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        channel = openFile();
+        for (int i = 1; i < BLOCKS; i++) {
+            free.offer(new Block());
+        }
+        writer = new Thread(this::write, "telemetry-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // gapY is -1, and gap and dx are ignored, when there is no pipe ahead yet. dx is the
+    // bird's x less the pipe's.
+    public void record(byte kind, long tick, float y, float vy, int gapY, float gap, float dx) {
+        Block block = current;
+        int i = block.count;
+        block.tick[i] = (int) tick;
+        block.y[i] = y;
+        block.vy[i] = vy;
+        block.gapY[i] = (short) gapY;
+        block.gap[i] = (short) gap;
+        block.dx[i] = (short) dx;
+        block.kind[i] = kind;
+        block.count = i + 1;
+        recorded++;
+        if (block.count == BLOCK_EVENTS) {
+            flush();
+        }
+    }
+
+    // Hands what has been recorded so far to the writer, e.g. when a run ends.
+    public void flush() {
+        Block block = current;
+        if (block.count == 0) return;
+        Block next = free.poll();
+        if (next == null) {
+            dropped += block.count;
+            block.count = 0;
+            return;
+        }
+        full.offer(block);
+        current = next;
+        LockSupport.unpark(writer);
+    }
+
+    // Writes every block handed over and closes the file. Events recorded since the last
+    // flush() are not written.
+    @Override
+    public void close() throws IOException {
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    public long getRecorded() { return recorded; }
+    public long getDropped() { return dropped; }
+    public long getWritten() { return written; }
+
+    private FileChannel openFile() throws IOException {
+        fileBytes = 0;
+        Path file = dir.resolve("telemetry-" + System.currentTimeMillis() + "-" + ProcessHandle.current().pid()
+                + "-" + FILES.getAndIncrement() + SUFFIX);
+        return FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.APPEND);
+    }
+
+    private void write() {
+        for (;;) {
+            // Read before looking, so whatever was handed over before close() gets written.
+            boolean last = closing;
+            Block block = full.poll();
+            if (block == null) {
+                if (last) return;
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+            if (channel != null) {
+                writeBlock(block);
+            }
+            block.count = 0;
+            free.offer(block);
+        }
+    }
+
+    private void writeBlock(Block block) {
+        int n = block.count;
+        out.clear();
+        out.putInt(MAGIC).putInt(n).putInt(0);
+        out.asIntBuffer().put(block.tick, 0, n);
+        out.position(out.position() + 4 * n);
+        out.asFloatBuffer().put(block.y, 0, n);
+        out.position(out.position() + 4 * n);
+        out.asFloatBuffer().put(block.vy, 0, n);
+        out.position(out.position() + 4 * n);
+        out.asShortBuffer().put(block.gapY, 0, n);
+        out.position(out.position() + 2 * n);
+        out.asShortBuffer().put(block.gap, 0, n);
+        out.position(out.position() + 2 * n);
+        out.asShortBuffer().put(block.dx, 0, n);
+        out.position(out.position() + 2 * n);
+        out.put(block.kind, 0, n);
+        out.flip();
+        crc.reset();
+        crc.update(out.duplicate().position(HEADER_BYTES));
+        out.putInt(8, (int) crc.getValue());
+        try {
+            if (fileBytes + out.remaining() > MAX_FILE_BYTES) {
+                channel.close();
+                channel = openFile();
+            }
+            while (out.hasRemaining()) {
+                fileBytes += channel.write(out);
+            }
+            written += n;
+        } catch (IOException e) {
+            System.err.println("Telemetry stopped, cannot write to " + dir + ": " + e.getMessage());
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Already failing.
+            }
+            channel = null;
+        }
+    }
+}
+
+// Offline aggregation of telemetry files: where birds die, how high they flap, and how
+// often each gap is survived, by where it sits and by its height. Every file is mapped
+// whole and its blocks found by hopping from header to header. The blocks then go
+// through a parallel stream, each checked against its CRC and folded into a Tally from
+// only the columns it needs, and the tallies are merged.
+final class TelemetryReport {
+    // Deaths are binned by the bird's x relative to the pipe it faced, from a pipe just in
+    // at the right edge to one it is leaving, and by its y.
+    static final int DX_MIN = GameWorld.WIDTH / 4 - GameWorld.WIDTH;
+    static final int DX_CELL = 40;
+    static final int COLS = (GameWorld.PIPE_WIDTH - DX_MIN) / DX_CELL + 1;
+    static final int Y_CELL = 25;
+    static final int ROWS = (GameWorld.HEIGHT - GameWorld.GROUND_HEIGHT) / Y_CELL;
+    static final int GAP_Y_CELL = 20;
+    static final int GAP_CELL = 10;
+    private static final String SHADES = " .:-=+*#%@";
+
+    static final class Tally {
+        final long[] deaths = new long[ROWS * COLS];
+        final long[] flaps = new long[ROWS];
+        final long[] passedAtY = new long[GameWorld.HEIGHT / GAP_Y_CELL];
+        final long[] diedAtY = new long[GameWorld.HEIGHT / GAP_Y_CELL];
+        final long[] passedAtGap = new long[GameWorld.HEIGHT / GAP_CELL];
+        final long[] diedAtGap = new long[GameWorld.HEIGHT / GAP_CELL];
+        long blocks, corrupt, events, coins, runs, deathsBeforePipes;
+        int files, tornFiles;
+        double seconds;
+
+        void add(ByteBuffer block) {
+            int n = block.getInt(4);
+            CRC32C crc = new CRC32C();
+            crc.update(block.duplicate().position(Telemetry.HEADER_BYTES));
+            if ((int) crc.getValue() != block.getInt(8)) {
+                corrupt++;
+                return;
+            }
+            blocks++;
+            events += n;
+            int ys = Telemetry.HEADER_BYTES + 4 * n;
+            int gapYs = ys + 8 * n;
+            int gaps = gapYs + 2 * n;
+            int dxs = gaps + 2 * n;
+            int kinds = dxs + 2 * n;
+            for (int i = 0; i < n; i++) {
+                switch (block.get(kinds + i)) {
+                    case Telemetry.JUMP:
+                        flaps[row(block.getFloat(ys + 4 * i))]++;
+                        break;
+                    case Telemetry.SCORE:
+                        passedAtY[bucket(block.getShort(gapYs + 2 * i), GAP_Y_CELL, passedAtY.length)]++;
+                        passedAtGap[bucket(block.getShort(gaps + 2 * i), GAP_CELL, passedAtGap.length)]++;
+                        break;
+                    case Telemetry.COIN:
+                        coins++;
+                        break;
+                    case Telemetry.DEATH:
+                        runs++;
+                        short gapY = block.getShort(gapYs + 2 * i);
+                        if (gapY < 0) {
+                            deathsBeforePipes++;
+                            break;
+                        }
+                        int col = bucket(block.getShort(dxs + 2 * i) - DX_MIN, DX_CELL, COLS);
+                        deaths[row(block.getFloat(ys + 4 * i)) * COLS + col]++;
+                        diedAtY[bucket(gapY, GAP_Y_CELL, diedAtY.length)]++;
+                        diedAtGap[bucket(block.getShort(gaps + 2 * i), GAP_CELL, diedAtGap.length)]++;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        void merge(Tally other) {
+            add(deaths, other.deaths);
+            add(flaps, other.flaps);
+            add(passedAtY, other.passedAtY);
+            add(diedAtY, other.diedAtY);
+            add(passedAtGap, other.passedAtGap);
+            add(diedAtGap, other.diedAtGap);
+            blocks += other.blocks;
+            corrupt += other.corrupt;
+            events += other.events;
+            coins += other.coins;
+            runs += other.runs;
+            deathsBeforePipes += other.deathsBeforePipes;
+        }
+
+        private static void add(long[] into, long[] from) {
+            for (int i = 0; i < into.length; i++) {
+                into[i] += from[i];
+            }
+        }
+
+        private static int row(float y) {
+            return bucket((int) y, Y_CELL, ROWS);
+        }
+
+        private static int bucket(int value, int cell, int count) {
+            return Math.max(0, Math.min(count - 1, Math.floorDiv(value, cell)));
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%d files (%d with a torn tail), %d blocks (%d corrupt), %d events in %.2f s"
+                            + " (%.1f M events/s)%n%d runs ended, %d before the first pipe, %d coins%n",
+                    files, tornFiles, blocks, corrupt, events, seconds, events / seconds / 1e6, runs,
+                    deathsBeforePipes, coins));
+            long most = Arrays.stream(deaths).max().orElse(0);
+            sb.append(String.format("%nDeaths by bird y (rows, %d px) and x relative to the pipe's left edge"
+                    + " (columns, %d px from %d), flaps per row:%n", Y_CELL, DX_CELL, DX_MIN));
+            for (int r = 0; r < ROWS; r++) {
+                sb.append(String.format("%4d |", r * Y_CELL));
+                for (int c = 0; c < COLS; c++) {
+                    long count = deaths[r * COLS + c];
+                    sb.append(SHADES.charAt(count == 0 ? 0
+                            : (int) Math.max(1, (SHADES.length() - 1) * count / most)));
+                }
+                sb.append(String.format("| %d%n", flaps[r]));
+            }
+            survival(sb, "gap top", GAP_Y_CELL, passedAtY, diedAtY);
+            survival(sb, "gap height", GAP_CELL, passedAtGap, diedAtGap);
+            return sb.toString();
+        }
+
+        private static void survival(StringBuilder sb, String name, int cell, long[] passed, long[] died) {
+            sb.append(String.format("%nSurvival by %s:%n", name));
+            for (int i = 0; i < passed.length; i++) {
+                long faced = passed[i] + died[i];
+                if (faced == 0) continue;
+                sb.append(String.format("%4d-%-4d %10d passed %10d died %6.2f%%%n", i * cell, (i + 1) * cell - 1,
+                        passed[i], died[i], 100.0 * passed[i] / faced));
+            }
+        }
+    }
+
+    static Tally aggregate(List<Path> files) throws IOException {
+        long start = System.nanoTime();
+        List<ByteBuffer> blocks = new ArrayList<>();
+        int torn = 0;
+        for (Path file : files) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) throw new IOException(file + " is too large to map");
+                // Stays mapped after the channel closes.
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                int at = 0;
+                while (size - at >= Telemetry.HEADER_BYTES && map.getInt(at) == Telemetry.MAGIC) {
+                    int n = map.getInt(at + 4);
+                    long length = Telemetry.HEADER_BYTES + (long) n * Telemetry.EVENT_BYTES;
+                    if (n < 0 || n > Telemetry.BLOCK_EVENTS || at + length > size) break;
+                    blocks.add(map.slice(at, (int) length));
+                    at += (int) length;
+                }
+                if (at != size) torn++;
+            }
+        }
+        Tally tally = blocks.parallelStream().collect(Tally::new, Tally::add, Tally::merge);
+        tally.files = files.size();
+        tally.tornFiles = torn;
+        tally.seconds = (System.nanoTime() - start) / 1e9;
+        return tally;
+    }
+}
+
+// Wire format of a ghost race, shared by GhostServer and GhostClient. One datagram per
+// message, big-endian; varints are LEB128, signed ones zigzagged first.
+//   HELLO     client -> server  type
+//   WELCOME   server -> client  type, u16 player id, i64 course seed, u8 DifficultyCurve id
+//   STATE     client -> server  type, u16 id, i32 newest snapshot decoded (-1 none),
+//                               varint course distance in pixels, zigzag y in quarter pixels,
+//                               varint score, u8 alive
+//   SNAPSHOT  server -> client  type, i32 seq, i32 base seq (-1 = empty), u8 entry count, then
+//                               per entry: varint id, u8 field mask, masked fields as zigzag
+//                               deltas from the base (alive as a plain byte)
+//   BYE       client -> server  type, u16 id
+final class GhostProtocol {
+    static final byte HELLO = 1;
+    static final byte WELCOME = 2;
+    static final byte STATE = 3;
+    static final byte SNAPSHOT = 4;
+    static final byte BYE = 5;
+
+    static final int F_DISTANCE = 1;
+    static final int F_Y = 2;
+    static final int F_SCORE = 4;
+    static final int F_ALIVE = 8;
+    static final int F_REMOVED = 16;
+    static final int F_ALL = F_DISTANCE | F_Y | F_SCORE | F_ALIVE;
+
+    static final int DEFAULT_PORT = 40420;
+    // Power of two; player ids wrap with it.
+    static final int MAX_PLAYERS = 1024;
+    static final int SNAPSHOT_HZ = 20;
+    // Under any real MTU, and the most a client is ever sent: 24 KB/s at 20 Hz.
+    static final int MAX_PACKET = 1200;
+    static final int MAX_ENTRIES = 64;
+    // Largest entry: id, mask, three 5-byte varints and alive.
+    static final int MAX_ENTRY_BYTES = 2 + 1 + 3 * 5 + 1;
+    // Snapshots both ends remember as delta bases. A base older than this is never used.
+    static final int HISTORY = 16;
+
+    private GhostProtocol() {}
+
+    static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static int getVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+
+    static void putZigzag(ByteBuffer out, int value) {
+        putVarint(out, (value << 1) ^ (value >> 31));
+    }
+
+    static int getZigzag(ByteBuffer in) {
+        int v = getVarint(in);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    static int quantizeY(float y) {
+        return Math.round(y * 4);
+    }
+}
+
+// Every player's last known state, indexed by player id. Fields of absent players are
+// zero, so a player's first entry is a delta from zero like any other.
+final class GhostView {
+    static final GhostView EMPTY = new GhostView();
+
+    final boolean[] present = new boolean[GhostProtocol.MAX_PLAYERS];
+    final int[] distance = new int[GhostProtocol.MAX_PLAYERS];
+    final int[] y4 = new int[GhostProtocol.MAX_PLAYERS];
+    final int[] score = new int[GhostProtocol.MAX_PLAYERS];
+    final boolean[] alive = new boolean[GhostProtocol.MAX_PLAYERS];
+
+    void copyFrom(GhostView other) {
+        System.arraycopy(other.present, 0, present, 0, present.length);
+        System.arraycopy(other.distance, 0, distance, 0, distance.length);
+        System.arraycopy(other.y4, 0, y4, 0, y4.length);
+        System.arraycopy(other.score, 0, score, 0, score.length);
+        System.arraycopy(other.alive, 0, alive, 0, alive.length);
+    }
+
+    void clear() {
+        copyFrom(EMPTY);
+    }
+
+    void set(int id, int distance, int y4, int score, boolean alive) {
+        present[id] = true;
+        this.distance[id] = distance;
+        this.y4[id] = y4;
+        this.score[id] = score;
+        this.alive[id] = alive;
+    }
+
+    void remove(int id) {
+        present[id] = false;
+        distance[id] = 0;
+        y4[id] = 0;
+        score[id] = 0;
+        alive[id] = false;
+    }
+
+    // The fields that differ from the given state; 0 if nothing needs sending.
+    int changes(int id, int distance, int y4, int score, boolean alive) {
+        if (!present[id]) return GhostProtocol.F_ALL;
+        int mask = 0;
+        if (this.distance[id] != distance) mask |= GhostProtocol.F_DISTANCE;
+        if (this.y4[id] != y4) mask |= GhostProtocol.F_Y;
+        if (this.score[id] != score) mask |= GhostProtocol.F_SCORE;
+        if (this.alive[id] != alive) mask |= GhostProtocol.F_ALIVE;
+        return mask;
+    }
+
+    void write(ByteBuffer out, int id, int mask, int distance, int y4, int score, boolean alive) {
+        GhostProtocol.putVarint(out, id);
+        out.put((byte) mask);
+        if ((mask & GhostProtocol.F_DISTANCE) != 0) GhostProtocol.putZigzag(out, distance - this.distance[id]);
+        if ((mask & GhostProtocol.F_Y) != 0) GhostProtocol.putZigzag(out, y4 - this.y4[id]);
+        if ((mask & GhostProtocol.F_SCORE) != 0) GhostProtocol.putZigzag(out, score - this.score[id]);
+        if ((mask & GhostProtocol.F_ALIVE) != 0) out.put((byte) (alive ? 1 : 0));
+    }
+
+    // Applies one entry written against this view; returns its id.
+    int read(ByteBuffer in) {
+        int id = GhostProtocol.getVarint(in);
+        if (id < 0 || id >= GhostProtocol.MAX_PLAYERS) throw new IllegalArgumentException("bad player id " + id);
+        int mask = in.get();
+        if ((mask & GhostProtocol.F_REMOVED) != 0) {
+            remove(id);
+            return id;
+        }
+        present[id] = true;
+        if ((mask & GhostProtocol.F_DISTANCE) != 0) distance[id] += GhostProtocol.getZigzag(in);
+        if ((mask & GhostProtocol.F_Y) != 0) y4[id] += GhostProtocol.getZigzag(in);
+        if ((mask & GhostProtocol.F_SCORE) != 0) score[id] += GhostProtocol.getZigzag(in);
+        if ((mask & GhostProtocol.F_ALIVE) != 0) alive[id] = in.get() != 0;
+        return id;
+    }
+}
+
+// Stands in for a bad network when testing on loopback. Outgoing datagrams are dropped
+// with probability loss; the rest are held for latency plus up to jitter, so they can
+// also arrive out of order. The defaults come from flappy.netLatencyMs, flappy.netJitterMs
+// and flappy.netLossPct; with all of them zero, send() goes straight to the channel.
+// Not thread-safe.
+class LossyLink {
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final double loss;
+    private final GameRandom random = new GameRandom(GameRandom.mix(System.nanoTime()));
+    private final PriorityQueue<Held> held = new PriorityQueue<>(Comparator.comparingLong(h -> h.due));
+
+    private static final class Held {
+        final long due;
+        final ByteBuffer data;
+        final SocketAddress to;
+
+        Held(long due, ByteBuffer data, SocketAddress to) {
+            this.due = due;
+            this.data = data;
+            this.to = to;
+        }
+    }
+
+    public LossyLink() {
+        this(Integer.getInteger("flappy.netLatencyMs", 0), Integer.getInteger("flappy.netJitterMs", 0),
+                Double.parseDouble(System.getProperty("flappy.netLossPct", "0")) / 100);
+    }
+
+    public LossyLink(int latencyMs, int jitterMs, double loss) {
+        this.latencyNanos = latencyMs * 1_000_000L;
+        this.jitterNanos = jitterMs * 1_000_000L;
+        this.loss = loss;
+    }
+
+    // Consumes data. A full socket buffer drops the datagram, as the network would.
+    public void send(DatagramChannel channel, ByteBuffer data, SocketAddress to, long now) throws IOException {
+        if (loss > 0 && random.nextDouble() < loss) {
+            data.position(data.limit());
+            return;
+        }
+        if (latencyNanos == 0 && jitterNanos == 0) {
+            channel.send(data, to);
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data).flip();
+        long jitter = jitterNanos == 0 ? 0 : (long) (random.nextDouble() * jitterNanos);
+        held.add(new Held(now + latencyNanos + jitter, copy, to));
+    }
+
+    public void flush(DatagramChannel channel, long now) throws IOException {
+        while (!held.isEmpty() && held.peek().due <= now) {
+            Held h = held.poll();
+            channel.send(h.data, h.to);
+        }
+    }
+
+    // When the next held datagram is due, or otherwise if none is held.
+    public long nextDue(long otherwise) {
+        return held.isEmpty() ? otherwise : Math.min(otherwise, held.peek().due);
+    }
+}
+
+// Ghost-race server: one thread, one non-blocking UDP socket, one Selector. Everyone who
+// joins gets the same course seed and difficulty, and since those fix the whole course,
+// that makes the course authoritative without ever sending a pipe. Clients report how far
+// along the course they are, their height and score; SNAPSHOT_HZ times a second each
+// client gets a snapshot of the other players.
+//
+// Snapshots are deltas against the newest snapshot the client acknowledged, and only carry
+// players that changed since. Each one is capped at MAX_ENTRIES players and MAX_PACKET
+// bytes; when more players changed than fit, a per-client cursor rotates through them so
+// all get their turn. The server keeps what it sent in the last HISTORY snapshots and
+// moves a client's base forward only on an ack for a snapshot built on the current base,
+// so both sides always agree on it. A client whose acks stop coming for HISTORY snapshots
+// gets a full snapshot from an empty base.
+//
+// Clients that stay quiet for TIMEOUT_NANOS are dropped.
+class GhostServer implements Runnable, Closeable {
+    static final long TIMEOUT_NANOS = 5_000_000_000L;
+    private static final long SNAPSHOT_NANOS = 1_000_000_000L / GhostProtocol.SNAPSHOT_HZ;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final long seed;
+    private final DifficultyCurve curve;
+    private final LossyLink link;
+    private final boolean report;
+    private final Map<SocketAddress, Session> sessions = new HashMap<>();
+    private final Session[] players = new Session[GhostProtocol.MAX_PLAYERS];
+    // One past the highest id in use, so snapshot scans stop early.
+    private int highWater;
+    private final ByteBuffer in = ByteBuffer.allocateDirect(2048);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(GhostProtocol.MAX_PACKET);
+    private volatile boolean running = true;
+    private long packetsIn, packetsOut, bytesOut, malformed;
+
+    private static final class Session {
+        final int id;
+        final SocketAddress address;
+        long lastHeard;
+        int distance, y4, score;
+        boolean alive;
+        // What the client holds as of its acked snapshot.
+        final GhostView acked = new GhostView();
+        int ackedSeq = -1;
+        int nextSeq;
+        int cursor;
+        // Snapshots in flight, by seq % HISTORY: base and the entries they carried as
+        // id, mask, distance, y4, score, alive.
+        final int[] sentSeq = new int[GhostProtocol.HISTORY];
+        final int[] sentBase = new int[GhostProtocol.HISTORY];
+        final int[] sentCount = new int[GhostProtocol.HISTORY];
+        final int[][] sent = new int[GhostProtocol.HISTORY][GhostProtocol.MAX_ENTRIES * 6];
+
+        Session(int id, SocketAddress address) {
+            this.id = id;
+            this.address = address;
+            Arrays.fill(sentSeq, -1);
+        }
+    }
+
+    public GhostServer(InetSocketAddress bind, long seed, DifficultyCurve curve, LossyLink link,
+                       boolean report) throws IOException {
+        this.seed = seed;
+        this.curve = curve;
+        this.link = link;
+        this.report = report;
+        channel = DatagramChannel.open();
+        try {
+            channel.bind(bind);
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int port() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    @Override
+    public void run() {
+        long nextSnapshot = System.nanoTime() + SNAPSHOT_NANOS;
+        long reportAt = System.nanoTime() + 1_000_000_000L;
+        long busy = 0;
+        try {
+            while (running) {
+                long wait = link.nextDue(nextSnapshot) - System.nanoTime();
+                if (wait > 0) {
+                    selector.select(Math.max(1, (wait + 999_999) / 1_000_000));
+                } else {
+                    selector.selectNow();
+                }
+                selector.selectedKeys().clear();
+                long now = System.nanoTime();
+                receive(now);
+                if (now >= nextSnapshot) {
+                    expire(now);
+                    for (Session s : sessions.values()) {
+                        sendSnapshot(s, now);
+                    }
+                    nextSnapshot = Math.max(nextSnapshot + SNAPSHOT_NANOS, now);
+                }
+                link.flush(channel, now);
+                long done = System.nanoTime();
+                busy += done - now;
+                if (report && done >= reportAt) {
+                    int n = sessions.size();
+                    System.out.printf("%d players, %d pkt/s in, %d pkt/s out, %.1f KB/s out (%d B/s per player), "
+                                    + "loop busy %.1f%%%s%n", n, packetsIn, packetsOut, bytesOut / 1024.0,
+                            n == 0 ? 0 : bytesOut / n, busy / 1e7, malformed == 0 ? "" : ", " + malformed + " malformed");
+                    packetsIn = packetsOut = bytesOut = malformed = busy = 0;
+                    reportAt = done + 1_000_000_000L;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Ghost server stopped: " + e.getMessage());
+        } finally {
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Cannot close ghost server: " + e.getMessage());
+            }
+        }
+    }
+
+    // Stops the loop; the loop thread closes the socket on its way out.
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void receive(long now) throws IOException {
+        for (;;) {
+            in.clear();
+            SocketAddress from = channel.receive(in);
+            if (from == null) return;
+            in.flip();
+            packetsIn++;
+            try {
+                handle(from, now);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                malformed++;
+            }
+        }
+    }
+
+    private void handle(SocketAddress from, long now) throws IOException {
+        byte type = in.get();
+        Session s = sessions.get(from);
+        if (type == GhostProtocol.HELLO) {
+            if (s == null) {
+                int id = freeId();
+                if (id < 0) return;
+                s = new Session(id, from);
+                sessions.put(from, s);
+                players[id] = s;
+                highWater = Math.max(highWater, id + 1);
+            }
+            s.lastHeard = now;
+            out.clear();
+            out.put(GhostProtocol.WELCOME).putShort((short) s.id).putLong(seed).put((byte) curve.id).flip();
+            send(s, now);
+            return;
+        }
+        if (s == null || (in.getShort() & 0xFFFF) != s.id) return;
+        s.lastHeard = now;
+        if (type == GhostProtocol.STATE) {
+            int ack = in.getInt();
+            int distance = GhostProtocol.getVarint(in);
+            int y4 = GhostProtocol.getZigzag(in);
+            int score = GhostProtocol.getVarint(in);
+            boolean alive = in.get() != 0;
+            s.distance = distance;
+            s.y4 = y4;
+            s.score = score;
+            s.alive = alive;
+            acknowledge(s, ack);
+        } else if (type == GhostProtocol.BYE) {
+            drop(s);
+        }
+    }
+
+    private int freeId() {
+        for (int id = 0; id < players.length; id++) {
+            if (players[id] == null) return id;
+        }
+        return -1;
+    }
+
+    private void acknowledge(Session s, int ack) {
+        if (ack <= s.ackedSeq) return;
+        int slot = ack % GhostProtocol.HISTORY;
+        if (s.sentSeq[slot] != ack) return;
+        int base = s.sentBase[slot];
+        if (base >= 0 && base != s.ackedSeq) return;
+        if (base < 0) {
+            s.acked.clear();
+        }
+        int[] e = s.sent[slot];
+        for (int k = 0; k < s.sentCount[slot] * 6; k += 6) {
+            if ((e[k + 1] & GhostProtocol.F_REMOVED) != 0) {
+                s.acked.remove(e[k]);
+            } else {
+                s.acked.set(e[k], e[k + 2], e[k + 3], e[k + 4], e[k + 5] != 0);
+            }
+        }
+        s.ackedSeq = ack;
+    }
+
+    private void expire(long now) {
+        List<Session> gone = null;
+        for (Session s : sessions.values()) {
+            if (now - s.lastHeard > TIMEOUT_NANOS) {
+                if (gone == null) gone = new ArrayList<>();
+                gone.add(s);
+            }
+        }
+        if (gone != null) {
+            for (Session s : gone) drop(s);
+        }
+    }
+
+    private void drop(Session s) {
+        sessions.remove(s.address);
+        players[s.id] = null;
+        while (highWater > 0 && players[highWater - 1] == null) highWater--;
+    }
+
+    private void sendSnapshot(Session s, long now) throws IOException {
+        int seq = s.nextSeq++;
+        boolean full = s.ackedSeq < 0 || seq - s.ackedSeq >= GhostProtocol.HISTORY;
+        GhostView base = full ? GhostView.EMPTY : s.acked;
+        int slot = seq % GhostProtocol.HISTORY;
+        int[] e = s.sent[slot];
+        out.clear();
+        out.put(GhostProtocol.SNAPSHOT).putInt(seq).putInt(full ? -1 : s.ackedSeq);
+        int countAt = out.position();
+        out.put((byte) 0);
+        int count = 0;
+        // Ids the client still holds can be above highWater, so scan everything it might.
+        int limit = full ? highWater : GhostProtocol.MAX_PLAYERS;
+        int start = s.cursor < limit ? s.cursor : 0;
+        int next = start;
+        for (int k = 0, id = start; k < limit; k++, id = id + 1 == limit ? 0 : id + 1) {
+            if (id == s.id) continue;
+            Session p = players[id];
+            int mask;
+            if (p != null) {
+                mask = base.changes(id, p.distance, p.y4, p.score, p.alive);
+            } else {
+                mask = base.present[id] ? GhostProtocol.F_REMOVED : 0;
+            }
+            if (mask == 0) continue;
+            if (count == GhostProtocol.MAX_ENTRIES
+                    || out.position() + GhostProtocol.MAX_ENTRY_BYTES > GhostProtocol.MAX_PACKET) {
+                next = id;
+                break;
+            }
+            int j = count++ * 6;
+            e[j] = id;
+            e[j + 1] = mask;
+            if (p != null) {
+                e[j + 2] = p.distance;
+                e[j + 3] = p.y4;
+                e[j + 4] = p.score;
+                e[j + 5] = p.alive ? 1 : 0;
+                base.write(out, id, mask, p.distance, p.y4, p.score, p.alive);
+            } else {
+                GhostProtocol.putVarint(out, id);
+                out.put((byte) mask);
+            }
+        }
+        s.cursor = next;
+        out.put(countAt, (byte) count);
+        s.sentSeq[slot] = seq;
+        s.sentBase[slot] = full ? -1 : s.ackedSeq;
+        s.sentCount[slot] = count;
+        out.flip();
+        send(s, now);
+    }
+
+    private void send(Session s, long now) throws IOException {
+        packetsOut++;
+        bytesOut += out.remaining();
+        link.send(channel, out, s.address, now);
+    }
+}
+
+// The game's end of a ghost race. The game loop owns it: poll() and sendState() never
+// block, so a slow or missing server costs nothing but the ghosts. Not thread-safe.
+//
+// Snapshots are decoded against the stored view they name as base; the newest one is what
+// the ghosts show. Each ghost keeps its last few states with their arrival times and is
+// drawn INTERP_DELAY_NANOS in the past, interpolated between the two states around that
+// moment, so a late or lost snapshot doesn't make it jump.
+class GhostClient implements Closeable {
+    static final long INTERP_DELAY_NANOS = 2 * 1_000_000_000L / GhostProtocol.SNAPSHOT_HZ;
+    private static final long HELLO_NANOS = 500_000_000L;
+    private static final long STATE_NANOS = 1_000_000_000L / GhostProtocol.SNAPSHOT_HZ;
+    private static final int SAMPLES = 8;
+
+    private final DatagramChannel channel;
+    private final InetSocketAddress server;
+    private final LossyLink link;
+    private final ByteBuffer in = ByteBuffer.allocateDirect(2048);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(64);
+    private final GhostView[] views = new GhostView[GhostProtocol.HISTORY];
+    private final int[] viewSeq = new int[GhostProtocol.HISTORY];
+    private int latestSeq = -1;
+    private int id = -1;
+    private long seed;
+    private DifficultyCurve curve = DifficultyCurve.DEFAULT;
+    private long nextHello;
+    private long nextState;
+    // Ring of SAMPLES states per ghost.
+    private final long[] sampleAt = new long[GhostProtocol.MAX_PLAYERS * SAMPLES];
+    private final int[] sampleDistance = new int[GhostProtocol.MAX_PLAYERS * SAMPLES];
+    private final int[] sampleY4 = new int[GhostProtocol.MAX_PLAYERS * SAMPLES];
+    private final int[] sampleCount = new int[GhostProtocol.MAX_PLAYERS];
+    private long bytesIn;
+
+    public GhostClient(InetSocketAddress server, LossyLink link) throws IOException {
+        this.server = server;
+        this.link = link;
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(null);
+        for (int i = 0; i < views.length; i++) views[i] = new GhostView();
+        Arrays.fill(viewSeq, -1);
+    }
+
+    // host:port, or just host for the default port.
+    public static InetSocketAddress parse(String hostPort) {
+        int colon = hostPort.lastIndexOf(':');
+        if (colon < 0) return new InetSocketAddress(hostPort, GhostProtocol.DEFAULT_PORT);
+        return new InetSocketAddress(hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon + 1)));
+    }
+
+    public boolean isJoined() { return id >= 0; }
+    public int getId() { return id; }
+    // The race course; only meaningful once joined.
+    public long getSeed() { return seed; }
+    public DifficultyCurve getCurve() { return curve; }
+    public long getBytesIn() { return bytesIn; }
+
+    public void poll(long now) throws IOException {
+        link.flush(channel, now);
+        for (;;) {
+            in.clear();
+            SocketAddress from = channel.receive(in);
+            if (from == null) break;
+            if (!server.equals(from)) continue;
+            in.flip();
+            bytesIn += in.remaining();
+            try {
+                handle(now);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                // A garbled datagram is just a lost one.
+            }
+        }
+        if (id < 0 && now >= nextHello) {
+            nextHello = now + HELLO_NANOS;
+            out.clear();
+            out.put(GhostProtocol.HELLO).flip();
+            link.send(channel, out, server, now);
+        }
+    }
+
+    // Rate-limited to SNAPSHOT_HZ; calls in between return at once. Also carries the ack.
+    public void sendState(long now, double distance, float y, int score, boolean alive) throws IOException {
+        if (id < 0 || now < nextState) return;
+        nextState = Math.max(nextState + STATE_NANOS, now);
+        out.clear();
+        out.put(GhostProtocol.STATE).putShort((short) id).putInt(latestSeq);
+        GhostProtocol.putVarint(out, (int) distance);
+        GhostProtocol.putZigzag(out, GhostProtocol.quantizeY(y));
+        GhostProtocol.putVarint(out, score);
+        out.put((byte) (alive ? 1 : 0)).flip();
+        link.send(channel, out, server, now);
+    }
+
+    private void handle(long now) {
+        byte type = in.get();
+        if (type == GhostProtocol.WELCOME) {
+            int joined = in.getShort() & 0xFFFF;
+            seed = in.getLong();
+            curve = DifficultyCurve.of(in.get());
+            id = joined;
+        } else if (type == GhostProtocol.SNAPSHOT && id >= 0) {
+            int seq = in.getInt();
+            int base = in.getInt();
+            int slot = seq % GhostProtocol.HISTORY;
+            if (seq < 0 || viewSeq[slot] >= seq || seq - base >= GhostProtocol.HISTORY && base >= 0) return;
+            if (base >= 0 && viewSeq[base % GhostProtocol.HISTORY] != base) return;
+            GhostView view = views[slot];
+            view.copyFrom(base < 0 ? GhostView.EMPTY : views[base % GhostProtocol.HISTORY]);
+            viewSeq[slot] = -1;
+            int count = in.get() & 0xFF;
+            for (int k = 0; k < count; k++) {
+                view.read(in);
+            }
+            viewSeq[slot] = seq;
+            if (seq > latestSeq) {
+                latestSeq = seq;
+                addSamples(view, now);
+            }
+        }
+    }
+
+    private void addSamples(GhostView view, long now) {
+        for (int g = 0; g < GhostProtocol.MAX_PLAYERS; g++) {
+            if (!view.present[g]) {
+                sampleCount[g] = 0;
+                continue;
+            }
+            int n = sampleCount[g];
+            // A restart would otherwise be interpolated as a flight backwards.
+            if (n > 0 && view.distance[g] < sampleDistance[g * SAMPLES + (n - 1) % SAMPLES]) n = 0;
+            int k = g * SAMPLES + n % SAMPLES;
+            sampleAt[k] = now;
+            sampleDistance[k] = view.distance[g];
+            sampleY4[k] = view.y4[g];
+            sampleCount[g] = n + 1;
+        }
+    }
+
+    // Fills distances and ys with where each live ghost was INTERP_DELAY_NANOS before now;
+    // returns how many were written.
+    public int sample(long now, float[] distances, float[] ys) {
+        if (latestSeq < 0) return 0;
+        GhostView view = views[latestSeq % GhostProtocol.HISTORY];
+        long t = now - INTERP_DELAY_NANOS;
+        int written = 0;
+        for (int g = 0; g < GhostProtocol.MAX_PLAYERS && written < distances.length; g++) {
+            int n = sampleCount[g];
+            if (n == 0 || !view.alive[g]) continue;
+            int oldest = Math.max(0, n - SAMPLES);
+            int j = n - 1;
+            while (j > oldest && sampleAt[g * SAMPLES + j % SAMPLES] > t) j--;
+            int a = g * SAMPLES + j % SAMPLES;
+            if (j == n - 1 || sampleAt[a] > t) {
+                distances[written] = sampleDistance[a];
+                ys[written] = sampleY4[a] / 4f;
+            } else {
+                int b = g * SAMPLES + (j + 1) % SAMPLES;
+                float f = (float) (t - sampleAt[a]) / (sampleAt[b] - sampleAt[a]);
+                distances[written] = sampleDistance[a] + (sampleDistance[b] - sampleDistance[a]) * f;
+                ys[written] = (sampleY4[a] + (sampleY4[b] - sampleY4[a]) * f) / 4f;
+            }
+            written++;
+        }
+        return written;
+    }
+
+    // Says goodbye so the slot frees at once rather than after the timeout.
+    @Override
+    public void close() throws IOException {
+        try {
+            if (id >= 0) {
+                out.clear();
+                out.put(GhostProtocol.BYE).putShort((short) id).flip();
+                channel.send(out, server);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
+
+// Everything that puts pixels on screen. Reads the world, never changes it.
+class WorldRenderer {
+    private final ParticleRaster particleRaster = new ParticleRaster(GameWorld.WIDTH, GameWorld.HEIGHT);
+    // Null until the background build finishes; the vector painters cover the gap.
+    private volatile SpriteAtlas atlas;
+
+    private static final int MODE_STARTED = 1;
+    private static final int MODE_GAME_OVER = 2;
+    private static final int MODE_SPRITES = 4;
+    private static final int MODE_WELCOME = 8;
+    private static final int MODE_PAUSED = 16;
+    private static final int MODE_QUALITY_SHIFT = 5;
+    private static final Color FLAT_SKY = new Color(118, 178, 244);
+    private static final Color FLAT_GROUND = new Color(0, 128, 0);
+    private static final Color FLAT_DIRT = new Color(139, 69, 19);
+    private static final Color PAUSE_DIM = new Color(0, 0, 0, 110);
+    private static final Color FLAT_PIPE = new Color(0, 170, 0);
+    private static final Color FLAT_PIPE_CAP = new Color(0, 120, 0);
+    private final BufferedImage skyLayer = bakeSky();
+    private final BufferedImage groundLayer = bakeGround();
+    private final BufferedImage frame = newOpaqueImage(GameWorld.WIDTH, GameWorld.HEIGHT);
+    private final DirtyRegion dirty = new DirtyRegion(GameWorld.WIDTH, GameWorld.HEIGHT);
+    private int lastMode = -1;
+    private long lastTick = -1;
+    private float lastAlpha = -1;
+    private final HudLayer hud = new HudLayer();
+    private final TextCache text = new TextCache();
+    // Never null: a frame is long enough that the clock reads are noise, headless or not.
+    private Profiler profiler = new Profiler();
+    private RenderQuality quality = RenderQuality.LEVELS[0];
+    // Other racers, drawn translucent where they are on the same course. Null when alone.
+    static final int MAX_GHOSTS = 64;
+    private static final AlphaComposite GHOST_COMPOSITE = AlphaComposite.SrcOver.derive(0.4f);
+    private final float[] ghostDistances = new float[MAX_GHOSTS];
+    private final float[] ghostYs = new float[MAX_GHOSTS];
+    private int ghostCount;
+    private int paintedGhosts;
+
+    public WorldRenderer() {
+        SpriteAtlas.buildAsync().thenAccept(built -> atlas = built);
+    }
+
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    // Where the other racers are, as GhostClient.sample gave them; drawn from the next frame.
+    public void setGhosts(float[] distances, float[] ys, int count) {
+        ghostCount = Math.min(count, MAX_GHOSTS);
+        System.arraycopy(distances, 0, ghostDistances, 0, ghostCount);
+        System.arraycopy(ys, 0, ghostYs, 0, ghostCount);
+    }
+
+    // Takes effect on the next frame, which is then repainted in full.
+    public void setQuality(RenderQuality quality) {
+        this.quality = quality;
+    }
+
+    public boolean hasSprites() {
+        return atlas != null;
+    }
+
+    // The scene as the last render composed it, without the overlays drawn over it after.
+    // Only good until the next render.
+    public BufferedImage getFrame() {
+        return frame;
+    }
+
+    // alpha is how far wall time has moved from the previous tick towards the current one.
+    // The scene is composed into a persistent frame image. Only the regions where moving
+    // things were or now are get repainted, with the sky and ground restored from layers
+    // baked once; the whole frame is then blitted to g2d.
+    public void render(Graphics2D g2d, GameWorld world, boolean gameStarted, float alpha) {
+        render(g2d, world, gameStarted, false, alpha);
+    }
+
+    // paused dims a started run and says how to carry on, over the frozen frame.
+    public void render(Graphics2D g2d, GameWorld world, boolean gameStarted, boolean paused, float alpha) {
+        float back = 1 - alpha;
+        SpriteAtlas sprites = atlas;
+        RenderQuality quality = this.quality;
+        int mode = (gameStarted ? MODE_STARTED : 0) | (world.isGameOver() ? MODE_GAME_OVER : 0)
+                | (paused ? MODE_PAUSED : 0) | (sprites != null ? MODE_SPRITES : 0)
+                | quality.index << MODE_QUALITY_SHIFT;
+        // Ghosts move on their own clock, so they keep the frame live even when we don't.
+        if (mode != lastMode || world.getTick() != lastTick || alpha != lastAlpha
+                || ghostCount > 0 || paintedGhosts > 0) {
+            dirty.nextFrame();
+            if (mode != lastMode) {
+                dirty.addAll();
+            }
+            markMovingLayers(world, back, quality);
+            profiler.lapPaint(Profiler.PAINT_PREPARE);
+            lastMode = mode;
+            lastTick = world.getTick();
+            lastAlpha = alpha;
+            paintedGhosts = ghostCount;
+
+            Graphics2D fg = frame.createGraphics();
+            quality.apply(fg);
+            fg.setClip(dirty.toClip());
+            paintScene(fg, world, gameStarted, paused, back, sprites, quality);
+            fg.dispose();
+        }
+        g2d.drawImage(frame, 0, 0, null);
+        profiler.lapPaint(Profiler.PAINT_BLIT);
+    }
+
+    // Adds the current screen bounds of everything that moves between ticks.
+    private void markMovingLayers(GameWorld world, float back, RenderQuality quality) {
+        EntityStore clouds = world.getClouds();
+        int cloudCount = Math.min(clouds.count(), quality.cloudBudget);
+        for (int i = 0; i < cloudCount; i++) {
+            int w = (int) (80 * clouds.size[i]);
+            int h = (int) (40 * clouds.size[i]);
+            dirty.add(cloudX(clouds, i, back), (int) clouds.y[i] - 20, w * 3 / 2 + 50, h + 40);
+        }
+        EntityStore pipes = world.getPipes();
+        for (int i = 0; i < pipes.count(); i++) {
+            int x = pipeX(pipes, i, back);
+            if (onScreen(x - 5, GameWorld.PIPE_WIDTH + 10)) {
+                dirty.add(x - 5, 0, GameWorld.PIPE_WIDTH + 10, GameWorld.HEIGHT);
+            }
+        }
+        EntityStore coins = world.getCoins();
+        float bounce = GameWorld.coinBounce(world.getTick() - back);
+        for (int i = 0; i < coins.count(); i++) {
+            dirty.add(coinX(coins, i, back) - 14, (int) (coins.y[i] + bounce) - 14, 28, 28);
+        }
+        if (particleRaster.rasterize(world.getParticles(), back, quality.particleBudget)) {
+            dirty.add(particleRaster.minX(), particleRaster.minY(),
+                    particleRaster.maxX() - particleRaster.minX() + 1,
+                    particleRaster.maxY() - particleRaster.minY() + 1);
+        }
+        for (int i = 0; i < ghostCount; i++) {
+            dirty.add(ghostX(world, i, back) - 19, (int) ghostYs[i] - 19, 72, 74);
+        }
+        Bird bird = world.getBird();
+        dirty.add((int) bird.getX() - 19, (int) Math.min(bird.getY(), bird.getPrevY()) - 19,
+                72, (int) Math.abs(bird.getY() - bird.getPrevY()) + 74);
+        if (hud.isStale(world.getScore(), world.getHighScore(), world.getCoinsCollected())) {
+            dirty.add(HudLayer.X, HudLayer.Y, HudLayer.W, HudLayer.H);
+        }
+    }
+
+    private void paintScene(Graphics2D g2d, GameWorld world, boolean gameStarted, boolean paused,
+                            float back, SpriteAtlas sprites, RenderQuality quality) {
+        final int WIDTH = GameWorld.WIDTH;
+        final int HEIGHT = GameWorld.HEIGHT;
+        final int GROUND_HEIGHT = GameWorld.GROUND_HEIGHT;
+        if (quality.flatFills) {
+            g2d.setColor(FLAT_SKY);
+            g2d.fillRect(0, 0, WIDTH, HEIGHT);
+        } else {
+            g2d.drawImage(skyLayer, 0, 0, null);
+        }
+        profiler.lapPaint(Profiler.PAINT_SKY);
+        drawClouds(g2d, world.getClouds(), back, quality.cloudBudget);
+        profiler.lapPaint(Profiler.PAINT_CLOUDS);
+        EntityStore pipes = world.getPipes();
+        for (int i = 0; i < pipes.count(); i++) {
+            int x = pipeX(pipes, i, back);
+            if (!onScreen(x - 5, GameWorld.PIPE_WIDTH + 10)) continue;
+            int gap = (int) pipes.size[i];
+            if (quality.flatFills) {
+                paintFlatPipe(g2d, x, (int) pipes.y[i], gap);
+            } else if (sprites != null) {
+                sprites.drawPipe(g2d, x, (int) pipes.y[i], gap);
+            } else {
+                paintPipe(g2d, x, (int) pipes.y[i], gap);
+            }
+        }
+        profiler.lapPaint(Profiler.PAINT_PIPES);
+        EntityStore coins = world.getCoins();
+        float bounce = GameWorld.coinBounce(world.getTick() - back);
+        for (int i = 0; i < coins.count(); i++) {
+            int x = coinX(coins, i, back);
+            if (!onScreen(x - 14, 28)) continue;
+            float rotation = GameWorld.coinRotation(coins.life[i] - back);
+            if (sprites != null) {
+                sprites.drawCoin(g2d, x, coins.y[i] + bounce, rotation);
+            } else {
+                paintCoin(g2d, x, coins.y[i] + bounce, rotation);
+            }
+        }
+        profiler.lapPaint(Profiler.PAINT_COINS);
+        if (quality.flatFills) {
+            g2d.setColor(FLAT_GROUND);
+            g2d.fillRect(0, HEIGHT - GROUND_HEIGHT, WIDTH, GROUND_HEIGHT - 20);
+            g2d.setColor(FLAT_DIRT);
+            g2d.fillRect(0, HEIGHT - 20, WIDTH, 20);
+        } else {
+            g2d.drawImage(groundLayer, 0, HEIGHT - GROUND_HEIGHT, null);
+        }
+        profiler.lapPaint(Profiler.PAINT_GROUND);
+        particleRaster.blit(g2d);
+        profiler.lapPaint(Profiler.PAINT_PARTICLES);
+        drawGhosts(g2d, world, back, sprites);
+        drawBird(g2d, world.getBird(), 1 - back);
+        profiler.lapPaint(Profiler.PAINT_BIRD);
+        hud.draw(g2d, world.getScore(), world.getHighScore(), world.getCoinsCollected());
+        profiler.lapPaint(Profiler.PAINT_HUD);
+
+        if (!gameStarted) {
+            drawCenteredMessage(g2d, "FLAPPY BIRD", 48, Color.YELLOW, -100);
+            drawCenteredMessage(g2d, "Press SPACE to Start", 24, Color.WHITE, 0);
+            drawCenteredMessage(g2d, "Press SPACE to Jump", 24, Color.WHITE, 40);
+        } else if (paused && !world.isGameOver()) {
+            g2d.setColor(PAUSE_DIM);
+            g2d.fillRect(0, 0, WIDTH, HEIGHT);
+            drawCenteredMessage(g2d, "Paused \u2014 press SPACE to continue", 24, Color.WHITE, 0);
+        }
+        // The score lines change every game, so they skip the glyph cache; the overlay is
+        // painted once per game over anyway.
+        if (world.isGameOver()) {
+            g2d.setColor(new Color(0, 0, 0, 180));
+            g2d.fillRect(0, 0, WIDTH, HEIGHT);
+
+            drawCenteredMessage(g2d, "GAME OVER", 48, Color.RED, -50);
+            drawCenteredString(g2d, "Score: " + world.getScore(), 36, Color.WHITE, 20);
+            drawCenteredString(g2d, "Coins: " + world.getCoinsCollected(), 30, new Color(255, 215, 0), 60);
+            drawCenteredString(g2d, "High Score: " + world.getHighScore(), 30, Color.CYAN, 100);
+            drawCenteredMessage(g2d, "Press SPACE to restart", 24, Color.WHITE, 150);
+            drawCenteredMessage(g2d, "BACKSPACE to rewind and practice", 18, Color.LIGHT_GRAY, 185);
+        }
+        profiler.lapPaint(Profiler.PAINT_MESSAGES);
+    }
+
+    private static boolean onScreen(int x, int w) {
+        return x < GameWorld.WIDTH && x + w > 0;
+    }
+
+    // Ghosts fly the same course, so one n pixels further along it is n pixels to our right.
+    private int ghostX(GameWorld world, int i, float back) {
+        double distance = world.getDistance() - world.getSpeed() * back;
+        return (int) (world.getBird().getX() + (ghostDistances[i] - distance));
+    }
+
+    private void drawGhosts(Graphics2D g2d, GameWorld world, float back, SpriteAtlas sprites) {
+        if (ghostCount == 0) return;
+        Composite composite = g2d.getComposite();
+        g2d.setComposite(GHOST_COMPOSITE);
+        for (int i = 0; i < ghostCount; i++) {
+            int x = ghostX(world, i, back);
+            if (!onScreen(x - 19, 72)) continue;
+            if (sprites != null) {
+                sprites.drawBird(g2d, x, (int) ghostYs[i], 0, 0, 22);
+            } else {
+                paintBird(g2d, x, ghostYs[i], 0, 0, 22);
+            }
+        }
+        g2d.setComposite(composite);
+    }
+
+    private static int pipeX(EntityStore pipes, int i, float back) {
+        return (int) (pipes.x[i] - pipes.vx[i] * back);
+    }
+    private static int coinX(EntityStore coins, int i, float back) {
+        return (int) (coins.x[i] - coins.vx[i] * back);
+    }
+    private static int cloudX(EntityStore clouds, int i, float back) {
+        return (int) (clouds.x[i] - clouds.vx[i] * back);
+    }
+
+    private static BufferedImage bakeSky() {
+        final int WIDTH = GameWorld.WIDTH;
+        final int HEIGHT = GameWorld.HEIGHT;
+        BufferedImage img = newOpaqueImage(WIDTH, HEIGHT);
+        Graphics2D g2d = img.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        GradientPaint skyGradient = new GradientPaint(0, 0, new Color(135, 206, 250),
+                0, HEIGHT, new Color(100, 149, 237));
+        g2d.setPaint(skyGradient);
+        g2d.fillRect(0, 0, WIDTH, HEIGHT);
+
+        g2d.setColor(new Color(255, 255, 200, 150));
+        g2d.fillOval(WIDTH - 120, 40, 80, 80);
+        g2d.dispose();
+        return img;
+    }
+
+    // Drawn with its top edge at HEIGHT - GROUND_HEIGHT.
+    private static BufferedImage bakeGround() {
+        final int WIDTH = GameWorld.WIDTH;
+        final int GROUND_HEIGHT = GameWorld.GROUND_HEIGHT;
+        BufferedImage img = newOpaqueImage(WIDTH, GROUND_HEIGHT);
+        Graphics2D g2d = img.createGraphics();
+        GradientPaint groundGradient = new GradientPaint(0, 0,
+                new Color(0, 155, 0), 0, GROUND_HEIGHT, new Color(0, 100, 0));
+        g2d.setPaint(groundGradient);
+        g2d.fillRect(0, 0, WIDTH, GROUND_HEIGHT);
+
+        g2d.setColor(new Color(139, 69, 19));
+        g2d.fillRect(0, GROUND_HEIGHT - 20, WIDTH, 20);
+
+        g2d.setColor(new Color(100, 80, 0));
+        for (int i = 0; i < WIDTH; i += 30) {
+            g2d.fillRect(i, GROUND_HEIGHT - 20, 15, 5);
+        }
+        g2d.dispose();
+        return img;
+    }
+
+    static BufferedImage newOpaqueImage(int w, int h) {
+        if (GraphicsEnvironment.isHeadless()) {
+            return new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
         }
-        if (gameOver) {
-            g2d.setColor(new Color(0, 0, 0, 180));
-            g2d.fillRect(0, 0, WIDTH, HEIGHT);
+        return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                .getDefaultConfiguration().createCompatibleImage(w, h, Transparency.OPAQUE);
+    }
 
-            drawCenteredMessage(g2d, "GAME OVER", 48, Color.RED, -50);
-            drawCenteredMessage(g2d, "Score: " + score, 36, Color.WHITE, 20);
-            drawCenteredMessage(g2d, "Coins: " + coinsCollected, 30, new Color(255, 215, 0), 60);
-            drawCenteredMessage(g2d, "High Score: " + highScore, 30, Color.CYAN, 100);
-            drawCenteredMessage(g2d, "Press SPACE to restart", 24, Color.WHITE, 150);
+    // The welcome screen never moves, so it is painted into the frame once per visit.
+    public void drawWelcomeScreen(Graphics2D g2d, GameWorld world) {
+        int mode = MODE_WELCOME | (atlas != null ? MODE_SPRITES : 0);
+        if (mode != lastMode) {
+            Graphics2D fg = frame.createGraphics();
+            fg.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            paintWelcomeScreen(fg, world);
+            fg.dispose();
+            lastMode = mode;
         }
+        g2d.drawImage(frame, 0, 0, null);
     }
 
-    private void drawWelcomeScreen(Graphics2D g2d) {
+    private void paintWelcomeScreen(Graphics2D g2d, GameWorld world) {
+        final int WIDTH = GameWorld.WIDTH;
+        final int HEIGHT = GameWorld.HEIGHT;
 
         GradientPaint skyGradient = new GradientPaint(0, 0, new Color(100, 149, 237),
                 0, HEIGHT, new Color(70, 130, 180));
         g2d.setPaint(skyGradient);
         g2d.fillRect(0, 0, WIDTH, HEIGHT);
 
+        drawClouds(g2d, world.getClouds(), 0, Integer.MAX_VALUE);
 
-        for (Cloud cloud : clouds) {
-            cloud.draw(g2d);
-        }
-
-        g2d.setFont(new Font("Arial", Font.BOLD, 64));
+        Font titleFont = TextCache.bold(64);
         String title = "FLAPPY BIRD";
-        FontMetrics fm = g2d.getFontMetrics();
-        int titleWidth = fm.stringWidth(title);
+        int titleWidth = text.width(g2d, titleFont, title);
 
         g2d.setColor(new Color(0, 0, 0, 100));
-        g2d.drawString(title, (WIDTH - titleWidth)/2 + 4, HEIGHT/4 + 4);
+        text.draw(g2d, titleFont, title, (WIDTH - titleWidth)/2 + 4, HEIGHT/4 + 4);
         g2d.setColor(Color.YELLOW);
-        g2d.drawString(title, (WIDTH - titleWidth)/2, HEIGHT/4);
+        text.draw(g2d, titleFont, title, (WIDTH - titleWidth)/2, HEIGHT/4);
         int boxWidth = 400;
         int boxHeight = 120;
         int boxX = (WIDTH - boxWidth)/2;
@@ -308,16 +5828,10 @@ class GamePanel extends JPanel implements ActionListener, KeyListener, MouseList
         g2d.setColor(new Color(200, 220, 255));
         g2d.setStroke(new BasicStroke(3));
         g2d.drawRoundRect(boxX, boxY, boxWidth, boxHeight, 20, 20);
-        g2d.setFont(new Font("Arial", Font.BOLD, 28));
         g2d.setColor(Color.WHITE);
-        String creatorsTitle = "CREATED BY";
-        int creatorsTitleWidth = g2d.getFontMetrics().stringWidth(creatorsTitle);
-        g2d.drawString(creatorsTitle, (WIDTH - creatorsTitleWidth)/2, boxY + 40);
-        g2d.setFont(new Font("Arial", Font.BOLD, 24));
+        text.drawCentered(g2d, TextCache.bold(28), "CREATED BY", 0, WIDTH, boxY + 40);
         g2d.setColor(new Color(255, 215, 0));
-        String names = "AYUSH, SHUBHAM, VAISHALI";
-        int namesWidth = g2d.getFontMetrics().stringWidth(names);
-        g2d.drawString(names, (WIDTH - namesWidth)/2, boxY + 85);
+        text.drawCentered(g2d, TextCache.bold(24), "AYUSH, SHUBHAM, VAISHALI", 0, WIDTH, boxY + 85);
         int buttonWidth = 200;
         int buttonHeight = 60;
         int buttonX = (WIDTH - buttonWidth) / 2;
@@ -333,92 +5847,42 @@ class GamePanel extends JPanel implements ActionListener, KeyListener, MouseList
         g2d.setColor(new Color(200, 255, 200));
         g2d.setStroke(new BasicStroke(3));
         g2d.drawRoundRect(buttonX, buttonY, buttonWidth, buttonHeight, 30, 30);
-        g2d.setFont(new Font("Arial", Font.BOLD, 36));
         g2d.setColor(Color.WHITE);
-        String playText = "PLAY";
-        int playWidth = g2d.getFontMetrics().stringWidth(playText);
-        g2d.drawString(playText, buttonX + (buttonWidth - playWidth)/2, buttonY + buttonHeight/2 + 12);
-        g2d.setFont(new Font("Arial", Font.PLAIN, 20));
-        g2d.setColor(Color.WHITE);
-        String instruction = "Click PLAY or press SPACE to begin";
-        int instrWidth = g2d.getFontMetrics().stringWidth(instruction);
-        g2d.drawString(instruction, (WIDTH - instrWidth)/2, buttonY + buttonHeight + 30);
+        text.drawCentered(g2d, TextCache.bold(36), "PLAY", buttonX, buttonWidth, buttonY + buttonHeight/2 + 12);
+        text.drawCentered(g2d, TextCache.INSTRUCTION_FONT, "Click PLAY or press SPACE to begin",
+                0, WIDTH, buttonY + buttonHeight + 30);
     }
-    private void drawCenteredMessage(Graphics2D g2d, String text, int fontSize, Color color, int yOffset) {
+
+    // For fixed strings: laid out once, then drawn from the glyph cache.
+    private void drawCenteredMessage(Graphics2D g2d, String message, int fontSize, Color color, int yOffset) {
         g2d.setColor(color);
-        g2d.setFont(new Font("Arial", Font.BOLD, fontSize));
-        FontMetrics fm = g2d.getFontMetrics();
-        int x = (WIDTH - fm.stringWidth(text)) / 2;
-        int y = HEIGHT / 2 + yOffset;
-        g2d.drawString(text, x, y);
-    }
-    @Override
-    public void keyPressed(KeyEvent e) {
-        if (e.getKeyCode() == KeyEvent.VK_SPACE) {
-            if (showWelcomeScreen) {
-                startGame();
-            } else if (!gameStarted) {
-                startGame();
-            } else if (gameOver) {
-                resetGame();
-            } else {
-                bird.jump(JUMP_STRENGTH);
-                createParticles((int)bird.getX(), (int)(bird.getY() + Bird.SIZE/2), 10);
-            }
-        }
-    }
-    @Override public void keyTyped(KeyEvent e) {}
-    @Override public void keyReleased(KeyEvent e) {}
-    @Override
-    public void mouseClicked(MouseEvent e) {
-        if (showWelcomeScreen && playButton.contains(e.getPoint())) {
-            startGame();
-        }
+        text.drawCentered(g2d, TextCache.bold(fontSize), message, 0, GameWorld.WIDTH,
+                GameWorld.HEIGHT / 2 + yOffset);
     }
-    @Override public void mousePressed(MouseEvent e) {}
-    @Override public void mouseReleased(MouseEvent e) {}
-    @Override public void mouseEntered(MouseEvent e) {}
-    @Override public void mouseExited(MouseEvent e) {}
-}
-class Bird {
-    public static final int SIZE = 34;
-    private float x, y;
-    private float velocity;
-    private float rotation;
-    private int wingState;
-    private long lastFlapTime;
-    private boolean isFlapping;
 
-    public Bird(int x, int y) {
-        this.x = x;
-        this.y = y;
-        this.velocity = 0;
-        this.rotation = 0;
-        this.wingState = 0;
-        this.lastFlapTime = 0;
-        this.isFlapping = false;
+    private void drawCenteredString(Graphics2D g2d, String message, int fontSize, Color color, int yOffset) {
+        g2d.setColor(color);
+        g2d.setFont(TextCache.bold(fontSize));
+        FontMetrics fm = g2d.getFontMetrics();
+        int x = (GameWorld.WIDTH - fm.stringWidth(message)) / 2;
+        int y = GameWorld.HEIGHT / 2 + yOffset;
+        g2d.drawString(message, x, y);
     }
-    public void update(float gravity, float resistance) {
-        velocity += gravity;
-        velocity *= resistance;
-        y += velocity;
-        if (isFlapping && System.currentTimeMillis() - lastFlapTime < 150) {
-            wingState = (wingState + 1) % 4;
+
+    private void drawBird(Graphics2D g2d, Bird bird, float alpha) {
+        float y = bird.getPrevY() + (bird.getY() - bird.getPrevY()) * alpha;
+        float rotation = bird.getPrevRotation() + (bird.getRotation() - bird.getPrevRotation()) * alpha;
+        int eyeX = bird.getVelocity() > 0 ? 24 : 22;
+        SpriteAtlas sprites = atlas;
+        if (sprites != null) {
+            sprites.drawBird(g2d, (int) bird.getX(), (int) y, rotation, bird.getWingState(), eyeX);
         } else {
-            wingState = 0;
-            isFlapping = false;
+            paintBird(g2d, bird.getX(), y, rotation, bird.getWingState(), eyeX);
         }
-        rotation = velocity * 1.2f;
-        if (rotation < -25) rotation = -25;
-        if (rotation > 90) rotation = 90;
-    }
-    public void jump(int strength) {
-        velocity = strength;
-        isFlapping = true;
-        lastFlapTime = System.currentTimeMillis();
-        wingState = 1;
     }
-    public void draw(Graphics2D g2d, int flapCycle) {
+
+    static void paintBird(Graphics2D g2d, float x, float y, float rotation, int wingState, int eyeX) {
+        final int SIZE = Bird.SIZE;
         AffineTransform originalTransform = g2d.getTransform();
         g2d.rotate(Math.toRadians(rotation), x + SIZE/2, y + SIZE/2);
         GradientPaint bodyGradient = new GradientPaint(
@@ -427,7 +5891,7 @@ class Bird {
         );
         g2d.setPaint(bodyGradient);
         g2d.fillOval((int)x, (int)y, SIZE, SIZE);
-        drawWing(g2d);
+        paintWing(g2d, (int) x, (int) y, wingState);
         g2d.setColor(new Color(255, 80, 0));
         Polygon beak = new Polygon();
         beak.addPoint((int)x + SIZE, (int)(y + SIZE/2 - 6));
@@ -437,7 +5901,6 @@ class Bird {
         g2d.setColor(Color.WHITE);
         g2d.fillOval((int)x + 20, (int)y + 8, 10, 10);
         g2d.setColor(Color.BLACK);
-        int eyeX = velocity > 0 ? 24 : 22;
         g2d.fillOval((int)x + eyeX, (int)y + 10, 4, 4);
         g2d.setColor(Color.WHITE);
         g2d.fillOval((int)x + eyeX, (int)y + 9, 2, 2);
@@ -447,101 +5910,78 @@ class Bird {
         g2d.fillPolygon(crestX, crestY, 3);
         g2d.setTransform(originalTransform);
     }
-    private void drawWing(Graphics2D g2d) {
+
+    private static void paintWing(Graphics2D g2d, int x, int y, int wingState) {
         g2d.setColor(new Color(255, 255, 255, 220));
 
         switch(wingState) {
             case 0:
-                g2d.fillOval((int)x + 4, (int)y + 10, 20, 12);
+                g2d.fillOval(x + 4, y + 10, 20, 12);
                 break;
             case 1:
-                g2d.fillOval((int)x + 4, (int)y + 5, 22, 14);
+                g2d.fillOval(x + 4, y + 5, 22, 14);
                 break;
             case 2:
-                g2d.fillOval((int)x + 2, (int)y, 24, 16);
+                g2d.fillOval(x + 2, y, 24, 16);
                 break;
             case 3:
-                g2d.fillOval((int)x + 4, (int)y + 5, 22, 14);
+                g2d.fillOval(x + 4, y + 5, 22, 14);
                 break;
         }
     }
-    public Rectangle getBounds() {
-        return new Rectangle((int)x, (int)y, SIZE, SIZE);
-    }
-    public float getX() { return x; }
-    public float getY() { return y; }
-}
-
-class Pipe {
-    private int x, gapY, gapHeight = 200;
-    private boolean passed;
-    private Color pipeColor;
 
-    public Pipe(int x, int gapY) {
-        this.x = x;
-        this.gapY = gapY;
-        this.pipeColor = new Color(0, 180, 0);
-    }
-    public void update(int speed) {
-        x -= speed;
-    }
-    public boolean collidesWith(Bird bird) {
-        Rectangle birdBounds = bird.getBounds();
-        Rectangle top = new Rectangle(x, 0, GamePanel.PIPE_WIDTH, gapY);
-        Rectangle bottom = new Rectangle(x, gapY + gapHeight,
-                GamePanel.PIPE_WIDTH, GamePanel.HEIGHT - gapY - gapHeight);
-        return birdBounds.intersects(top) || birdBounds.intersects(bottom);
-    }
-    public void draw(Graphics2D g2d) {
+    static void paintPipe(Graphics2D g2d, int x, int gapY, int gapHeight) {
+        final int PIPE_WIDTH = GameWorld.PIPE_WIDTH;
+        Color pipeColor = new Color(0, 180, 0);
         GradientPaint pipeGradient = new GradientPaint(
                 x, 0, pipeColor.darker(),
-                x + GamePanel.PIPE_WIDTH, 0, pipeColor.brighter()
+                x + PIPE_WIDTH, 0, pipeColor.brighter()
         );
         g2d.setPaint(pipeGradient);
 
-        g2d.fillRect(x, 0, GamePanel.PIPE_WIDTH, gapY);
-        g2d.fillRect(x, gapY + gapHeight, GamePanel.PIPE_WIDTH,
-                GamePanel.HEIGHT - gapY - gapHeight);
+        g2d.fillRect(x, 0, PIPE_WIDTH, gapY);
+        g2d.fillRect(x, gapY + gapHeight, PIPE_WIDTH,
+                GameWorld.HEIGHT - gapY - gapHeight);
 
         g2d.setColor(pipeColor.darker().darker());
-        g2d.fillRect(x - 5, gapY - 20, GamePanel.PIPE_WIDTH + 10, 20);
-        g2d.fillRect(x - 5, gapY + gapHeight, GamePanel.PIPE_WIDTH + 10, 20);
+        g2d.fillRect(x - 5, gapY - 20, PIPE_WIDTH + 10, 20);
+        g2d.fillRect(x - 5, gapY + gapHeight, PIPE_WIDTH + 10, 20);
 
         g2d.setColor(pipeColor.brighter());
-        g2d.fillRect(x - 3, gapY - 18, GamePanel.PIPE_WIDTH + 6, 16);
-        g2d.fillRect(x - 3, gapY + gapHeight + 2, GamePanel.PIPE_WIDTH + 6, 16);
+        g2d.fillRect(x - 3, gapY - 18, PIPE_WIDTH + 6, 16);
+        g2d.fillRect(x - 3, gapY + gapHeight + 2, PIPE_WIDTH + 6, 16);
 
         g2d.setColor(new Color(255, 255, 255, 50));
         g2d.fillRect(x + 5, 5, 10, gapY - 10);
         g2d.fillRect(x + 5, gapY + gapHeight + 5, 10,
-                GamePanel.HEIGHT - gapY - gapHeight - 10);
+                GameWorld.HEIGHT - gapY - gapHeight - 10);
     }
-    public int getX() { return x; }
-    public int getGapY() { return gapY; }
-    public boolean isPassed() { return passed; }
-    public void setPassed(boolean passed) { this.passed = passed; }
-}
 
-class Cloud {
-    private int x, y;
-    private int speed;
-    private float scale;
-    private int id;
-
-    public Cloud(int x, int y, int id) {
-        this.x = x;
-        this.y = y;
-        this.speed = (int)(Math.random() * 2) + 1;
-        this.scale = (float)(Math.random() * 0.5 + 0.8);
-        this.id = id;
-    }
-    public void update() {
-        x -= speed;
+    private void drawClouds(Graphics2D g2d, EntityStore clouds, float back, int budget) {
+        SpriteAtlas sprites = atlas;
+        int count = Math.min(clouds.count(), budget);
+        for (int i = 0; i < count; i++) {
+            int x = (int) (clouds.x[i] - clouds.vx[i] * back);
+            if (sprites != null) {
+                sprites.drawCloud(g2d, x, (int) clouds.y[i], clouds.size[i], clouds.variant[i]);
+            } else {
+                paintCloud(g2d, x, (int) clouds.y[i], clouds.size[i], clouds.variant[i]);
+            }
+        }
     }
-    public boolean isOffScreen() {
-        return x < -200;
+
+    static void paintFlatPipe(Graphics2D g2d, int x, int gapY, int gapHeight) {
+        final int PIPE_WIDTH = GameWorld.PIPE_WIDTH;
+        int bottomY = gapY + gapHeight;
+        g2d.setColor(FLAT_PIPE);
+        g2d.fillRect(x, 0, PIPE_WIDTH, gapY - 20);
+        g2d.fillRect(x, bottomY + 20, PIPE_WIDTH, GameWorld.HEIGHT - bottomY - 20);
+        g2d.setColor(FLAT_PIPE_CAP);
+        g2d.fillRect(x - 5, gapY - 20, PIPE_WIDTH + 10, 20);
+        g2d.fillRect(x - 5, bottomY, PIPE_WIDTH + 10, 20);
     }
-    public void draw(Graphics2D g2d) {
+
+    static void paintCloud(Graphics2D g2d, int x, int y, float scale, int id) {
         g2d.setColor(new Color(255, 255, 255, 220));
         int w = (int)(80 * scale);
         int h = (int)(40 * scale);
@@ -564,87 +6004,527 @@ class Cloud {
                 break;
         }
     }
+
+    static void paintCoin(Graphics2D g2d, float x, float y, float rotation) {
+        final int SIZE = GameWorld.COIN_SIZE;
+        AffineTransform original = g2d.getTransform();
+        g2d.translate(x, y);
+        g2d.rotate(Math.toRadians(rotation));
+        GradientPaint goldGradient = new GradientPaint(
+                -10, -10, new Color(255, 215, 0),
+                10, 10, new Color(218, 165, 32)
+        );
+        g2d.setPaint(goldGradient);
+        g2d.fillOval(-10, -10, SIZE, SIZE);
+        g2d.setColor(new Color(139, 119, 0));
+        g2d.setStroke(new BasicStroke(2));
+        g2d.drawOval(-10, -10, SIZE, SIZE);
+        g2d.setColor(new Color(100, 80, 0));
+        g2d.setFont(TextCache.bold(14));
+        g2d.drawString("$", -5, 5);
+        g2d.setTransform(original);
+    }
 }
 
-class Particle {
-    private float x, y;
-    private float vx, vy;
-    private float size;
-    private Color color;
-    private int life;
+// Fonts are created once, and fixed strings are laid out once into GlyphVectors so that
+// drawing them skips font lookup, shaping and measuring.
+class TextCache {
+    public static final Font HUD_FONT = new Font("Arial", Font.PLAIN, 18);
+    public static final Font INSTRUCTION_FONT = new Font("Arial", Font.PLAIN, 20);
+    private static final Font[] BOLD = new Font[128];
 
-    public Particle(float x, float y) {
-        this.x = x;
-        this.y = y;
-        this.vx = (float)(Math.random() * 6 - 3);
-        this.vy = (float)(Math.random() * 6 - 3);
-        this.size = (float)(Math.random() * 8 + 2);
-        this.color = new Color(
-                (int)(Math.random() * 156 + 100),
-                (int)(Math.random() * 156 + 100),
-                (int)(Math.random() * 156 + 100),
-                200
-        );
-        this.life = (int)(Math.random() * 30 + 20);
+    private final Map<Font, Map<String, Layout>> layouts = new HashMap<>();
+    private FontRenderContext frc;
+
+    private static final class Layout {
+        final GlyphVector glyphs;
+        final int width;
+        Layout(GlyphVector glyphs) {
+            this.glyphs = glyphs;
+            this.width = (int) glyphs.getLogicalBounds().getWidth();
+        }
     }
-    public void update() {
-        x += vx;
-        y += vy;
-        vy += 0.1;
-        life--;
-        size *= 0.95;
+
+    public static Font bold(int size) {
+        Font f = BOLD[size];
+        if (f == null) {
+            f = BOLD[size] = new Font("Arial", Font.BOLD, size);
+        }
+        return f;
     }
-    public void draw(Graphics2D g2d) {
-        float alpha = life / 50.0f;
-        if (alpha < 0) alpha = 0;
-        g2d.setColor(new Color(color.getRed(), color.getGreen(), color.getBlue(), (int)(alpha * 255)));
-        g2d.fillOval((int)x, (int)y, (int)size, (int)size);
+
+    public int width(Graphics2D g2d, Font font, String text) {
+        return layout(g2d, font, text).width;
+    }
+
+    public void draw(Graphics2D g2d, Font font, String text, int x, int y) {
+        g2d.drawGlyphVector(layout(g2d, font, text).glyphs, x, y);
+    }
+
+    public void drawCentered(Graphics2D g2d, Font font, String text, int areaX, int areaWidth, int y) {
+        Layout l = layout(g2d, font, text);
+        g2d.drawGlyphVector(l.glyphs, areaX + (areaWidth - l.width) / 2, y);
+    }
+
+    private Layout layout(Graphics2D g2d, Font font, String text) {
+        FontRenderContext current = g2d.getFontRenderContext();
+        if (!current.equals(frc)) {
+            layouts.clear();
+            frc = current;
+        }
+        Map<String, Layout> byText = layouts.computeIfAbsent(font, f -> new HashMap<>());
+        Layout l = byText.get(text);
+        if (l == null) {
+            l = new Layout(font.createGlyphVector(frc, text));
+            byText.put(text, l);
+        }
+        return l;
+    }
+}
+
+// The score panel, rasterized into its own image and redrawn only when one of the
+// counters it shows has changed.
+class HudLayer {
+    public static final int X = 10;
+    public static final int Y = 10;
+    public static final int W = 210;
+    public static final int H = 95;
+
+    private final BufferedImage image = SpriteAtlas.newImage(W, H);
+    private int score = -1, highScore = -1, coins = -1;
+
+    public boolean isStale(int score, int highScore, int coins) {
+        return score != this.score || highScore != this.highScore || coins != this.coins;
+    }
+
+    public void draw(Graphics2D g2d, int score, int highScore, int coins) {
+        if (isStale(score, highScore, coins)) {
+            this.score = score;
+            this.highScore = highScore;
+            this.coins = coins;
+            repaint();
+        }
+        g2d.drawImage(image, X, Y, null);
     }
-    public boolean isDead() {
-        return life <= 0;
+
+    private void repaint() {
+        Graphics2D g2d = image.createGraphics();
+        g2d.setComposite(AlphaComposite.Clear);
+        g2d.fillRect(0, 0, W, H);
+        g2d.setComposite(AlphaComposite.SrcOver);
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2d.translate(-X, -Y);
+
+        g2d.setColor(new Color(0, 0, 0, 100));
+        g2d.fillRoundRect(10, 10, 200, 85, 15, 15);
+
+        g2d.setColor(Color.WHITE);
+        g2d.setFont(TextCache.HUD_FONT);
+        g2d.drawString("Score: " + score, 20, 40);
+        g2d.drawString("High: " + highScore, 20, 70);
+
+        g2d.setColor(new Color(255, 215, 0));
+        g2d.fillOval(20, 80, 15, 15);
+        g2d.setColor(Color.BLACK);
+        g2d.drawOval(20, 80, 15, 15);
+        g2d.setColor(Color.WHITE);
+        g2d.drawString(": " + coins, 40, 95);
+        g2d.dispose();
+    }
+}
+
+// The screen rectangles to repaint this frame: wherever moving things were drawn last
+// frame plus wherever they are drawn now. The union becomes a single clip shape.
+class DirtyRegion {
+    private final int width, height;
+    private final Rectangle everything;
+    private final Path2D.Float clip = new Path2D.Float(Path2D.WIND_NON_ZERO);
+    private int[] current = new int[64 * 4];
+    private int[] previous = new int[64 * 4];
+    private int currentCount, previousCount;
+    private boolean all;
+
+    public DirtyRegion(int width, int height) {
+        this.width = width;
+        this.height = height;
+        everything = new Rectangle(0, 0, width, height);
+    }
+
+    public void nextFrame() {
+        int[] t = previous;
+        previous = current;
+        current = t;
+        previousCount = currentCount;
+        currentCount = 0;
+        all = false;
+    }
+
+    public void addAll() {
+        all = true;
+    }
+
+    public void add(int x, int y, int w, int h) {
+        int x0 = Math.max(0, x), y0 = Math.max(0, y);
+        int x1 = Math.min(width, x + w), y1 = Math.min(height, y + h);
+        if (x1 <= x0 || y1 <= y0) return;
+        if ((currentCount + 1) * 4 > current.length) current = Arrays.copyOf(current, current.length * 2);
+        int k = currentCount++ * 4;
+        current[k] = x0; current[k + 1] = y0; current[k + 2] = x1; current[k + 3] = y1;
+    }
+
+    public Shape toClip() {
+        if (all) return everything;
+        clip.reset();
+        append(current, currentCount);
+        append(previous, previousCount);
+        return clip;
+    }
+
+    private void append(int[] rects, int n) {
+        for (int k = 0; k < n * 4; k += 4) {
+            clip.moveTo(rects[k], rects[k + 1]);
+            clip.lineTo(rects[k + 2], rects[k + 1]);
+            clip.lineTo(rects[k + 2], rects[k + 3]);
+            clip.lineTo(rects[k], rects[k + 3]);
+            clip.closePath();
+        }
+    }
+}
+
+// Pre-rendered images of the bird, coins, clouds and pipe pieces, so a frame is plain
+// drawImage blits instead of antialiased gradients, polygons and text. Each image is
+// painted once with WorldRenderer's vector painters, so sprites and fallback match.
+// Rotations and cloud scales are quantized into buckets.
+class SpriteAtlas {
+    private static final int BIRD_SPRITE = 72;
+    private static final int BIRD_PAD = (BIRD_SPRITE - Bird.SIZE) / 2;
+    private static final int MIN_ROTATION = -25;
+    private static final int MAX_ROTATION = 90;
+    private static final int ROTATION_STEP = 5;
+    private static final int ROTATION_BUCKETS = (MAX_ROTATION - MIN_ROTATION) / ROTATION_STEP + 1;
+    // Wing states 1 and 3 are drawn identically, so only three wing frames are kept.
+    private static final int WING_FRAMES = 3;
+    private static final int COIN_SPRITE = 26;
+    private static final int COIN_FRAMES = 120;
+    private static final float MIN_CLOUD_SCALE = 0.8f;
+    private static final float CLOUD_SCALE_STEP = 0.05f;
+    private static final int CLOUD_SCALE_BUCKETS = 11;
+    private static final int CLOUD_TOP = 20;
+    private static final int CAP_HEIGHT = 20;
+    private static final int PIPE_EDGE = 5;
+
+    private final BufferedImage[] birdFrames = new BufferedImage[WING_FRAMES * 2 * ROTATION_BUCKETS];
+    private final BufferedImage[] coinFrames = new BufferedImage[COIN_FRAMES];
+    private final BufferedImage[] cloudFrames = new BufferedImage[3 * CLOUD_SCALE_BUCKETS];
+    private final BufferedImage pipeEdge, pipeBody, pipeTopCap, pipeBottomCap;
+
+    public static CompletableFuture<SpriteAtlas> buildAsync() {
+        return CompletableFuture.supplyAsync(SpriteAtlas::new, task -> {
+            Thread t = new Thread(task, "sprite-atlas");
+            t.setDaemon(true);
+            t.start();
+        });
+    }
+
+    public SpriteAtlas() {
+        for (int wing = 0; wing < WING_FRAMES; wing++) {
+            for (int eye = 0; eye < 2; eye++) {
+                for (int r = 0; r < ROTATION_BUCKETS; r++) {
+                    BufferedImage img = newImage(BIRD_SPRITE, BIRD_SPRITE);
+                    Graphics2D g = createGraphics(img);
+                    WorldRenderer.paintBird(g, BIRD_PAD, BIRD_PAD, MIN_ROTATION + r * ROTATION_STEP,
+                            wing, eye == 0 ? 22 : 24);
+                    g.dispose();
+                    birdFrames[(wing * 2 + eye) * ROTATION_BUCKETS + r] = img;
+                }
+            }
+        }
+        for (int f = 0; f < COIN_FRAMES; f++) {
+            BufferedImage img = newImage(COIN_SPRITE, COIN_SPRITE);
+            Graphics2D g = createGraphics(img);
+            WorldRenderer.paintCoin(g, COIN_SPRITE / 2, COIN_SPRITE / 2, f * 360f / COIN_FRAMES);
+            g.dispose();
+            coinFrames[f] = img;
+        }
+        for (int id = 0; id < 3; id++) {
+            for (int b = 0; b < CLOUD_SCALE_BUCKETS; b++) {
+                float scale = MIN_CLOUD_SCALE + b * CLOUD_SCALE_STEP;
+                int w = (int) (80 * scale);
+                int h = (int) (40 * scale);
+                BufferedImage img = newImage(w * 3 / 2 + 50, h + 2 * CLOUD_TOP);
+                Graphics2D g = createGraphics(img);
+                WorldRenderer.paintCloud(g, 0, CLOUD_TOP, scale, id);
+                g.dispose();
+                cloudFrames[id * CLOUD_SCALE_BUCKETS + b] = img;
+            }
+        }
+
+        // Paint one whole pipe and slice it: the rows above the highlight, one highlighted
+        // body row that stretches to any length, and both caps with the highlight on them.
+        final int PIPE_WIDTH = GameWorld.PIPE_WIDTH;
+        int gapY = 100;
+        BufferedImage pipe = newImage(PIPE_WIDTH + 10, GameWorld.HEIGHT);
+        Graphics2D g = createGraphics(pipe);
+        WorldRenderer.paintPipe(g, 5, gapY, GameWorld.PIPE_GAP);
+        g.dispose();
+        pipeEdge = copy(pipe, 5, 0, PIPE_WIDTH, PIPE_EDGE);
+        pipeBody = copy(pipe, 5, gapY / 2, PIPE_WIDTH, 1);
+        pipeTopCap = copy(pipe, 0, gapY - CAP_HEIGHT, PIPE_WIDTH + 10, CAP_HEIGHT);
+        pipeBottomCap = copy(pipe, 0, gapY + GameWorld.PIPE_GAP, PIPE_WIDTH + 10, CAP_HEIGHT);
+    }
+
+    public void drawBird(Graphics2D g2d, int x, int y, float rotation, int wingState, int eyeX) {
+        int wing = wingState == 3 ? 1 : wingState;
+        int eye = eyeX == 22 ? 0 : 1;
+        int r = Math.round((rotation - MIN_ROTATION) / ROTATION_STEP);
+        r = Math.max(0, Math.min(ROTATION_BUCKETS - 1, r));
+        g2d.drawImage(birdFrames[(wing * 2 + eye) * ROTATION_BUCKETS + r], x - BIRD_PAD, y - BIRD_PAD, null);
+    }
+
+    public void drawCoin(Graphics2D g2d, int x, float y, float rotation) {
+        int f = Math.floorMod(Math.round(rotation * COIN_FRAMES / 360f), COIN_FRAMES);
+        g2d.drawImage(coinFrames[f], x - COIN_SPRITE / 2, Math.round(y) - COIN_SPRITE / 2, null);
+    }
+
+    public void drawCloud(Graphics2D g2d, int x, int y, float scale, int id) {
+        int b = Math.round((scale - MIN_CLOUD_SCALE) / CLOUD_SCALE_STEP);
+        b = Math.max(0, Math.min(CLOUD_SCALE_BUCKETS - 1, b));
+        g2d.drawImage(cloudFrames[(id % 3) * CLOUD_SCALE_BUCKETS + b], x, y - CLOUD_TOP, null);
+    }
+
+    public void drawPipe(Graphics2D g2d, int x, int gapY, int gapHeight) {
+        final int PIPE_WIDTH = GameWorld.PIPE_WIDTH;
+        final int HEIGHT = GameWorld.HEIGHT;
+        int bottomY = gapY + gapHeight;
+        g2d.drawImage(pipeEdge, x, 0, null);
+        g2d.drawImage(pipeBody, x, PIPE_EDGE, PIPE_WIDTH, gapY - CAP_HEIGHT - PIPE_EDGE, null);
+        g2d.drawImage(pipeTopCap, x - 5, gapY - CAP_HEIGHT, null);
+        g2d.drawImage(pipeBottomCap, x - 5, bottomY, null);
+        g2d.drawImage(pipeBody, x, bottomY + CAP_HEIGHT, PIPE_WIDTH, HEIGHT - PIPE_EDGE - bottomY - CAP_HEIGHT, null);
+        g2d.drawImage(pipeEdge, x, HEIGHT - PIPE_EDGE, null);
+    }
+
+    private static BufferedImage copy(BufferedImage src, int x, int y, int w, int h) {
+        BufferedImage img = newImage(w, h);
+        Graphics2D g = img.createGraphics();
+        g.drawImage(src, 0, 0, w, h, x, y, x + w, y + h, null);
+        g.dispose();
+        return img;
+    }
+
+    private static Graphics2D createGraphics(BufferedImage img) {
+        Graphics2D g = img.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        return g;
+    }
+
+    // Compatible translucent images can be cached in video memory by the Java2D pipeline.
+    static BufferedImage newImage(int w, int h) {
+        if (GraphicsEnvironment.isHeadless()) {
+            return new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB_PRE);
+        }
+        return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                .getDefaultConfiguration().createCompatibleImage(w, h, Transparency.TRANSLUCENT);
+    }
+}
+
+// Draws every live particle straight into one premultiplied ARGB raster and blits the
+// touched region with a single drawImage, instead of a Color and a fillOval per spark.
+// Disc coverage comes from per-diameter span tables matching fillOval's pixel centres.
+class ParticleRaster {
+    private static final int MAX_DIAMETER = 16;
+    private static final int[][] SPAN_FROM = new int[MAX_DIAMETER + 1][];
+    private static final int[][] SPAN_TO = new int[MAX_DIAMETER + 1][];
+    static {
+        for (int d = 1; d <= MAX_DIAMETER; d++) {
+            SPAN_FROM[d] = new int[d];
+            SPAN_TO[d] = new int[d];
+            double r = d / 2.0;
+            for (int row = 0; row < d; row++) {
+                double dy = row + 0.5 - r;
+                double half = Math.sqrt(Math.max(0, r * r - dy * dy));
+                SPAN_FROM[d][row] = (int) Math.ceil(r - half - 0.5);
+                SPAN_TO[d][row] = (int) Math.floor(r + half - 0.5);
+            }
+        }
+    }
+
+    private final BufferedImage image;
+    private final int[] pixels;
+    private final int width, height;
+    private int minX, minY, maxX, maxY;
+
+    public ParticleRaster(int width, int height) {
+        this.width = width;
+        this.height = height;
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        minX = minY = 0;
+        maxX = maxY = -1;
+    }
+
+    // Writes the pool into the raster; back is the fraction of a tick to rewind positions
+    // by, for interpolation. Past budget particles, only an evenly spaced subset is drawn.
+    // Returns whether any pixel was touched.
+    public boolean rasterize(ParticlePool pool, float back, int budget) {
+        for (int py = minY; py <= maxY; py++) {
+            Arrays.fill(pixels, py * width + minX, py * width + maxX + 1, 0);
+        }
+        minX = width; minY = height; maxX = -1; maxY = -1;
+        if (budget <= 0) return false;
+
+        int stride = pool.count() <= budget ? 1 : (pool.count() + budget - 1) / budget;
+        for (int i = 0; i < pool.count(); i += stride) {
+            int d = Math.min((int) pool.size[i], MAX_DIAMETER);
+            int a = ParticlePool.alphaFor(pool.life[i]);
+            if (d <= 0 || a == 0) continue;
+            int x0 = (int) (pool.x[i] - pool.vx[i] * back);
+            int y0 = (int) (pool.y[i] - (pool.vy[i] - 0.1f) * back);
+            if (x0 >= width || y0 >= height || x0 + d <= 0 || y0 + d <= 0) continue;
+
+            int c = pool.rgb[i];
+            int sr = ((c >> 16) & 0xFF) * a / 255;
+            int sg = ((c >> 8) & 0xFF) * a / 255;
+            int sb = (c & 0xFF) * a / 255;
+            int inv = 255 - a;
+            int[] from = SPAN_FROM[d];
+            int[] to = SPAN_TO[d];
+            for (int row = 0; row < d; row++) {
+                int py = y0 + row;
+                if (py < 0 || py >= height) continue;
+                int left = Math.max(0, x0 + from[row]);
+                int right = Math.min(width - 1, x0 + to[row]);
+                if (left > right) continue;
+                int base = py * width;
+                for (int px = left; px <= right; px++) {
+                    int dst = pixels[base + px];
+                    int da = dst >>> 24, dr = (dst >> 16) & 0xFF, dg = (dst >> 8) & 0xFF, db = dst & 0xFF;
+                    pixels[base + px] = (a + da * inv / 255) << 24
+                            | (sr + dr * inv / 255) << 16
+                            | (sg + dg * inv / 255) << 8
+                            | (sb + db * inv / 255);
+                }
+                if (left < minX) minX = left;
+                if (right > maxX) maxX = right;
+                if (py < minY) minY = py;
+                if (py > maxY) maxY = py;
+            }
+        }
+
+        return maxX >= minX;
+    }
+
+    public void blit(Graphics2D g2d) {
+        if (maxX >= minX) {
+            g2d.drawImage(image, minX, minY, maxX + 1, maxY + 1, minX, minY, maxX + 1, maxY + 1, null);
+        }
     }
+
+    public int minX() { return minX; }
+    public int minY() { return minY; }
+    public int maxX() { return maxX; }
+    public int maxY() { return maxY; }
 }
 
-class Coin {
-    public static final int SIZE = 20;
-    private int x, y;
+class Bird {
+    public static final int SIZE = 34;
+    public static final int SNAPSHOT_BYTES = 8 * 4 + 2 * 4 + 1;
+    // The old 150 ms wing-flap window, expressed in 16 ms ticks.
+    private static final int FLAP_TICKS = 9;
+    private float x, y;
+    private float prevY, prevRotation;
+    private float velocity;
     private float rotation;
-    private float bounce;
+    private int wingState;
+    private int flapTicksLeft;
+    private boolean isFlapping;
+    // A flap late in the tick: how much of it the bird still coasted on its old velocity.
+    private float coast;
+    private float coastVelocity;
 
-    public Coin(int x, int y) {
+    public Bird(int x, int y) {
         this.x = x;
         this.y = y;
+        this.prevY = y;
+        this.velocity = 0;
         this.rotation = 0;
-        this.bounce = 0;
+        this.wingState = 0;
+        this.flapTicksLeft = 0;
+        this.isFlapping = false;
+    }
+    public void update(float gravity, float resistance) {
+        prevY = y;
+        prevRotation = rotation;
+        if (coast > 0) {
+            float coasted = (coastVelocity + gravity) * resistance;
+            velocity += gravity;
+            velocity *= resistance;
+            y += velocity + (coasted - velocity) * coast;
+            coast = 0;
+        } else {
+            velocity += gravity;
+            velocity *= resistance;
+            y += velocity;
+        }
+        if (isFlapping && flapTicksLeft-- > 0) {
+            wingState = (wingState + 1) % 4;
+        } else {
+            wingState = 0;
+            isFlapping = false;
+        }
+        rotation = velocity * 1.2f;
+        if (rotation < -25) rotation = -25;
+        if (rotation > 90) rotation = 90;
     }
-    public void update(int speed) {
-        x -= speed;
-        rotation += 3;
-        bounce = (float)Math.sin(System.currentTimeMillis() / 200.0) * 5;
+    public void jump(int strength) {
+        jump(strength, 0);
     }
-    public void draw(Graphics2D g2d) {
-        AffineTransform original = g2d.getTransform();
-        g2d.translate(x, y + bounce);
-        g2d.rotate(Math.toRadians(rotation));
-        GradientPaint goldGradient = new GradientPaint(
-                -10, -10, new Color(255, 215, 0),
-                10, 10, new Color(218, 165, 32)
-        );
-        g2d.setPaint(goldGradient);
-        g2d.fillOval(-10, -10, SIZE, SIZE);
-        g2d.setColor(new Color(139, 119, 0));
-        g2d.setStroke(new BasicStroke(2));
-        g2d.drawOval(-10, -10, SIZE, SIZE);
-        g2d.setColor(new Color(100, 80, 0));
-        g2d.setFont(new Font("Arial", Font.BOLD, 14));
-        g2d.drawString("$", -5, 5);
-        g2d.setTransform(original);
+    // at is how far into the coming update the flap happens, from 0 to 1.
+    public void jump(int strength, float at) {
+        coast = at;
+        coastVelocity = velocity;
+        velocity = strength;
+        isFlapping = true;
+        flapTicksLeft = FLAP_TICKS;
+        wingState = 1;
+    }
+    public void writeSnapshot(ByteBuffer out) {
+        out.putFloat(x).putFloat(y).putFloat(prevY).putFloat(prevRotation)
+                .putFloat(velocity).putFloat(rotation).putFloat(coast).putFloat(coastVelocity)
+                .putInt(wingState).putInt(flapTicksLeft).put((byte) (isFlapping ? 1 : 0));
+    }
+    public void copyFrom(Bird src) {
+        x = src.x;
+        y = src.y;
+        prevY = src.prevY;
+        prevRotation = src.prevRotation;
+        velocity = src.velocity;
+        rotation = src.rotation;
+        coast = src.coast;
+        coastVelocity = src.coastVelocity;
+        wingState = src.wingState;
+        flapTicksLeft = src.flapTicksLeft;
+        isFlapping = src.isFlapping;
     }
-    public boolean collidesWith(Bird bird) {
-        Rectangle birdRect = bird.getBounds();
-        Rectangle coinRect = new Rectangle(x - SIZE/2, y - SIZE/2, SIZE, SIZE);
-        return birdRect.intersects(coinRect);
+    public void readSnapshot(ByteBuffer in) {
+        x = in.getFloat();
+        y = in.getFloat();
+        prevY = in.getFloat();
+        prevRotation = in.getFloat();
+        velocity = in.getFloat();
+        rotation = in.getFloat();
+        coast = in.getFloat();
+        coastVelocity = in.getFloat();
+        wingState = in.getInt();
+        flapTicksLeft = in.getInt();
+        isFlapping = in.get() != 0;
     }
-    public int getX() { return x; }
-    public int getY() { return y; }
-}
\ No newline at end of file
+    public float getX() { return x; }
+    public float getY() { return y; }
+    public float getPrevY() { return prevY; }
+    public float getPrevRotation() { return prevRotation; }
+    public float getVelocity() { return velocity; }
+    public float getRotation() { return rotation; }
+    public int getWingState() { return wingState; }
+}
+
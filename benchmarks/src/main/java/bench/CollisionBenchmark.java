@@ -0,0 +1,57 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// Swept bird-vs-pipe and bird-vs-coin tests over a fixed table of random placements and
+// bird motions, so the branch mix covers hits and misses.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollisionBenchmark {
+    private static final int CASES = 1024;
+
+    private final float[] objX = new float[CASES];
+    private final float[] objY = new float[CASES];
+    private final float[] birdPrevY = new float[CASES];
+    private final float[] birdY = new float[CASES];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < CASES; i++) {
+            objX[i] = 120 + random.nextInt(160);
+            objY[i] = 80 + random.nextInt(220);
+            birdPrevY[i] = random.nextInt(466);
+            birdY[i] = birdPrevY[i] + random.nextInt(21) - 10;
+        }
+    }
+
+    @Benchmark
+    public void pipe(Blackhole bh) {
+        int i = next++ & (CASES - 1);
+        bh.consume(Game.pipeHitTime(objX[i], objY[i], 200, -5, 200, birdPrevY[i], birdY[i]));
+    }
+
+    @Benchmark
+    public void coin(Blackhole bh) {
+        int i = next++ & (CASES - 1);
+        bh.consume(Game.coinHitTime(objX[i], objY[i] + 100, -5, 200, birdPrevY[i], birdY[i]));
+    }
+}
@@ -0,0 +1,303 @@
+package bench;
+
+import java.awt.Graphics2D;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import static java.lang.invoke.MethodType.methodType;
+
+// The game lives in the unnamed package, which Java code in a named package cannot refer
+// to, and JMH will not generate benchmarks in the unnamed package. So the benchmarks reach
+// the game through method handles held in static finals, which the JIT inlines like
+// ordinary calls.
+final class Game {
+    static final int WIDTH = 800;
+    static final int HEIGHT = 600;
+
+    private static final MethodHandle NEW_WORLD;
+    private static final MethodHandle STEP;
+    private static final MethodHandle RESET;
+    private static final MethodHandle IS_GAME_OVER;
+    private static final MethodHandle AUTOPILOT;
+    private static final MethodHandle POPULATE;
+    private static final MethodHandle PARTICLES;
+    private static final MethodHandle NEW_POOL;
+    private static final MethodHandle EMIT;
+    private static final MethodHandle UPDATE_PARTICLES;
+    private static final MethodHandle PARTICLE_COUNT;
+    private static final MethodHandle PIPE_HIT_TIME;
+    private static final MethodHandle COIN_HIT_TIME;
+    private static final MethodHandle NEW_RENDERER;
+    private static final MethodHandle HAS_SPRITES;
+    private static final MethodHandle RENDER;
+    private static final MethodHandle NEW_MIXER;
+    private static final MethodHandle PLAY;
+    private static final MethodHandle MIX;
+    private static final MethodHandle TICK;
+    private static final MethodHandle NEW_REWIND;
+    private static final MethodHandle RECORD;
+    private static final MethodHandle RESTORE;
+
+    static {
+        try {
+            MethodHandles.Lookup self = MethodHandles.lookup();
+            Class<?> world = Class.forName("GameWorld");
+            Class<?> pool = Class.forName("ParticlePool");
+            Class<?> renderer = Class.forName("WorldRenderer");
+            Class<?> mixer = Class.forName("AudioMixer");
+            Class<?> rewind = Class.forName("RewindBuffer");
+            MethodHandles.Lookup w = MethodHandles.privateLookupIn(world, self);
+            MethodHandles.Lookup p = MethodHandles.privateLookupIn(pool, self);
+            MethodHandles.Lookup r = MethodHandles.privateLookupIn(renderer, self);
+            MethodHandles.Lookup m = MethodHandles.privateLookupIn(mixer, self);
+            MethodHandles.Lookup b = MethodHandles.privateLookupIn(rewind, self);
+
+            NEW_WORLD = w.findConstructor(world, methodType(void.class))
+                    .asType(methodType(Object.class));
+            STEP = w.findVirtual(world, "step", methodType(void.class, boolean.class))
+                    .asType(methodType(void.class, Object.class, boolean.class));
+            RESET = w.findVirtual(world, "reset", methodType(void.class))
+                    .asType(methodType(void.class, Object.class));
+            IS_GAME_OVER = w.findVirtual(world, "isGameOver", methodType(boolean.class))
+                    .asType(methodType(boolean.class, Object.class));
+            AUTOPILOT = w.findVirtual(world, "autopilotWantsFlap", methodType(boolean.class))
+                    .asType(methodType(boolean.class, Object.class));
+            POPULATE = w.findVirtual(world, "populate", methodType(void.class, int.class, int.class, int.class))
+                    .asType(methodType(void.class, Object.class, int.class, int.class, int.class));
+            PARTICLES = w.findVirtual(world, "getParticles", methodType(pool))
+                    .asType(methodType(Object.class, Object.class));
+            TICK = w.findVirtual(world, "getTick", methodType(long.class))
+                    .asType(methodType(long.class, Object.class));
+            MethodType hitTime = methodType(float.class, float.class, float.class, float.class,
+                    float.class, float.class, float.class);
+            PIPE_HIT_TIME = w.findStatic(world, "pipeHitTime", hitTime.insertParameterTypes(2, float.class));
+            COIN_HIT_TIME = w.findStatic(world, "coinHitTime", hitTime);
+
+            NEW_POOL = p.findConstructor(pool, methodType(void.class, int.class))
+                    .asType(methodType(Object.class, int.class));
+            EMIT = p.findVirtual(pool, "emit", methodType(void.class, float.class, float.class, int.class))
+                    .asType(methodType(void.class, Object.class, float.class, float.class, int.class));
+            UPDATE_PARTICLES = p.findVirtual(pool, "update", methodType(void.class))
+                    .asType(methodType(void.class, Object.class));
+            PARTICLE_COUNT = p.findVirtual(pool, "count", methodType(int.class))
+                    .asType(methodType(int.class, Object.class));
+
+            NEW_RENDERER = r.findConstructor(renderer, methodType(void.class))
+                    .asType(methodType(Object.class));
+            HAS_SPRITES = r.findVirtual(renderer, "hasSprites", methodType(boolean.class))
+                    .asType(methodType(boolean.class, Object.class));
+            RENDER = r.findVirtual(renderer, "render",
+                    methodType(void.class, Graphics2D.class, world, boolean.class, float.class))
+                    .asType(methodType(void.class, Object.class, Graphics2D.class, Object.class,
+                            boolean.class, float.class));
+
+            NEW_MIXER = m.findConstructor(mixer, methodType(void.class, int.class))
+                    .asType(methodType(Object.class, int.class));
+            PLAY = m.findVirtual(mixer, "play", methodType(void.class, int.class))
+                    .asType(methodType(void.class, Object.class, int.class));
+            MIX = m.findVirtual(mixer, "mix", methodType(int.class, byte[].class, int.class))
+                    .asType(methodType(int.class, Object.class, byte[].class, int.class));
+
+            NEW_REWIND = b.findConstructor(rewind, methodType(void.class, int.class))
+                    .asType(methodType(Object.class, int.class));
+            RECORD = b.findVirtual(rewind, "record", methodType(boolean.class, world))
+                    .asType(methodType(boolean.class, Object.class, Object.class));
+            RESTORE = b.findVirtual(rewind, "restore", methodType(boolean.class, world, long.class))
+                    .asType(methodType(boolean.class, Object.class, Object.class, long.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Game() {}
+
+    static Object newWorld() {
+        try {
+            return (Object) NEW_WORLD.invokeExact();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void step(Object world, boolean flap) {
+        try {
+            STEP.invokeExact(world, flap);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void reset(Object world) {
+        try {
+            RESET.invokeExact(world);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean isGameOver(Object world) {
+        try {
+            return (boolean) IS_GAME_OVER.invokeExact(world);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean autopilotWantsFlap(Object world) {
+        try {
+            return (boolean) AUTOPILOT.invokeExact(world);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void populate(Object world, int pipes, int coins, int particles) {
+        try {
+            POPULATE.invokeExact(world, pipes, coins, particles);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object particles(Object world) {
+        try {
+            return (Object) PARTICLES.invokeExact(world);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object newParticlePool(int capacity) {
+        try {
+            return (Object) NEW_POOL.invokeExact(capacity);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void emit(Object pool, float x, float y, int n) {
+        try {
+            EMIT.invokeExact(pool, x, y, n);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void updateParticles(Object pool) {
+        try {
+            UPDATE_PARTICLES.invokeExact(pool);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int particleCount(Object pool) {
+        try {
+            return (int) PARTICLE_COUNT.invokeExact(pool);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static long tick(Object world) {
+        try {
+            return (long) TICK.invokeExact(world);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object newRewindBuffer(int capacity) {
+        try {
+            return (Object) NEW_REWIND.invokeExact(capacity);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean record(Object rewind, Object world) {
+        try {
+            return (boolean) RECORD.invokeExact(rewind, world);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean restore(Object rewind, Object world, long tick) {
+        try {
+            return (boolean) RESTORE.invokeExact(rewind, world, tick);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object newMixer(int voices) {
+        try {
+            return (Object) NEW_MIXER.invokeExact(voices);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void play(Object mixer, int sound) {
+        try {
+            PLAY.invokeExact(mixer, sound);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int mix(Object mixer, byte[] out, int frames) {
+        try {
+            return (int) MIX.invokeExact(mixer, out, frames);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static float pipeHitTime(float pipeX, float gapY, float gap, float pipeVx,
+                             float birdX, float birdPrevY, float birdY) {
+        try {
+            return (float) PIPE_HIT_TIME.invokeExact(pipeX, gapY, gap, pipeVx, birdX, birdPrevY, birdY);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static float coinHitTime(float coinX, float coinY, float coinVx,
+                             float birdX, float birdPrevY, float birdY) {
+        try {
+            return (float) COIN_HIT_TIME.invokeExact(coinX, coinY, coinVx, birdX, birdPrevY, birdY);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // Blocks until the renderer's sprite atlas is built so the timed frames use sprites.
+    static Object newRenderer() {
+        try {
+            Object renderer = (Object) NEW_RENDERER.invokeExact();
+            while (!(boolean) HAS_SPRITES.invokeExact(renderer)) {
+                Thread.sleep(5);
+            }
+            return renderer;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void render(Object renderer, Graphics2D g, Object world, boolean started, float alpha) {
+        try {
+            RENDER.invokeExact(renderer, g, world, started, alpha);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) return (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        return new IllegalStateException(t);
+    }
+}
@@ -0,0 +1,46 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// One 256-frame audio period mixed offline, with a new effect started every period so
+// every voice stays busy and starts past the cap steal one.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MixBenchmark {
+    private static final int PERIOD_FRAMES = 256;
+    private static final int SOUNDS = 4;
+
+    @Param({"8", "32"})
+    public int voices;
+
+    private Object mixer;
+    private final byte[] period = new byte[PERIOD_FRAMES * 2];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        mixer = Game.newMixer(voices);
+    }
+
+    @Benchmark
+    public int period() {
+        Game.play(mixer, next++ % SOUNDS);
+        return Game.mix(mixer, period, PERIOD_FRAMES);
+    }
+}
@@ -0,0 +1,64 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+// One rendered frame into an offscreen image, headless, with the world holding N pipes,
+// coins and particles. The world is stepped between frames so every frame has moving
+// layers to repaint, as it does in play.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PaintBenchmark {
+    @Param({"0", "10", "100"})
+    public int entities;
+
+    private Object world;
+    private Object renderer;
+    private BufferedImage image;
+    private Graphics2D g;
+
+    @Setup
+    public void setUp() {
+        world = Game.newWorld();
+        Game.populate(world, entities, entities, entities);
+        renderer = Game.newRenderer();
+        image = new BufferedImage(Game.WIDTH, Game.HEIGHT, BufferedImage.TYPE_INT_RGB);
+        g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    }
+
+    @TearDown
+    public void tearDown() {
+        g.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage frame() {
+        if (Game.isGameOver(world)) {
+            Game.reset(world);
+            Game.populate(world, entities, entities, entities);
+        }
+        Game.step(world, Game.autopilotWantsFlap(world));
+        Game.render(renderer, g, world, true, 1f);
+        return image;
+    }
+}
@@ -0,0 +1,42 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// One particle tick under burst load: a death-sized burst of 30 sparks every tick on top
+// of whatever is still alive, against pools of different caps.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParticleBenchmark {
+    @Param({"512", "4096"})
+    public int capacity;
+
+    private Object pool;
+
+    @Setup
+    public void setUp() {
+        pool = Game.newParticlePool(capacity);
+    }
+
+    @Benchmark
+    public int burst() {
+        Game.emit(pool, 200, 300, 30);
+        Game.updateParticles(pool);
+        return Game.particleCount(pool);
+    }
+}
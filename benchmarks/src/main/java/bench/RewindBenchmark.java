@@ -0,0 +1,52 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Keeping one tick of a world five seconds into an autopilot run, as the game loop does
+// after every step, and putting the world back to it.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RewindBenchmark {
+    private static final int SLOTS = 625;
+    private static final int TICKS = 300;
+
+    private Object world;
+    private Object rewind;
+    private long tick;
+
+    @Setup
+    public void setUp() {
+        world = Game.newWorld();
+        rewind = Game.newRewindBuffer(SLOTS);
+        for (int i = 0; i < TICKS && !Game.isGameOver(world); i++) {
+            Game.step(world, Game.autopilotWantsFlap(world));
+        }
+        tick = Game.tick(world);
+        Game.record(rewind, world);
+    }
+
+    @Benchmark
+    public boolean record() {
+        return Game.record(rewind, world);
+    }
+
+    @Benchmark
+    public boolean restore() {
+        return Game.restore(rewind, world, tick);
+    }
+}
@@ -0,0 +1,52 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// One GameWorld.step (the body of the old GamePanel.actionPerformed) with the world
+// holding N pipes, N coins and N particles. Particles are topped back up to N after every
+// tick, and the world is repopulated if the autopilot crashes.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TickBenchmark {
+    @Param({"10", "100", "1000"})
+    public int entities;
+
+    private Object world;
+    private Object particles;
+
+    @Setup
+    public void setUp() {
+        world = Game.newWorld();
+        particles = Game.particles(world);
+        Game.populate(world, entities, entities, entities);
+    }
+
+    @Benchmark
+    public void step() {
+        if (Game.isGameOver(world)) {
+            Game.reset(world);
+            Game.populate(world, entities, entities, entities);
+        }
+        Game.step(world, Game.autopilotWantsFlap(world));
+        int missing = entities - Game.particleCount(particles);
+        if (missing > 0) {
+            Game.emit(particles, Game.WIDTH / 2f, Game.HEIGHT / 2f, missing);
+        }
+    }
+}
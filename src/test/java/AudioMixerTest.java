@@ -0,0 +1,35 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Mixes offline, with no line, so the output can be compared sample for sample.
+class AudioMixerTest {
+    @Test
+    void newSoundCutsOffTheVoiceClosestToFinishing() {
+        AudioMixer mixer = new AudioMixer(2);
+        byte[] period = new byte[AudioMixer.PERIOD_FRAMES * AudioMixer.FRAME_BYTES];
+        // The crash is further in than the flap, but the flap has less than 1,000 frames left.
+        mixer.play(Sfx.HIT);
+        mixFrames(mixer, period, 1_000);
+        mixer.play(Sfx.FLAP);
+        mixFrames(mixer, period, 3_000);
+
+        mixer.play(Sfx.COIN);
+        assertEquals(2, mixer.mix(period, AudioMixer.PERIOD_FRAMES));
+        assertEquals(1, mixer.getStolen());
+        for (int i = 0; i < AudioMixer.PERIOD_FRAMES; i++) {
+            int want = Sfx.PCM[Sfx.HIT][4_000 + i] + Sfx.PCM[Sfx.COIN][i];
+            want = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, want));
+            short got = (short) (period[2 * i] & 0xFF | period[2 * i + 1] << 8);
+            assertEquals(want, got, "frame " + i);
+        }
+    }
+
+    private static void mixFrames(AudioMixer mixer, byte[] period, int frames) {
+        while (frames > 0) {
+            int n = Math.min(frames, AudioMixer.PERIOD_FRAMES);
+            mixer.mix(period, n);
+            frames -= n;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// fromBytes parses files from disk and from clients, so anything a replay would read
+// differently from what the file declares has to be rejected.
+class InputRecordingTest {
+    private static final int FBR2 = 0x46425232;
+    private static final int FBR3 = 0x46425233;
+
+    @Test
+    void acceptsIncreasingFlapsUpToTheLastTick() {
+        InputRecording recording = InputRecording.fromBytes(fbr3(20, 10, 5, 5));
+        assertEquals(20, recording.getTicks());
+        assertEquals(3, recording.getFlapCount());
+        InputRecording.Cursor flaps = recording.flaps();
+        assertEquals(10, flaps.next());
+        assertEquals(15, flaps.next());
+        assertEquals(20, flaps.next());
+        assertFalse(flaps.hasNext());
+    }
+
+    @Test
+    void rejectsARepeatedFlapTick() {
+        // Replayed, the second flap at tick 10 would hide the one at 15 and every later one.
+        assertThrows(IllegalArgumentException.class, () -> InputRecording.fromBytes(fbr3(100, 10, 0, 5)));
+        assertThrows(IllegalArgumentException.class, () -> InputRecording.fromBytes(fbr2(100, 10, 0, 5)));
+    }
+
+    @Test
+    void rejectsAFlapAtTickZero() {
+        assertThrows(IllegalArgumentException.class, () -> InputRecording.fromBytes(fbr3(100, 0)));
+    }
+
+    @Test
+    void rejectsAFlapPastTheLastTick() {
+        assertThrows(IllegalArgumentException.class, () -> InputRecording.fromBytes(fbr3(20, 10, 11)));
+        assertThrows(IllegalArgumentException.class, () -> InputRecording.fromBytes(fbr2(20, 21)));
+    }
+
+    @Test
+    void rejectsBytesAfterTheLastFlap() {
+        byte[] data = fbr3(100, 10, 5);
+        byte[] padded = Arrays.copyOf(data, data.length + 1);
+        padded[data.length] = 5 << GameWorld.FLAP_PHASE_BITS;
+        assertThrows(IllegalArgumentException.class, () -> InputRecording.fromBytes(padded));
+    }
+
+    @Test
+    void verifierReportsInvalidRecordingsAsMalformed() {
+        byte[] valid = fbr3(100, 10, 5);
+        List<byte[]> submissions = List.of(
+                submission(fbr3(100, 10, 0, 5)),
+                submission(fbr3(20, 10, 11)),
+                submission(Arrays.copyOf(valid, valid.length + 1)));
+        try (ScoreVerifier verifier = new ScoreVerifier(ScoreVerifier.DEFAULT_MAX_TICKS, 1)) {
+            ScoreVerifier.Report report = verifier.verify(submissions);
+            assertArrayEquals(new ScoreVerifier.Verdict[] {ScoreVerifier.Verdict.MALFORMED,
+                    ScoreVerifier.Verdict.MALFORMED, ScoreVerifier.Verdict.MALFORMED}, report.verdicts);
+        }
+    }
+
+    // A classic-course recording with the given length and flap tick deltas, every flap at
+    // phase 0.
+    static byte[] fbr3(long ticks, long... deltas) {
+        for (int i = 0; i < deltas.length; i++) deltas[i] <<= GameWorld.FLAP_PHASE_BITS;
+        return encode(FBR3, ticks, deltas);
+    }
+
+    static byte[] fbr2(long ticks, long... deltas) {
+        return encode(FBR2, ticks, deltas);
+    }
+
+    private static byte[] encode(int magic, long ticks, long[] entries) {
+        byte[] out = new byte[13 + 10 * (entries.length + 2)];
+        int pos = 0;
+        for (int shift = 24; shift >= 0; shift -= 8) out[pos++] = (byte) (magic >>> shift);
+        pos += 8;   // seed 0
+        out[pos++] = (byte) DifficultyCurve.CLASSIC.id;
+        pos = InputRecording.writeVarint(out, pos, ticks);
+        pos = InputRecording.writeVarint(out, pos, entries.length);
+        for (long entry : entries) pos = InputRecording.writeVarint(out, pos, entry);
+        return Arrays.copyOf(out, pos);
+    }
+
+    private static byte[] submission(byte[] recording) {
+        byte[] out = new byte[4 + 2 + recording.length];
+        out[0] = 'F';
+        out[1] = 'B';
+        out[2] = 'S';
+        out[3] = '1';
+        System.arraycopy(recording, 0, out, 6, recording.length);   // claims score 0, coins 0
+        return out;
+    }
+}
@@ -0,0 +1,120 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Old recordings have to keep replaying to the same result, or saved runs and verified
+// scores stop meaning anything. The files under replays/ were written by the last builds
+// that wrote each format: FBR1 before there were difficulty curves, FBR2 before flaps had
+// a phase. Each is an autopilot run that stops flapping partway, so it ends in a death
+// whose tick moves with any change to the physics or the course.
+class ReplayCompatibilityTest {
+    @Test
+    void fbr1RecordingsReplayUnchanged() throws IOException {
+        assertReplays("fbr1-7000.fbr", 2651, 26, 7);
+        assertReplays("fbr1-7003.fbr", 695, 5, 2);
+        assertReplays("fbr1-7005.fbr", 1384, 13, 1);
+    }
+
+    @Test
+    void fbr2RecordingsReplayUnchanged() throws IOException {
+        assertReplays("fbr2-classic-8000.fbr", 2632, 26, 4);
+        assertReplays("fbr2-classic-8003.fbr", 730, 6, 0);
+        assertReplays("fbr2-normal-8001.fbr", 1864, 18, 5);
+        assertReplays("fbr2-hard-8002.fbr", 1921, 24, 3);
+    }
+
+    @Test
+    void phasedRecordingsRoundTrip() {
+        for (DifficultyCurve curve : DifficultyCurve.PRESETS) {
+            for (long seed = 1; seed <= 5; seed++) {
+                GameWorld world = new GameWorld(seed);
+                world.setCurve(curve);
+                world.reset(seed);
+                GameRandom random = new GameRandom(seed);
+                long stopAt = 500 + random.nextInt(2000);
+                while (!world.isGameOver() && world.getTick() < 20_000) {
+                    boolean flap = world.getTick() < stopAt && world.autopilotWantsFlap();
+                    world.step(flap ? random.nextInt(GameWorld.FLAP_PHASES) : GameWorld.NO_FLAP);
+                }
+                InputRecording live = world.getRecording();
+                byte[] bytes = live.toBytes();
+                assertEquals("FBR3", new String(bytes, 0, 4, StandardCharsets.US_ASCII));
+
+                InputRecording read = InputRecording.fromBytes(bytes);
+                assertEquals(seed, read.getSeed());
+                assertEquals(curve.id, read.getCurve());
+                assertEquals(live.getTicks(), read.getTicks());
+                assertEquals(live.getFlapCount(), read.getFlapCount());
+                assertArrayEquals(bytes, read.toBytes());
+
+                boolean phased = false;
+                InputRecording.Cursor want = live.flaps();
+                InputRecording.Cursor got = read.flaps();
+                while (want.hasNext()) {
+                    assertEquals(want.next(), got.next());
+                    assertEquals(want.phase(), got.phase());
+                    phased |= want.phase() != 0;
+                }
+                assertFalse(got.hasNext());
+                assertTrue(phased, "no flap off phase 0");
+
+                GameWorld replay = new GameWorld(seed);
+                ReplayPlayer.Result result = ReplayPlayer.play(read, replay, Long.MAX_VALUE);
+                assertEquals(world.getTick(), result.ticks);
+                assertEquals(world.getScore(), result.score);
+                assertEquals(world.getCoinsCollected(), result.coins);
+                assertEquals(world.isGameOver(), result.gameOver);
+                assertEquals(world.getBird().getY(), replay.getBird().getY());
+            }
+        }
+    }
+
+    // The autopilot on the classic course, fingerprinted the same way since before the
+    // course was generated in chunks.
+    @Test
+    void classicCourseIsUnchanged() {
+        long sum = 0;
+        for (long seed = 1; seed <= 200; seed++) {
+            GameWorld world = new GameWorld();
+            world.setCurve(DifficultyCurve.CLASSIC);
+            world.reset(seed);
+            int ticks = 0;
+            while (!world.isGameOver() && ticks < 20_000) {
+                world.step(world.autopilotWantsFlap());
+                ticks++;
+            }
+            sum = sum * 31 + ticks * 1000L + world.getScore() * 7 + Float.floatToIntBits(world.getBird().getY());
+        }
+        assertEquals(2898393708386760486L, sum);
+    }
+
+    private static void assertReplays(String name, long ticks, int score, int coins) throws IOException {
+        byte[] data;
+        try (InputStream in = ReplayCompatibilityTest.class.getResourceAsStream("/replays/" + name)) {
+            assertNotNull(in, name);
+            data = in.readAllBytes();
+        }
+        InputRecording recording = InputRecording.fromBytes(data);
+        ReplayPlayer.Result result = ReplayPlayer.play(recording, Long.MAX_VALUE);
+        assertEquals(ticks, result.ticks, name);
+        assertEquals(score, result.score, name);
+        assertEquals(coins, result.coins, name);
+        assertTrue(result.gameOver, name);
+
+        // Written back out, an old recording becomes an FBR3 file that replays the same.
+        byte[] upgraded = recording.toBytes();
+        assertEquals("FBR3", new String(upgraded, 0, 4, StandardCharsets.US_ASCII));
+        ReplayPlayer.Result again = ReplayPlayer.play(InputRecording.fromBytes(upgraded), Long.MAX_VALUE);
+        assertEquals(ticks, again.ticks, name);
+        assertEquals(score, again.score, name);
+        assertEquals(coins, again.coins, name);
+    }
+}
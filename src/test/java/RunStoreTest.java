@@ -0,0 +1,159 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Damages a closed store the ways a crash can and checks that reopening it keeps every
+// whole record and ranks them exactly like a sorted copy of what was appended.
+class RunStoreTest {
+    private static final int RECORD_SIZE = 40;
+    private static final int COMMITTED_AT = 8;
+    private static final int DIRTY_AT = 16;
+    private static final int TREE_AT = 4096;
+
+    @TempDir
+    Path dir;
+
+    private final List<RunStore.Run> runs = new ArrayList<>();
+    private final Random random = new Random(42);
+
+    @Test
+    void freshStoreRanksLikeASortedList() throws IOException {
+        try (RunStore store = RunStore.open(dir)) {
+            assertEquals(0, store.count());
+            assertEquals(1, store.rankOf(0));
+            assertEquals(-1, store.scoreAtRank(1));
+            assertMatches(store);
+            append(store, 500);
+            assertMatches(store);
+        }
+        try (RunStore store = RunStore.open(dir)) {
+            assertMatches(store);
+        }
+    }
+
+    @Test
+    void tornLastRecordIsDropped() throws IOException {
+        fill(300);
+        try (FileChannel log = FileChannel.open(dir.resolve("runs.log"), StandardOpenOption.WRITE)) {
+            log.truncate((runs.size() - 1L) * RECORD_SIZE + RECORD_SIZE / 2);
+        }
+        runs.remove(runs.size() - 1);
+        reopenAndCheck();
+    }
+
+    @Test
+    void corruptLastRecordIsDropped() throws IOException {
+        fill(300);
+        long at = (runs.size() - 1L) * RECORD_SIZE + 12;
+        try (FileChannel log = FileChannel.open(dir.resolve("runs.log"), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            log.read(b, at);
+            b.put(0, (byte) (b.get(0) ^ 0x5A)).rewind();
+            log.write(b, at);
+        }
+        runs.remove(runs.size() - 1);
+        reopenAndCheck();
+    }
+
+    @Test
+    void dirtyIndexIsRebuilt() throws IOException {
+        fill(300);
+        // A fold cut off halfway: the flag is up and one tree slot is already counted.
+        patchIndex(ByteBuffer.allocate(4).putInt(0, 1), DIRTY_AT);
+        patchIndex(ByteBuffer.allocate(4).putInt(0, 7), TREE_AT + 4 * 32);
+        reopenAndCheck();
+    }
+
+    @Test
+    void indexAheadOfTheLogIsRebuilt() throws IOException {
+        fill(300);
+        patchIndex(ByteBuffer.allocate(8).putLong(0, runs.size() + 5L), COMMITTED_AT);
+        reopenAndCheck();
+    }
+
+    @Test
+    void missingIndexIsRebuilt() throws IOException {
+        fill(300);
+        try (FileChannel idx = FileChannel.open(dir.resolve("runs.idx"), StandardOpenOption.WRITE)) {
+            idx.truncate(0);
+        }
+        reopenAndCheck();
+    }
+
+    private void fill(int n) throws IOException {
+        try (RunStore store = RunStore.open(dir)) {
+            append(store, n);
+            assertMatches(store);
+        }
+    }
+
+    // Checks the recovered store, then that it keeps working: appends more and checks again
+    // before and after one more clean reopen.
+    private void reopenAndCheck() throws IOException {
+        try (RunStore store = RunStore.open(dir)) {
+            assertMatches(store);
+            append(store, 100);
+            assertMatches(store);
+        }
+        try (RunStore store = RunStore.open(dir)) {
+            assertMatches(store);
+        }
+    }
+
+    private void append(RunStore store, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            // Few distinct scores, so ties and their order get exercised.
+            RunStore.Run run = new RunStore.Run(random.nextInt(60), random.nextInt(10),
+                    random.nextInt(100_000), runs.size(), 1_700_000_000_000L + runs.size());
+            assertEquals(runs.size(), store.append(run));
+            runs.add(run);
+        }
+    }
+
+    private void patchIndex(ByteBuffer value, long at) throws IOException {
+        try (FileChannel idx = FileChannel.open(dir.resolve("runs.idx"), StandardOpenOption.WRITE)) {
+            idx.write(value, at);
+        }
+    }
+
+    private void assertMatches(RunStore store) throws IOException {
+        assertEquals(runs.size(), store.count());
+        // List.sort is stable, so equal scores stay in the order they were appended.
+        List<RunStore.Run> sorted = new ArrayList<>(runs);
+        sorted.sort(Comparator.comparingInt((RunStore.Run run) -> run.score).reversed());
+
+        for (int score = 0; score <= 61; score++) {
+            int s = score;
+            long higher = runs.stream().filter(run -> run.score > s).count();
+            assertEquals(higher + 1, store.rankOf(score), "rank of " + score);
+        }
+        for (int rank = 1; rank <= sorted.size(); rank++) {
+            assertEquals(sorted.get(rank - 1).score, store.scoreAtRank(rank), "score at rank " + rank);
+        }
+        assertEquals(-1, store.scoreAtRank(sorted.size() + 1));
+
+        List<RunStore.Run> top = store.top(RunStore.TOP_K);
+        assertEquals(Math.min(RunStore.TOP_K, sorted.size()), top.size());
+        for (int i = 0; i < top.size(); i++) {
+            assertEquals(sorted.get(i).seed, top.get(i).seed, "top " + i);
+            assertEquals(sorted.get(i).score, top.get(i).score, "top " + i);
+        }
+        for (int i = 0; i < runs.size(); i += 37) {
+            assertEquals(runs.get(i).seed, store.get(i).seed);
+            assertEquals(runs.get(i).ticks, store.get(i).ticks);
+        }
+        assertEquals(sorted.isEmpty() ? 0 : sorted.get(0).score, store.bestScore());
+    }
+}